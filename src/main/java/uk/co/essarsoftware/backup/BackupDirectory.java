@@ -2,20 +2,36 @@ package uk.co.essarsoftware.backup;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.co.essarsoftware.backup.catalog.Catalog;
+import uk.co.essarsoftware.backup.chunk.ChunkStore;
 import uk.co.essarsoftware.backup.diff.TreeDiff;
+import uk.co.essarsoftware.backup.io.TailInputStream;
+import uk.co.essarsoftware.backup.tar.StreamingIndexWriter;
 import uk.co.essarsoftware.backup.tar.Tarball;
 import uk.co.essarsoftware.backup.tar.TarballIndex;
+import uk.co.essarsoftware.backup.upload.GlacierConfiguration;
 import uk.co.essarsoftware.backup.upload.MultipartUpload;
+import uk.co.essarsoftware.backup.upload.SimpleUpload;
+import uk.co.essarsoftware.backup.upload.UploadHistory;
 import uk.co.essarsoftware.backup.upload.UploadResult;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 public class BackupDirectory
 {
@@ -23,11 +39,38 @@ public class BackupDirectory
     private static final Logger _LOG = LoggerFactory.getLogger(BackupDirectory.class);
 
     private static final int _1MB = 1048576;
-
-    private boolean appendFlag, overwriteFlag;
-    private List<Path> changedFiles, srcPaths;
-    private Path metaDirectory, tarPath;
+    private static final long _PACK_SIZE = 256L * _1MB;
+
+    private static final int _MAX_PARTS = 10000;
+
+    // Allows for the header, record padding and a long name of each entry when estimating a tarball from file sizes
+    private static final int _ENTRY_OVERHEAD = 2048;
+    private static final String _METADATA_SUFFIX = ".metadata";
+
+    // Metadata bundles larger than this are sent in parts rather than in one request
+    private static final long _SIMPLE_UPLOAD_SIZE = 16L * _1MB;
+    private static final String _UPLOAD_HISTORY = "upload.history";
+
+    private boolean appendFlag, contentHashFlag, dedupFlag, inodesFlag, journalFlag, overwriteFlag, pipelineFlag, planFlag, pruneFlag, sparseFlag;
+    private ChunkStore chunkStore;
+    private List<Path> srcPaths;
+    private Map<Path, List<Path>> changedFiles;
+    private ForkJoinPool diffPool;
+    private double cpuShare;
+    private int diffThreads;
+    private long memoryBudgetMB, volumeSize;
+    private Future<MultipartUpload> preparedUpload;
+    private Future<MultipartUpload> streamedUpload;
+    private Map<File, Future<UploadResult>> volumeUploads;
+    private Map<File, UploadResult> volumeResults;
+    private ExecutorService prepareService, volumeUploadService;
+    private Path catalogDirectory, entriesFilePath, metaDirectory, reportPath, tarPath;
+    private long metadataBytes;
+    private StageTimings timings;
     private Tarball tar;
+    private TreeDiff treeDiff;
+    private TuningProfile tuning;
+    private final List<MultipartUpload> uploads = Collections.synchronizedList(new ArrayList<>());
     private UploadResult uploadResult;
 
     private BackupDirectory() {
@@ -35,24 +78,118 @@ public class BackupDirectory
         // Default constructor
 
         // Set default properties
-        changedFiles = new ArrayList<>();
+        changedFiles = new LinkedHashMap<>();
         srcPaths = new ArrayList<>();
+        volumeUploads = new LinkedHashMap<>();
+        volumeResults = new LinkedHashMap<>();
+        timings = new StageTimings();
 
         appendFlag = false;
+        contentHashFlag = false;
+        dedupFlag = false;
+        inodesFlag = false;
+        journalFlag = false;
         overwriteFlag = false;
+        pipelineFlag = false;
+        planFlag = false;
+        pruneFlag = false;
+        sparseFlag = false;
 
     }
 
     private void calculateChanges() {
 
-        TreeDiff diff = new TreeDiff(metaDirectory);
-        srcPaths.forEach(f -> {
+        timings.start("diff");
+        TreeDiff diff = createTreeDiff();
+
+        // Each root is checked on its own thread with its own hashtabs, so roots on separate disks are read at once
+        ExecutorService diffService = Executors.newFixedThreadPool(srcPaths.size());
+        Map<Path, Future<List<Path>>> diffs = new LinkedHashMap<>();
+        srcPaths.forEach(f -> diffs.put(f, diffService.submit(() -> {
 
             _LOG.info("Checking {} for changes", f);
-            changedFiles.addAll(diff.listChangedDirs(f));
+            return diff.listChangedFiles(f);
+
+        })));
+        diffService.shutdown();
+
+        // Collect in the order given, so the archive does not depend on which root finished first
+        diffs.forEach((f, future) -> {
+
+            try {
+
+                changedFiles.computeIfAbsent(getNameRoot(f), r -> new ArrayList<>()).addAll(toNamedPaths(future.get()));
+
+            } catch (ExecutionException ee) {
+
+                _LOG.error("Unable to check {} for changes", f, ee.getCause());
 
+            } catch (InterruptedException ie) {
+
+                _LOG.warn("Interrupted waiting for changes in {}", f);
+                Thread.currentThread().interrupt();
+
+            }
         });
-        _LOG.info("{} directories identified with changes", changedFiles.size());
+
+        _LOG.info("{} files identified with changes", getChangedFileCount());
+        timings.stop("diff");
+
+    }
+
+    private TreeDiff createTreeDiff() {
+
+        TreeDiff diff = new TreeDiff(metaDirectory, diffThreads);
+        diff.setContentHash(contentHashFlag);
+        diff.setDryRun(planFlag);
+        diff.setPool(diffPool);
+        diff.setReadBufferSize(tuning.getHashBufferSize());
+        diff.setPruneSubtrees(pruneFlag);
+        diff.setTrackInodes(inodesFlag);
+        diff.setUseJournal(journalFlag);
+        treeDiff = diff;
+        return diff;
+
+    }
+
+    /**
+     * Adds changed files to the chunk store.
+     * @param paths batches of changed files, each keyed by the directory that their names are relative to.
+     */
+    private void createChunkStore(Iterable<Map.Entry<Path, List<Path>>> paths) {
+
+        Path metaPath = getMetaPath();
+        Path indexPath = metaPath.resolve(ChunkStore.INDEXFILE);
+        Path manifestPath = metaPath.resolve(tarPath.getFileName() + ".manifest");
+
+        if (Files.exists(manifestPath) && !overwriteFlag) {
+
+            _LOG.warn("Manifest file {} already exists and overwrite flag not set", manifestPath);
+            return;
+
+        }
+
+        // Upload each pack as soon as it is complete, while the next is being written
+        volumeUploadService = Executors.newFixedThreadPool(tuning.getVolumeUploads());
+
+        try (ChunkStore store = new ChunkStore(indexPath, manifestPath, tarPath.toFile(), _PACK_SIZE, this::uploadVolume)) {
+
+            chunkStore = store;
+            store.setOverwrite(overwriteFlag);
+            for (Map.Entry<Path, List<Path>> rootFiles : paths) {
+
+                store.addPaths(rootFiles.getKey(), rootFiles.getValue());
+
+            }
+
+        } catch (IOException ioe) {
+
+            _LOG.error("Unable to create chunk store", ioe);
+            return;
+
+        }
+
+        _LOG.info("Created chunk store: {}; manifest written to {}", chunkStore, manifestPath);
 
     }
 
@@ -65,7 +202,9 @@ public class BackupDirectory
 
         }
 
-        Path indexFilePath = (metaDirectory == null ? tarPath.toAbsolutePath().getParent() : metaDirectory).resolve(tarPath.getFileName() + ".index");
+        timings.start("index");
+
+        Path indexFilePath = getMetaPath().resolve(tarPath.getFileName() + ".index");
         TarballIndex index = new TarballIndex(indexFilePath);
 
         if (uploadResult != null) {
@@ -75,9 +214,25 @@ public class BackupDirectory
 
         }
 
+        if (tar != null && tar.isMultiVolume()) {
+
+            for (File volume : tar.getVolumes()) {
+
+                UploadResult result = volumeResults.get(volume);
+                index.addVolume(volume.getName(), result == null ? null : result.getArchiveId(),
+                        result == null ? null : result.getChecksum(), volume.length());
+
+            }
+
+        } else if (tar != null) {
+
+            index.setArchiveLength(tarPath.toFile().length());
+
+        }
+
         if (tar != null) {
 
-            index.setTarEntries(tar.getEntries());
+            index.setEntries(entriesFilePath);
 
         }
 
@@ -87,45 +242,155 @@ public class BackupDirectory
             index.writeIndex();
             _LOG.info("Written index to {}", indexFilePath);
 
+            Path binaryIndexFilePath = indexFilePath.resolveSibling(tarPath.getFileName() + ".idx");
+            index.writeBinaryIndex(binaryIndexFilePath);
+            _LOG.info("Written binary index to {}", binaryIndexFilePath);
+
+            updateCatalog(binaryIndexFilePath);
+
         } catch (IOException ioe) {
 
             _LOG.warn("Unable to write index file: {} ({})", ioe.getMessage(), ioe.getClass().getName());
             _LOG.debug(ioe.getClass().getName(), ioe);
 
         }
+
+        timings.stop("index");
+
     }
 
     private void createTarball() {
 
-        if (changedFiles.size() == 0) {
+        if (getChangedFileCount() == 0) {
 
             _LOG.info("No files selected for tarball");
             return;
 
         }
 
+        if (volumeSize == 0 && !dedupFlag) {
+
+            prepareUpload();
+
+        }
+
+        try {
+
+            createTarball(changedFiles.entrySet());
+
+        } catch (RuntimeException re) {
+
+            abandonPreparedUpload();
+            throw re;
+
+        }
+    }
+
+    /**
+     * Archives changed files, in a tarball or the chunk store.
+     * @param paths batches of changed files, each keyed by the directory that their entry names are relative to.
+     */
+    private void createTarball(Iterable<Map.Entry<Path, List<Path>>> paths) {
+
+        timings.start("tar");
+        try {
+
+            if (dedupFlag) {
+
+                createChunkStore(paths);
+
+            } else {
+
+                createTarballFile(paths);
+
+            }
+
+        } finally {
+
+            timings.stop("tar");
+
+        }
+    }
+
+    private void createTarballFile(Iterable<Map.Entry<Path, List<Path>>> paths) {
+
+        boolean append = appendFlag && volumeSize == 0 && Files.exists(tarPath);
+
         try {
 
-            if (overwriteFlag) {
+            if (append) {
+
+                // Append in place of the existing end-of-archive marker
+                _LOG.info("Appending to existing archive {}", tarPath);
+
+            } else if (overwriteFlag) {
 
                 Files.deleteIfExists(tarPath);
+                if (volumeSize > 0) {
+
+                    // A shorter backup must not leave volumes of the last one beside its own
+                    int deleted = Tarball.deleteVolumeFiles(tarPath.toFile());
+                    if (deleted > 0) {
 
-            } else if (Files.exists(tarPath)) {
+                        _LOG.info("Deleted {} volumes of an earlier backup", deleted);
+
+                    }
+
+                }
+
+            } else if (volumeSize > 0 ? hasVolumeFiles() : Files.exists(tarPath)) {
 
                 _LOG.warn("Tarball file already exists and overwrite flag not set");
                 return;
 
             }
 
-            if (appendFlag && Files.exists(tarPath)) {
+            if (volumeSize > 0) {
 
-                tar = new Tarball(tarPath.toFile(), appendFlag, srcPaths.get(0), changedFiles);
+                if (appendFlag) {
 
-            } else {
+                    _LOG.warn("Append flag is not supported with volumes, ignoring");
+
+                }
+
+                // Upload each volume as soon as it is complete, while the next is being written
+                volumeUploadService = Executors.newFixedThreadPool(tuning.getVolumeUploads());
+
+            } else if (!append) {
+
+                Files.createFile(tarPath);
+
+            }
+
+            // When pipelined, a new single-file tarball is uploaded as it is written. Appending rewrites the end of
+            // the file, so cannot be.
+            TailInputStream tail = (pipelineFlag && volumeSize == 0 && !append ? startStreamedUpload() : null);
 
-                tar = new Tarball(Files.createFile(tarPath).toFile(), srcPaths.get(0), changedFiles);
+            // Entries go straight to the streaming index as they are added, rather than being held until the end
+            Path entriesPath = getMetaPath().resolve(tarPath.getFileName() + ".entries");
+            try (StreamingIndexWriter indexWriter = new StreamingIndexWriter(entriesPath)) {
+
+                tar = new Tarball(tarPath.toFile(), append, volumeSize, sparseFlag, paths,
+                        volumeSize > 0 ? this::uploadVolume : null, indexWriter, tuning);
+
+            } catch (IOException | RuntimeException e) {
+
+                if (tail != null) {
+
+                    // Abandon the upload rather than complete it with part of the tarball
+                    tail.fail(e);
+
+                }
+                throw e;
+
+            }
+
+            if (tail != null) {
+
+                tail.finish();
 
             }
+            entriesFilePath = entriesPath;
             _LOG.info("Created archive: {}", tar);
 
         } catch (IOException ioe) {
@@ -135,6 +400,66 @@ public class BackupDirectory
         }
     }
 
+    private long getChangedFileCount() {
+
+        return changedFiles.values().stream().mapToLong(List::size).sum();
+
+    }
+
+    /**
+     * Formats a duration as hours, minutes and seconds.
+     * @param seconds the duration in seconds.
+     * @return the formatted duration.
+     */
+    private static String formatDuration(long seconds) {
+
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+
+    }
+
+    private UploadHistory getUploadHistory() {
+
+        return new UploadHistory(getMetaPath().resolve(_UPLOAD_HISTORY));
+
+    }
+
+    private Path getMetaPath() {
+
+        return (metaDirectory == null ? tarPath.toAbsolutePath().getParent() : metaDirectory);
+
+    }
+
+    /**
+     * Gets the directory that the entry names of a source root are relative to. With several roots, names start with
+     * the name of their root, so the files of each are kept apart in the archive; {@link #checkRootNames()} has made
+     * sure each root has a name of its own.
+     * @param srcPath the source root.
+     * @return the directory entry names are relative to.
+     */
+    private Path getNameRoot(Path srcPath) {
+
+        return (srcPaths.size() == 1 ? srcPath : srcPath.toAbsolutePath().normalize().getParent());
+
+    }
+
+    /**
+     * Converts changed files to the form of their name root. With several roots, names are relative to the directory
+     * above each root, which is absolute, so the files must be too.
+     * @param paths the changed files, as listed by the diff.
+     * @return the same list, converted in place.
+     */
+    private List<Path> toNamedPaths(List<Path> paths) {
+
+        if (srcPaths.size() > 1) {
+
+            paths.replaceAll(p -> p.toAbsolutePath().normalize());
+
+        }
+
+        return paths;
+
+    }
+
     private void parseArgs(String[] args) {
 
         LinkedList<String> argList = new LinkedList<>(Arrays.asList(args));
@@ -150,18 +475,141 @@ public class BackupDirectory
                 metaDirectory = Paths.get(argList.removeFirst());
                 continue;
 
+            }
+            if ("--catalog".equals(arg)) {
+
+                catalogDirectory = Paths.get(argList.removeFirst());
+                continue;
+
+            }
+            if ("--diff-threads".equals(arg)) {
+
+                try {
+
+                    diffThreads = Integer.parseInt(argList.removeFirst());
+
+                } catch (NumberFormatException nfe) {
+
+                    throw new IllegalArgumentException("Diff threads must be a number");
+
+                }
+                if (diffThreads < 1) {
+
+                    throw new IllegalArgumentException("Diff threads must be positive");
+
+                }
+                continue;
+
+            }
+            if ("--memory".equals(arg)) {
+
+                // Memory budget given in MB
+                try {
+
+                    memoryBudgetMB = Long.parseLong(argList.removeFirst());
+
+                } catch (NumberFormatException nfe) {
+
+                    throw new IllegalArgumentException("Memory budget must be a number of MB");
+
+                }
+                continue;
+
+            }
+            if ("--cpu-share".equals(arg)) {
+
+                try {
+
+                    cpuShare = Double.parseDouble(argList.removeFirst());
+
+                } catch (NumberFormatException nfe) {
+
+                    throw new IllegalArgumentException("CPU share must be a number");
+
+                }
+                continue;
+
             }
             if ("-a".equals(arg) || "--append".equals(arg)) {
 
                 appendFlag = true;
                 continue;
 
+            }
+            if ("--content-hash".equals(arg)) {
+
+                contentHashFlag = true;
+                continue;
+
+            }
+            if ("--dedup".equals(arg)) {
+
+                dedupFlag = true;
+                continue;
+
+            }
+            if ("--inodes".equals(arg)) {
+
+                inodesFlag = true;
+                continue;
+
+            }
+            if ("--journal".equals(arg)) {
+
+                journalFlag = true;
+                continue;
+
             }
             if ("-o".equals(arg) || "--overwrite".equals(arg)) {
 
                 overwriteFlag = true;
                 continue;
 
+            }
+            if ("--pipeline".equals(arg)) {
+
+                pipelineFlag = true;
+                continue;
+
+            }
+            if ("--plan".equals(arg)) {
+
+                planFlag = true;
+                continue;
+
+            }
+            if ("--report".equals(arg)) {
+
+                reportPath = Paths.get(argList.removeFirst());
+                continue;
+
+            }
+            if ("--prune".equals(arg)) {
+
+                pruneFlag = true;
+                continue;
+
+            }
+            if ("--sparse".equals(arg)) {
+
+                sparseFlag = true;
+                continue;
+
+            }
+            if ("--volume-size".equals(arg)) {
+
+                // Volume size given in MB
+                try {
+
+                    volumeSize = Long.parseLong(argList.removeFirst()) * _1MB;
+
+                } catch (NumberFormatException nfe) {
+
+                    throw new IllegalArgumentException("Volume size must be a number of MB");
+
+                }
+                continue;
+
             }
 
             if (argsRemaining >= 1) {
@@ -184,84 +632,894 @@ public class BackupDirectory
             throw new IllegalArgumentException("Output TAR path must be specified");
 
         }
-    }
+        if (srcPaths.isEmpty()) {
 
-    private void uploadMetadata() {
+            throw new IllegalArgumentException("At least one source directory must be specified");
 
+        }
+        if (srcPaths.size() > 1) {
 
-    }
+            checkRootNames();
 
-    private void uploadTar() {
+        }
+        if (volumeSize < 0) {
 
-        if(tar == null) {
+            throw new IllegalArgumentException("Volume size must not be negative");
 
-            _LOG.info("No tarball to upload");
-            return;
+        }
+        if (!planFlag) {
+
+            checkOutputFiles();
 
         }
 
-        // Configure an upload client based on the file size
-        MultipartUpload upload;
+        // Options not given on the command line are taken from the configuration
+        tuning = TuningProfile.fromConfiguration(memoryBudgetMB, cpuShare);
+        if (diffThreads == 0) {
 
-        try {
+            diffThreads = tuning.getDiffThreads();
 
-            if (Files.size(tarPath) > (128 * _1MB)) {
+        }
 
-                // 8 workers, 32 MB chunks
-                upload = new MultipartUpload(tarPath, (32 * _1MB), 8);
+        // Read the encryption key now, so a bad key fails the backup before the tarball is written
+        GlacierConfiguration.getEncryptionKey();
+    }
 
-            } else if(Files.size(tarPath) > (16 * _1MB)) {
+    /**
+     * Checks that several source roots can share an archive. Entry names start with the name of their root, so two
+     * roots of the same name, such as {@code /data} and {@code /srv/data}, would give the same entry names, and only
+     * the last copy of each would be restored. Names are compared ignoring case, as a restore may be to a file system
+     * that does. The file system root has no name, so cannot be one of several roots.
+     * @throws IllegalArgumentException if a root has no name or the same name as another.
+     */
+    private void checkRootNames() {
 
-                // 4 workers, 8 MB chunks
-                upload = new MultipartUpload(tarPath, (8 * _1MB), 4);
+        Map<String, Path> names = new HashMap<>();
+        for (Path srcPath : srcPaths) {
 
-            } else {
+            Path absolute = srcPath.toAbsolutePath().normalize();
+            if (absolute.getFileName() == null) {
 
-                // Single thread
-                upload = new MultipartUpload(tarPath, (8 * _1MB), 2);
+                throw new IllegalArgumentException(String.format("Source directory %s has no name to archive it under with other directories", srcPath));
 
             }
 
-        } catch (IOException ioe) {
+            Path other = names.putIfAbsent(absolute.getFileName().toString().toLowerCase(Locale.ROOT), absolute);
+            if (other != null) {
 
-            _LOG.warn("Unable to determine tarball size, using default upload configuration");
-            upload = new MultipartUpload(tarPath, (8 * _1MB), 1);
+                throw new IllegalArgumentException(String.format("Source directories %s and %s have the same name; archive them separately", other, absolute));
 
+            }
         }
+    }
 
-        upload.initialise();
-        upload.upload();
-        upload.complete();
+    /**
+     * Checks that a backup will not overwrite the files of an earlier one unless asked to. Checked before the diff,
+     * which saves the hashtabs, so a backup refused here can be run again and still find the same changes.
+     * @throws IllegalArgumentException if an output file exists and the overwrite flag is not set.
+     */
+    private void checkOutputFiles() {
 
-        uploadResult = upload;
+        if (overwriteFlag) {
 
-        _LOG.info("Uploaded archive: {}", upload.getArchiveId());
+            return;
 
-    }
+        }
 
+        if (dedupFlag && Files.exists(getMetaPath().resolve(tarPath.getFileName() + ".manifest"))) {
 
-    public static void main(String[] args) {
+            throw new IllegalArgumentException("Manifest file already exists and overwrite flag not set");
 
-        BackupDirectory script = new BackupDirectory();
+        }
+        if (!dedupFlag && volumeSize > 0 && hasVolumeFiles()) {
+
+            throw new IllegalArgumentException("Tarball volume files already exist and overwrite flag not set");
+
+        }
+        if (!dedupFlag && volumeSize == 0 && !appendFlag && Files.exists(tarPath)) {
+
+            throw new IllegalArgumentException("Tarball file already exists and overwrite flag not set");
+
+        }
+    }
+
+    private boolean hasVolumeFiles() {
 
         try {
 
-            script.parseArgs(args);
+            return !Tarball.findVolumeFiles(tarPath.toFile()).isEmpty();
 
-        } catch(IllegalArgumentException iae) {
+        } catch (IOException ioe) {
 
-            _LOG.error(iae.getMessage());
-            System.exit(1);
+            throw new IllegalArgumentException("Unable to list existing volumes of " + tarPath + ": " + ioe.getMessage());
 
         }
+    }
+
+    /**
+     * Estimates the size of the changed files in a tarball, from their sizes now. Sparse files are counted at their
+     * full size, so the estimate is an upper bound.
+     * @return the estimate.
+     */
+    private ChangeEstimate estimateChanges() {
+
+        ChangeEstimate estimate = new ChangeEstimate();
+        for (Map.Entry<Path, List<Path>> rootFiles : changedFiles.entrySet()) {
+
+            for (Path p : rootFiles.getValue()) {
+
+                try {
 
-        script.calculateChanges();
-        script.createTarball();
-        script.uploadTar();
-        script.createIndexFile();
+                    long size = Files.size(p);
+                    estimate.entryBytes += Tarball.getEntrySize(rootFiles.getKey().relativize(p).toString(), size);
+                    estimate.fileBytes += size;
+                    estimate.files++;
+
+                } catch (NoSuchFileException nsfe) {
+
+                    // Hashtabs are not written by a dry run
+                    _LOG.debug("Ignoring {}: not found", p);
+
+                } catch (IOException ioe) {
+
+                    _LOG.warn("Ignoring {}: {}", p, ioe.getMessage());
+
+                }
+            }
+        }
+
+        return estimate;
+
+    }
+
+    /**
+     * Reports what a backup would archive and upload, without writing or uploading anything: the number of files, the
+     * size of the archive, the parts it would be uploaded in and an estimate of the upload time. Changes are found as
+     * for a backup, but the hashtabs are left as they were. The upload time is estimated from the throughput of
+     * previous uploads, recorded in the metadata directory.
+     */
+    private void plan() {
+
+        ChangeEstimate estimate = estimateChanges();
+        long entries = estimate.files, fileBytes = estimate.fileBytes, archiveSize = estimate.entryBytes;
+
+        _LOG.info(String.format("Plan: %,d files, %,d bytes", entries, fileBytes));
+        if (entries == 0) {
+
+            _LOG.info("Nothing to back up");
+            return;
+
+        }
+
+        // The whole of an appended archive is uploaded again
+        if (appendFlag && volumeSize == 0 && !dedupFlag && Files.exists(tarPath)) {
+
+            try {
+
+                archiveSize += Math.max(0, Files.size(tarPath) - Tarball.getEndMarkerSize());
+
+            } catch (IOException ioe) {
+
+                _LOG.warn("Unable to read size of {}: {}", tarPath, ioe.getMessage());
+
+            }
+        }
+
+        // Packs and volumes are each uploaded as an archive, as they are completed
+        long archiveLimit = (dedupFlag ? _PACK_SIZE : volumeSize);
+        long archives = (archiveLimit > 0 ? Math.max(1, (archiveSize + archiveLimit - 1) / archiveLimit) : 1);
+        archiveSize += archives * Tarball.getEndMarkerSize();
+
+        long largest = (archives > 1 ? archiveLimit : archiveSize), last = archiveSize - (archives - 1) * largest;
+        boolean streamed = (pipelineFlag && archives == 1 && !dedupFlag && !(appendFlag && Files.exists(tarPath)));
+        int partSize = (streamed ? tuning.getStreamedPartSize() : tuning.getPartSize(largest));
+        int lastPartSize = (streamed ? partSize : tuning.getPartSize(last));
+        int workers = (streamed ? tuning.getStreamedUploadThreads() : tuning.getUploadThreads(largest)) * (int) Math.min(archives, tuning.getVolumeUploads());
+        long parts = (archives - 1) * ((largest + partSize - 1) / partSize) + (last + lastPartSize - 1) / lastPartSize;
+
+        _LOG.info(String.format("Archive: %,d bytes in %,d %s%s", archiveSize, archives, dedupFlag ? "packs" : archives > 1 ? "volumes" : "archive",
+                dedupFlag || sparseFlag ? " at most" : ""));
+        _LOG.info(String.format("Upload: %,d parts of up to %dMB, using %d workers", parts, partSize / _1MB, workers));
+
+        if ((largest + partSize - 1) / partSize > _MAX_PARTS) {
+
+            _LOG.warn("Each archive may have at most {} parts; use --volume-size to split the backup", _MAX_PARTS);
+
+        }
+
+        double bytesPerSecond = getUploadHistory().getBytesPerSecondPerWorker();
+        if (bytesPerSecond > 0) {
+
+            _LOG.info(String.format("Estimated upload time: %s at %,.2fMB/s per worker", formatDuration((long) (archiveSize / (bytesPerSecond * workers))),
+                    bytesPerSecond / _1MB));
+
+        } else {
+
+            _LOG.info("No upload history to estimate upload time from");
+
+        }
+    }
+
+    /**
+     * Runs the diff, the archive and its upload at once, rather than one after another. Each root is checked on its
+     * own thread, and the changed files of each directory pass to the archive through a bounded queue as soon as they
+     * are found. Volumes are uploaded as each is completed, as without the pipeline, and a single-file tarball is
+     * uploaded as it is written, so the run takes about as long as its slowest stage.
+     */
+    private void runPipeline() {
+
+        timings.start("diff");
+        TreeDiff diff = createTreeDiff();
+        BatchQueue queue = new BatchQueue(tuning.getPipelineBatches());
+        ExecutorService diffService = Executors.newFixedThreadPool(srcPaths.size());
+
+        CompletableFuture<?>[] diffs = srcPaths.stream().map(f -> CompletableFuture.runAsync(() -> {
+
+            _LOG.info("Checking {} for changes", f);
+            diff.listChangedFiles(f, changes -> queue.put(getNameRoot(f), toNamedPaths(changes)));
+
+        }, diffService).whenComplete((result, t) -> {
+
+            if (t != null) {
+
+                _LOG.error("Unable to check {} for changes", f, t.getCause() == null ? t : t.getCause());
+
+            }
+        })).toArray(CompletableFuture<?>[]::new);
+        diffService.shutdown();
+
+        // The archive ends once every root has been checked
+        CompletableFuture.allOf(diffs).whenComplete((result, t) -> {
+
+            timings.stop("diff");
+            queue.close();
+
+        });
+
+        try {
+
+            if (queue.awaitFirst()) {
+
+                createTarball(queue);
+
+            } else {
+
+                _LOG.info("No files selected for tarball");
+
+            }
+
+        } finally {
+
+            // Release any checks still waiting to pass on changes, if the archive was abandoned
+            queue.abort();
+
+        }
+    }
+
+    private void updateCatalog(Path binaryIndexFilePath) {
+
+        if (catalogDirectory == null) {
+
+            return;
+
+        }
+
+        try (Catalog catalog = new Catalog(catalogDirectory)) {
+
+            catalog.ingest(binaryIndexFilePath);
+            _LOG.info("Updated catalog: {}", catalog);
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to update catalog: {} ({})", ioe.getMessage(), ioe.getClass().getName());
+            _LOG.debug(ioe.getClass().getName(), ioe);
+
+        }
+    }
+
+    /**
+     * Uploads the hashtabs and indexes that restores depend on as one bundle, in a single request. The content hash of
+     * the bundle uploaded last is kept beside the indexes, and the bundle is not uploaded again until it changes.
+     */
+    private void uploadMetadata() {
+
+        timings.start("metadata");
+
+        Path metaPath = getMetaPath();
+        String tarName = tarPath.getFileName().toString();
+        Path statePath = metaPath.resolve(tarName + _METADATA_SUFFIX);
+        Path bundlePath = metaPath.resolve(tarName + _METADATA_SUFFIX + ".tgz");
+
+        // The hashtabs of each root are kept under its position as well as its name, so no two roots share a
+        // directory, and the roots are listed so each directory can be traced back to its source
+        MetadataBundle bundle = new MetadataBundle();
+        StringBuilder roots = new StringBuilder();
+        for (int i = 0; i < srcPaths.size(); i++) {
+
+            Path srcPath = srcPaths.get(i).toAbsolutePath().normalize();
+            String dir = String.format("%d-%s", i + 1, srcPath.getFileName() == null ? "root" : srcPath.getFileName());
+            TreeDiff.getTabFiles(metaDirectory, srcPaths.get(i)).forEach(f -> bundle.add("hashtabs/" + dir + "/" + f.getFileName(), f));
+            roots.append(dir).append('\t').append(srcPath).append('\n');
+
+        }
+        bundle.add("hashtabs/roots.txt", roots.toString());
+        for (String suffix : new String[] { ".index", ".idx", ".idx.names", ".manifest" }) {
+
+            bundle.add(tarName + suffix, metaPath.resolve(tarName + suffix));
+
+        }
+        if (dedupFlag) {
+
+            bundle.add(ChunkStore.INDEXFILE, metaPath.resolve(ChunkStore.INDEXFILE));
+
+        }
+
+        try {
+
+            String contentHash = bundle.calculateContentHash();
+            if (Files.exists(statePath) && new String(Files.readAllBytes(statePath), StandardCharsets.UTF_8).startsWith(contentHash + " ")) {
+
+                _LOG.info("Metadata unchanged since last upload");
+                return;
+
+            }
+
+            bundle.write(bundlePath);
+            _LOG.info("Bundled {} metadata files; {} bytes", bundle.getFileCount(), Files.size(bundlePath));
+
+            // The hashtabs of a large tree can take hundreds of MB
+            UploadResult upload;
+            if (Files.size(bundlePath) > _SIMPLE_UPLOAD_SIZE) {
+
+                upload = upload(bundlePath);
+
+            } else {
+
+                SimpleUpload simpleUpload = new SimpleUpload(bundlePath);
+                simpleUpload.upload();
+                upload = simpleUpload;
+
+            }
+
+            if (upload.getArchiveId() == null) {
+
+                _LOG.warn("Unable to upload metadata");
+                return;
+
+            }
+
+            // Only recorded once uploaded, so a failed upload is tried again by the next run
+            Files.write(statePath, String.format("%s %s%n", contentHash, upload.getArchiveId()).getBytes(StandardCharsets.UTF_8));
+            _LOG.info("Uploaded metadata: {}", upload.getArchiveId());
+            metadataBytes = Files.size(bundlePath);
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to upload metadata: {}", ioe.getMessage());
+
+        } catch (RuntimeException re) {
+
+            _LOG.error("Metadata upload failed", re);
+
+        } finally {
+
+            try {
+
+                Files.deleteIfExists(bundlePath);
+
+            } catch (IOException ioe) {
+
+                _LOG.warn("Unable to delete {}: {}", bundlePath, ioe.getMessage());
+
+            }
+
+            timings.stop("metadata");
+
+        }
+    }
+
+    /**
+     * Aborts the upload started before the tarball was written, as there is no tarball to send.
+     */
+    private void abandonPreparedUpload() {
+
+        if (preparedUpload == null) {
+
+            return;
+
+        }
+
+        try {
+
+            preparedUpload.get().abort();
+
+        } catch (ExecutionException ee) {
+
+            // Never started
+
+        } catch (InterruptedException ie) {
+
+            Thread.currentThread().interrupt();
+
+        }
+        preparedUpload = null;
+
+    }
+
+    /**
+     * Starts the upload of a single-file tarball with Glacier on a background thread while the tarball is written, so
+     * the request is off the critical path. The part size is fixed when the upload starts, so is chosen from the sizes
+     * of the changed files as the diff listed them, rather than reading their sizes again while they are archived.
+     */
+    private void prepareUpload() {
+
+        if (prepareService == null || treeDiff == null) {
+
+            return;
+
+        }
+
+        preparedUpload = prepareService.submit(() -> {
+
+            long size = treeDiff.getBytesChanged() + treeDiff.getFilesChanged() * _ENTRY_OVERHEAD + Tarball.getEndMarkerSize();
+            if (appendFlag && Files.exists(tarPath)) {
+
+                size += Math.max(0, Files.size(tarPath) - Tarball.getEndMarkerSize());
+
+            }
+
+            MultipartUpload upload = new MultipartUpload(tarPath, tuning.getPartSize(size), tuning.getUploadThreads(size));
+            upload.initialise();
+            return upload;
+
+        });
+    }
+
+    /**
+     * Uploads the tarball through the upload started while it was written, or through a new upload if that could not
+     * be started or its parts are too small for the tarball.
+     * @return the result of the upload.
+     */
+    private UploadResult uploadPrepared() {
+
+        MultipartUpload upload;
+        try {
+
+            upload = preparedUpload.get();
+
+        } catch (ExecutionException ee) {
+
+            _LOG.warn("Unable to start upload while writing tarball: {}", ee.getCause().getMessage());
+            return upload(tarPath);
+
+        } catch (InterruptedException ie) {
+
+            _LOG.warn("Interrupted waiting for upload to start");
+            Thread.currentThread().interrupt();
+            return null;
+
+        }
+
+        // Files may have grown since the estimate
+        long size = tarPath.toFile().length(), partSize = tuning.getPartSize(size);
+        if (upload.getPartCount(size) > _MAX_PARTS) {
+
+            _LOG.warn("Tarball is larger than estimated, starting upload again with {}MB parts", partSize / _1MB);
+            upload.abort();
+            return upload(tarPath);
+
+        }
+
+        upload.setHistory(getUploadHistory());
+        uploads.add(upload);
+
+        upload.upload();
+        upload.complete();
+
+        _LOG.info("Uploaded archive: {}", upload.getArchiveId());
+
+        return upload;
+
+    }
+
+    private void uploadTar() {
+
+        if (chunkStore != null) {
+
+            waitForVolumeUploads();
+
+            // Only record chunks whose packs reached the vault
+            chunkStore.getPacks().forEach(p -> {
+
+                UploadResult result = volumeResults.get(p);
+                chunkStore.setPackArchiveId(p, result == null ? null : result.getArchiveId());
+
+            });
+            chunkStore.save();
+            return;
+
+        }
+
+        if(tar == null) {
+
+            _LOG.info("No tarball to upload");
+            abandonPreparedUpload();
+            if (streamedUpload != null) {
+
+                // Wait for the abandoned upload to be aborted
+                waitForStreamedUpload();
+
+            }
+            return;
+
+        }
+
+        if (tar.isMultiVolume()) {
+
+            waitForVolumeUploads();
+            return;
+
+        }
+
+        if (streamedUpload != null) {
+
+            MultipartUpload upload = waitForStreamedUpload();
+            uploadResult = upload;
+            if (upload != null && upload.isPartLimitExceeded()) {
+
+                // Send the tarball again now it is written, with parts sized for it
+                _LOG.warn("Tarball is too large to upload as it is written, uploading it again");
+                timings.start("upload");
+                uploadResult = upload(tarPath);
+                timings.stop("upload");
+
+            }
+
+        } else {
+
+            timings.start("upload");
+            uploadResult = (preparedUpload != null ? uploadPrepared() : upload(tarPath));
+            timings.stop("upload");
+
+        }
+
+        if (uploadResult == null) {
+
+            return;
+
+        }
+
+        // Compare with the tree hash recorded while the tarball was written; an encrypted archive has other bytes, so
+        // its hash is checked by the upload against the encrypted parts
+        String treeHash = tar.getTreeHash();
+        if (treeHash != null && GlacierConfiguration.getEncryptionKey() == null && uploadResult.getChecksum() != null && !treeHash.equals(uploadResult.getChecksum())) {
+
+            _LOG.warn("Uploaded checksum does not match tarball tree hash, received:{}; expected:{}", uploadResult.getChecksum(), treeHash);
+
+        }
+    }
+
+    /**
+     * Queues a completed volume for upload. Called by the tarball as each volume is closed.
+     * @param volume the completed volume file.
+     */
+    private void uploadVolume(File volume) {
+
+        _LOG.info("Queueing volume {} for upload", volume.getName());
+        timings.start("upload");
+        volumeUploads.put(volume, volumeUploadService.submit(() -> upload(volume.toPath())));
+
+    }
+
+    private void waitForVolumeUploads() {
+
+        volumeUploadService.shutdown();
+
+        volumeUploads.forEach((volume, future) -> {
+
+            try {
+
+                volumeResults.put(volume, future.get());
+
+            } catch (ExecutionException ee) {
+
+                _LOG.error("Upload of volume {} failed", volume.getName(), ee.getCause());
+
+            } catch (InterruptedException ie) {
+
+                _LOG.warn("Interrupted waiting for upload of volume {}", volume.getName());
+                Thread.currentThread().interrupt();
+
+            }
+        });
+
+        _LOG.info("Uploaded {} of {} volumes", volumeResults.size(), volumeUploads.size());
+        timings.stop("upload");
+
+    }
+
+    /**
+     * Starts uploading the tarball while it is written, following the file as it grows.
+     * @return the stream the upload reads, to be finished once the tarball is complete.
+     * @throws IOException if the tarball cannot be opened.
+     */
+    private TailInputStream startStreamedUpload() throws IOException {
+
+        TailInputStream tail = new TailInputStream(tarPath);
+        ExecutorService uploadService = Executors.newSingleThreadExecutor();
+
+        streamedUpload = uploadService.submit(() -> {
+
+            timings.start("upload");
+            try {
+
+                return upload(tarPath, tail);
+
+            } finally {
+
+                timings.stop("upload");
+
+            }
+        });
+        uploadService.shutdown();
+
+        _LOG.info("Uploading {} as it is written", tarPath);
+        return tail;
+
+    }
+
+    private MultipartUpload waitForStreamedUpload() {
+
+        try {
+
+            return streamedUpload.get();
+
+        } catch (ExecutionException ee) {
+
+            _LOG.error("Upload of {} failed", tarPath, ee.getCause());
+
+        } catch (InterruptedException ie) {
+
+            _LOG.warn("Interrupted waiting for upload of {}", tarPath);
+            Thread.currentThread().interrupt();
+
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Uploads a tarball from a stream following it as it is written.
+     * @param path the tarball.
+     * @param source the stream to read the tarball from.
+     * @return the upload, stopped if the tarball needs more parts than Glacier accepts.
+     */
+    private MultipartUpload upload(Path path, InputStream source) {
+
+        // The final size is not known, so parts are as large as the budget allows
+        MultipartUpload upload = new MultipartUpload(path, tuning.getStreamedPartSize(), tuning.getStreamedUploadThreads());
+        upload.setHistory(getUploadHistory());
+        uploads.add(upload);
+
+        upload.initialise();
+        upload.upload(source);
+        if (upload.isPartLimitExceeded()) {
+
+            return upload;
+
+        }
+        upload.complete();
+
+        _LOG.info("Uploaded archive: {}", upload.getArchiveId());
+
+        return upload;
+
+    }
+
+    private UploadResult upload(Path path) {
+
+        // Configure an upload client based on the file size
+        MultipartUpload upload;
+
+        try {
+
+            long size = Files.size(path);
+            upload = new MultipartUpload(path, tuning.getPartSize(size), tuning.getUploadThreads(size));
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to determine tarball size, using default upload configuration");
+            upload = new MultipartUpload(path, tuning.getPartSize(0), 1);
+
+        }
+        upload.setHistory(getUploadHistory());
+        uploads.add(upload);
+
+        upload.initialise();
+        upload.upload();
+        upload.complete();
+
+        _LOG.info("Uploaded archive: {}", upload.getArchiveId());
+
+        return upload;
+
+    }
+
+
+    /**
+     * Appends a report of the run to the report file, if one was given. Phase times are wall times, and overlap when
+     * pipelined. Hash times are summed across the threads that hashed, so are not wall times.
+     */
+    private void writeReport() {
+
+        if (reportPath == null) {
+
+            return;
+
+        }
+
+        RunReport report = new RunReport();
+        report.put("time", Instant.now().toString());
+        report.put("archive", tarPath.toAbsolutePath().toString());
+        report.put("sources", srcPaths.stream().map(p -> p.toAbsolutePath().toString()).collect(Collectors.toList()));
+        report.put("totalMillis", timings.getTotalMillis());
+        report.put("phases", timings.getDurations());
+
+        Map<String, Object> diffReport = report.section("diff");
+        if (treeDiff != null) {
+
+            diffReport.put("directoriesListed", treeDiff.getDirectoriesListed());
+            diffReport.put("filesChecked", treeDiff.getFilesChecked());
+            diffReport.put("filesHashed", treeDiff.getFilesHashed());
+            diffReport.put("bytesHashed", treeDiff.getBytesHashed());
+            diffReport.put("hashMillis", treeDiff.getHashMillis());
+
+        }
+        if (!pipelineFlag) {
+
+            // When pipelined, changes pass straight to the tarball rather than being collected
+            diffReport.put("filesChanged", getChangedFileCount());
+
+        }
+
+        Map<String, Object> tarReport = report.section("tar");
+        if (tar != null) {
+
+            tarReport.put("files", tar.getFilesAdded());
+            tarReport.put("bytes", tar.getBytesAdded());
+            tarReport.put("volumes", tar.isMultiVolume() ? tar.getVolumes().size() : 1);
+
+        }
+        if (chunkStore != null) {
+
+            tarReport.put("packs", chunkStore.getPacks().size());
+
+        }
+
+        long uploadBytes = 0, hashMillis = 0;
+        int retries = 0;
+        long[] partMillis;
+        synchronized (uploads) {
+
+            for (MultipartUpload upload : uploads) {
+
+                uploadBytes += upload.getBytesUploaded();
+                hashMillis += upload.getHashMillis();
+                retries += upload.getRetries();
+
+            }
+            partMillis = uploads.stream().flatMapToLong(u -> Arrays.stream(u.getPartMillis())).toArray();
+
+        }
+
+        Map<String, Object> uploadReport = report.section("upload");
+        uploadReport.put("archives", uploads.size());
+        uploadReport.put("bytes", uploadBytes);
+        uploadReport.put("parts", partMillis.length);
+        uploadReport.put("retries", retries);
+        uploadReport.put("hashMillis", hashMillis);
+        uploadReport.put("partMillis", RunReport.percentiles(partMillis, 50, 90, 99));
+        uploadReport.put("metadataBytes", metadataBytes);
+
+        report.put("peakHeapBytes", RunReport.getPeakHeapBytes());
+
+        try {
+
+            report.append(reportPath);
+            _LOG.info("Appended run report to {}", reportPath);
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to write run report: {}", ioe.getMessage());
+
+        }
+    }
+
+    private static class ChangeEstimate
+    {
+
+        private long files, fileBytes, entryBytes;
+
+    }
+
+    public static void main(String[] args) {
+
+        if (!run(args, null)) {
+
+            System.exit(1);
+
+        }
+    }
+
+    /**
+     * Runs one backup, without exiting the JVM, so {@link BackupScheduler} can run many in the same JVM.
+     * @param args the command line arguments.
+     * @param diffPool a pool to walk source trees in, kept between runs, or null to create one for each root.
+     * @return false if the arguments are invalid.
+     */
+    static boolean run(String[] args, ForkJoinPool diffPool) {
+
+        BackupDirectory script = new BackupDirectory();
+        script.diffPool = diffPool;
+
+        try {
+
+            script.parseArgs(args);
+
+        } catch(IllegalArgumentException iae) {
+
+            _LOG.error(iae.getMessage());
+            return false;
+
+        }
+        script.tuning.log(_LOG);
+        RunReport.resetPeakHeap();
+
+        if (script.planFlag) {
+
+            script.calculateChanges();
+            script.plan();
+            return true;
+
+        }
+
+        // Connect to Glacier while the changes are found
+        script.prepareService = Executors.newSingleThreadExecutor();
+        script.prepareService.submit(GlacierConfiguration::warmUp);
+
+        try {
+
+            if (script.pipelineFlag) {
+
+                script.runPipeline();
+
+            } else {
+
+                script.calculateChanges();
+                script.createTarball();
+
+            }
+            script.uploadTar();
+            script.createIndexFile();
+
+            // Back up the tab and indexes
+            script.uploadMetadata();
+
+        } finally {
+
+            // Pools are shut down even if the backup failed, so their threads do not outlive it
+            script.prepareService.shutdown();
+            if (script.volumeUploadService != null) {
+
+                script.volumeUploadService.shutdown();
+
+            }
+        }
+        script.timings.log(_LOG);
+        script.writeReport();
 
-        // Back up the tab and indexes
-        //script.uploadMetadata();
+        return true;
 
     }
 }
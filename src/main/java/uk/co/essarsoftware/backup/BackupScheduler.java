@@ -0,0 +1,290 @@
+package uk.co.essarsoftware.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.essarsoftware.backup.upload.GlacierConfiguration;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs backups on schedules in one long-running JVM, so each backup does not pay for starting a JVM, loading the SDK,
+ * resolving credentials and compiling the hashing code again. Each line of the schedule file holds the five time
+ * fields of a crontab entry, followed by the arguments to {@link BackupDirectory}, separated by whitespace. Blank lines
+ * and lines starting with {@code #} are ignored. For example:
+ * <pre>
+ * # Home directories at 02:30 every day, the mail spool every six hours
+ * 30 2 * * *     --meta /var/backup/home --journal /home /var/backup/home-%d.tar
+ * 0 *&#47;6 * * *    --meta /var/backup/mail -o /var/mail /var/backup/mail.tar
+ * </pre>
+ * A backup refuses to replace the archive of an earlier run, so {@value #_RUN_TOKEN} in the archive name, the last
+ * argument, is replaced by the time each run starts. A line whose archive name has no {@value #_RUN_TOKEN} must
+ * overwrite ({@code -o}) or append to ({@code -a}) the archive, or it would fail on every run after the first.
+ * Backups run one at a time, so only one holds memory at once. A backup due while another runs starts when that
+ * finishes, and a backup still running at its next time skips it. The Glacier client, and the pool that walks source
+ * trees with the digests and buffers of its threads, are kept between backups; idle pool threads exit, and hashtabs
+ * are mapped rather than read onto the heap, so the JVM holds little between backups. The pool is sized by the
+ * configured {@link TuningProfile}, and replaces {@code --diff-threads}.
+ * <p>
+ * Usage: {@code BackupScheduler <schedule>}
+ * @author <steve.roberts/>
+ */
+public class BackupScheduler implements Runnable
+{
+
+    private static final Logger _LOG = LoggerFactory.getLogger(BackupScheduler.class);
+
+    // Wake at least this often, so a change to the clock delays no backup for long
+    private static final long _MAX_SLEEP_MS = 60000L;
+
+    private static final String _RUN_TOKEN = "%d";
+    private static final DateTimeFormatter _RUN_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final List<ScheduledBackup> backups;
+    private final ForkJoinPool diffPool = new ForkJoinPool(TuningProfile.fromConfiguration(0, 0).getDiffThreads());
+
+    public BackupScheduler(List<ScheduledBackup> backups) {
+
+        this.backups = backups;
+
+    }
+
+    /**
+     * Reads a schedule file.
+     * @param scheduleFile the file to read.
+     * @return the backups in the file.
+     * @throws IOException if the file cannot be read.
+     * @throws IllegalArgumentException if a line is invalid.
+     */
+    public static List<ScheduledBackup> readSchedule(Path scheduleFile) throws IOException {
+
+        List<ScheduledBackup> backups = new ArrayList<>();
+        List<String> lines = Files.readAllLines(scheduleFile, StandardCharsets.UTF_8);
+
+        for (int i = 0; i < lines.size(); i ++) {
+
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+
+                continue;
+
+            }
+
+            String[] fields = line.split("\\s+");
+            if (fields.length < 6) {
+
+                throw new IllegalArgumentException(String.format("Line %d: expected five schedule fields followed by backup arguments", i + 1));
+
+            }
+
+            try {
+
+                CronSchedule schedule = new CronSchedule(Arrays.copyOf(fields, 5));
+                if (schedule.next(LocalDateTime.now()) == null) {
+
+                    throw new IllegalArgumentException("the schedule matches no date");
+
+                }
+
+                String[] args = Arrays.copyOfRange(fields, 5, fields.length);
+                if (!args[args.length - 1].contains(_RUN_TOKEN) && !replacesArchive(args)) {
+
+                    throw new IllegalArgumentException(String.format("the archive name must contain %s, or the backup must overwrite (-o) or append (-a)", _RUN_TOKEN));
+
+                }
+
+                backups.add(new ScheduledBackup(i + 1, schedule, args));
+
+            } catch (IllegalArgumentException iae) {
+
+                throw new IllegalArgumentException(String.format("Line %d: %s", i + 1, iae.getMessage()));
+
+            }
+        }
+
+        if (backups.isEmpty()) {
+
+            throw new IllegalArgumentException("No backups are scheduled");
+
+        }
+
+        return backups;
+
+    }
+
+    private static boolean replacesArchive(String[] args) {
+
+        for (String arg : args) {
+
+            if ("-o".equals(arg) || "--overwrite".equals(arg) || "-a".equals(arg) || "--append".equals(arg)) {
+
+                return true;
+
+            }
+        }
+
+        return false;
+
+    }
+
+    private void runBackup(ScheduledBackup backup) {
+
+        String[] args = backup.getArgs(LocalDateTime.now());
+        _LOG.info("Starting backup on line {} to {}", backup.line, args[args.length - 1]);
+
+        try {
+
+            if (!BackupDirectory.run(args, diffPool)) {
+
+                _LOG.error("Backup on line {} has invalid arguments", backup.line);
+
+            }
+
+        } catch (RuntimeException re) {
+
+            // One failed backup must not stop the others
+            _LOG.error("Backup on line {} failed", backup.line, re);
+
+        }
+
+        _LOG.info("Finished backup on line {}", backup.line);
+
+    }
+
+    /**
+     * Runs backups as they fall due, until interrupted.
+     */
+    @Override
+    public void run() {
+
+        // Resolve credentials now, so the first backup does not wait for them
+        GlacierConfiguration.getClient();
+
+        backups.forEach(b -> b.schedule(ZonedDateTime.now()));
+
+        try {
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                ScheduledBackup next = null;
+                for (ScheduledBackup backup : backups) {
+
+                    if (backup.nextRun != null && (next == null || backup.nextRun.isBefore(next.nextRun))) {
+
+                        next = backup;
+
+                    }
+                }
+
+                if (next == null) {
+
+                    _LOG.warn("No backup is due to run again");
+                    return;
+
+                }
+
+                long wait = next.nextRun.toInstant().toEpochMilli() - System.currentTimeMillis();
+                if (wait > 0) {
+
+                    Thread.sleep(Math.min(wait, _MAX_SLEEP_MS));
+                    continue;
+
+                }
+
+                runBackup(next);
+                next.schedule(ZonedDateTime.now());
+                _LOG.info("Backup on line {} next runs at {}", next.line, next.nextRun);
+
+                // Collect the garbage of the backup now, so collectors that shrink the heap can return it while idle
+                System.gc();
+
+            }
+
+        } catch (InterruptedException ie) {
+
+            Thread.currentThread().interrupt();
+
+        } finally {
+
+            diffPool.shutdown();
+
+        }
+    }
+
+    /**
+     * A backup and the times it runs.
+     */
+    public static class ScheduledBackup
+    {
+
+        private final int line;
+        private final CronSchedule schedule;
+        private final String[] args;
+        private ZonedDateTime nextRun;
+
+        ScheduledBackup(int line, CronSchedule schedule, String[] args) {
+
+            this.line = line;
+            this.schedule = schedule;
+            this.args = args;
+
+        }
+
+        /**
+         * Gets the arguments for one run, with {@code %d} in the archive name replaced by its start time.
+         * @param start the time the run starts.
+         * @return the arguments.
+         */
+        private String[] getArgs(LocalDateTime start) {
+
+            String[] runArgs = args.clone();
+            runArgs[runArgs.length - 1] = runArgs[runArgs.length - 1].replace(_RUN_TOKEN, start.format(_RUN_FORMAT));
+            return runArgs;
+
+        }
+
+        private void schedule(ZonedDateTime after) {
+
+            LocalDateTime next = schedule.next(after.toLocalDateTime());
+            nextRun = (next == null ? null : next.atZone(ZoneId.systemDefault()));
+
+        }
+    }
+
+    public static void main(String[] args) {
+
+        if (args.length != 1) {
+
+            System.err.println("Usage: BackupScheduler <schedule>");
+            System.exit(1);
+
+        }
+
+        List<ScheduledBackup> backups;
+        try {
+
+            backups = readSchedule(Paths.get(args[0]));
+
+        } catch (IOException | IllegalArgumentException e) {
+
+            _LOG.error("Unable to read schedule: {}", e.getMessage());
+            System.exit(1);
+            return;
+
+        }
+
+        new BackupScheduler(backups).run();
+
+    }
+}
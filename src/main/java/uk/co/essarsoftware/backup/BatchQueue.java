@@ -0,0 +1,146 @@
+package uk.co.essarsoftware.backup;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of batches of changed files, passed from the diff of each root to the tarball. Producers block while
+ * the queue is full, so the diff runs no further ahead of the tarball than the queue allows. Each batch is keyed by
+ * the directory that its entry names are relative to. Iterated once, by the consumer, until closed and empty.
+ * @author <steve.roberts/>
+ */
+class BatchQueue implements Iterable<Map.Entry<Path, List<Path>>>
+{
+
+    private static final Map.Entry<Path, List<Path>> _END = new AbstractMap.SimpleImmutableEntry<>(null, Collections.emptyList());
+    private static final long _POLL_MILLIS = 100L;
+
+    private final BlockingQueue<Map.Entry<Path, List<Path>>> queue;
+    private Map.Entry<Path, List<Path>> next;
+    private volatile boolean aborted;
+
+    BatchQueue(int capacity) {
+
+        queue = new ArrayBlockingQueue<>(capacity);
+
+    }
+
+    /**
+     * Stops the producers, when the consumer has failed and will take nothing more. Producers blocked on a full queue
+     * are released.
+     */
+    void abort() {
+
+        aborted = true;
+        queue.clear();
+
+    }
+
+    /**
+     * Marks the end of the batches, once every producer has finished.
+     */
+    void close() {
+
+        if (!aborted) {
+
+            offer(_END);
+
+        }
+    }
+
+    /**
+     * Waits for the first batch, or for the queue to be closed empty.
+     * @return true if there is at least one batch.
+     */
+    boolean awaitFirst() {
+
+        return iterator().hasNext();
+
+    }
+
+    private void offer(Map.Entry<Path, List<Path>> batch) {
+
+        try {
+
+            while (!queue.offer(batch, _POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+
+                if (aborted) {
+
+                    throw new CancellationException("Archive was abandoned");
+
+                }
+            }
+
+        } catch (InterruptedException ie) {
+
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted waiting to queue changes");
+
+        }
+    }
+
+    /**
+     * Adds a batch, waiting while the queue is full.
+     * @param root the directory that entry names of the paths are relative to.
+     * @param paths the changed files.
+     * @throws CancellationException if the consumer has failed, or the thread is interrupted while waiting.
+     */
+    void put(Path root, List<Path> paths) {
+
+        if (aborted) {
+
+            throw new CancellationException("Archive was abandoned");
+
+        }
+
+        offer(new AbstractMap.SimpleImmutableEntry<>(root, paths));
+
+    }
+
+    @Override
+    public Iterator<Map.Entry<Path, List<Path>>> iterator() {
+
+        return new Iterator<Map.Entry<Path, List<Path>>>() {
+
+            @Override
+            public boolean hasNext() {
+
+                if (next == null) {
+
+                    try {
+
+                        next = queue.take();
+
+                    } catch (InterruptedException ie) {
+
+                        Thread.currentThread().interrupt();
+                        throw new CancellationException("Interrupted waiting for changes");
+
+                    }
+                }
+
+                return next != _END;
+
+            }
+
+            @Override
+            public Map.Entry<Path, List<Path>> next() {
+
+                if (!hasNext()) {
+
+                    throw new NoSuchElementException();
+
+                }
+
+                Map.Entry<Path, List<Path>> batch = next;
+                next = null;
+                return batch;
+
+            }
+        };
+    }
+}
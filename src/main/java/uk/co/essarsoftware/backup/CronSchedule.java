@@ -0,0 +1,166 @@
+package uk.co.essarsoftware.backup;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+
+/**
+ * The times given by the five fields of a crontab entry: minute, hour, day of month, month and day of week. Each field
+ * is {@code *}, a number or a range {@code a-b}, optionally followed by a step {@code /n}, or a comma separated list of
+ * these. Names of months and days are not supported. Sunday is day 0 or 7. As with cron, if both day fields are
+ * restricted a day matching either is used, otherwise a day must match both.
+ * @author <steve.roberts/>
+ */
+class CronSchedule
+{
+
+    // Long enough to reach 29 February from any day
+    private static final int _SEARCH_YEARS = 5;
+
+    private final BitSet minutes, hours, days, months, weekdays;
+    private final boolean anyDay, anyWeekday;
+
+    /**
+     * Creates a schedule from the fields of a crontab entry.
+     * @param fields the minute, hour, day of month, month and day of week fields.
+     * @throws IllegalArgumentException if there are not five fields, or a field is invalid.
+     */
+    CronSchedule(String... fields) {
+
+        if (fields.length != 5) {
+
+            throw new IllegalArgumentException("A schedule must have five fields");
+
+        }
+
+        minutes = parse(fields[0], 0, 59);
+        hours = parse(fields[1], 0, 23);
+        days = parse(fields[2], 1, 31);
+        months = parse(fields[3], 1, 12);
+        weekdays = parse(fields[4], 0, 7);
+        if (weekdays.get(7)) {
+
+            weekdays.set(0);
+
+        }
+
+        anyDay = fields[2].startsWith("*");
+        anyWeekday = fields[4].startsWith("*");
+
+    }
+
+    private static BitSet parse(String field, int min, int max) {
+
+        BitSet values = new BitSet(max + 1);
+
+        for (String part : field.split(",")) {
+
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+
+                step = parseValue(part.substring(slash + 1), 1, max);
+                part = part.substring(0, slash);
+
+            }
+
+            int from, to;
+            int dash = part.indexOf('-');
+            if ("*".equals(part)) {
+
+                from = min;
+                to = max;
+
+            } else if (dash >= 0) {
+
+                from = parseValue(part.substring(0, dash), min, max);
+                to = parseValue(part.substring(dash + 1), from, max);
+
+            } else {
+
+                from = parseValue(part, min, max);
+                to = (slash >= 0 ? max : from);
+
+            }
+
+            for (int i = from; i <= to; i += step) {
+
+                values.set(i);
+
+            }
+        }
+
+        return values;
+
+    }
+
+    private static int parseValue(String value, int min, int max) {
+
+        try {
+
+            int i = Integer.parseInt(value);
+            if (i >= min && i <= max) {
+
+                return i;
+
+            }
+
+        } catch (NumberFormatException nfe) {
+
+            // Reported below
+
+        }
+
+        throw new IllegalArgumentException(String.format("Schedule value %s must be a number from %d to %d", value, min, max));
+
+    }
+
+    private boolean matchesDay(LocalDate date) {
+
+        boolean day = days.get(date.getDayOfMonth());
+        boolean weekday = weekdays.get(date.getDayOfWeek().getValue() % 7);
+        return (anyDay || anyWeekday ? day && weekday : day || weekday);
+
+    }
+
+    /**
+     * Gets the first time in the schedule after a given time.
+     * @param after the time to start from.
+     * @return the next time, to the minute, or null if no date matches the schedule, such as 30 February.
+     */
+    LocalDateTime next(LocalDateTime after) {
+
+        LocalDateTime time = after.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+        LocalDateTime limit = time.plusYears(_SEARCH_YEARS);
+
+        // Move to the start of the next month, day or hour whenever the current one cannot match
+        while (time.isBefore(limit)) {
+
+            if (!months.get(time.getMonthValue())) {
+
+                time = time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1).plusMonths(1);
+
+            } else if (!matchesDay(time.toLocalDate())) {
+
+                time = time.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+
+            } else if (!hours.get(time.getHour())) {
+
+                time = time.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+
+            } else if (!minutes.get(time.getMinute())) {
+
+                time = time.plusMinutes(1);
+
+            } else {
+
+                return time;
+
+            }
+        }
+
+        return null;
+
+    }
+}
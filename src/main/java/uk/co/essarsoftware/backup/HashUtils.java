@@ -5,6 +5,7 @@ import uk.co.essarsoftware.backup.io.ChunkedInputStream;
 import uk.co.essarsoftware.backup.upload.PartTree;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -48,12 +49,136 @@ public class HashUtils
 
     }
 
+    /**
+     * Calculate the hash of part of an array of bytes.
+     * @param bytes the array containing the data to hash.
+     * @param offset the offset of the data in the array.
+     * @param length the number of bytes to hash.
+     * @return a byte array containing the hash result.
+     */
+    public byte[] calculateHashBytes(byte[] bytes, int offset, int length) {
+
+        digest.update(bytes, offset, length);
+        return digest.digest();
+
+    }
+
+    /**
+     * Adds bytes to the hash being calculated, to be completed by {@link #calculateHashString()}.
+     * @param bytes the data to hash.
+     */
+    public void update(byte[] bytes) {
+
+        digest.update(bytes);
+
+    }
+
+    /**
+     * Adds a single byte to the hash being calculated, to be completed by {@link #calculateHashString()}.
+     * @param b the byte to hash.
+     */
+    public void update(byte b) {
+
+        digest.update(b);
+
+    }
+
+    /**
+     * Adds the ASCII decimal representation of a number to the hash being calculated, without creating a string. The
+     * bytes are the same as those of {@code Long.toString(value)}.
+     * @param value the number to hash.
+     */
+    public void updateDecimal(long value) {
+
+        byte[] digits = new byte[20];
+        int position = digits.length;
+
+        if (value < 0) {
+
+            digest.update((byte) '-');
+
+        } else {
+
+            // Work with negative numbers, as Long.MIN_VALUE has no positive counterpart
+            value = -value;
+
+        }
+
+        do {
+
+            digits[--position] = (byte) ('0' - (value % 10));
+            value /= 10;
+
+        } while (value != 0);
+
+        digest.update(digits, position, digits.length - position);
+
+    }
+
+    /**
+     * Completes the hash of the data added by the update methods.
+     * @return a byte array containing the hash result.
+     */
+    public byte[] calculateHashBytes() {
+
+        return digest.digest();
+
+    }
+
+    /**
+     * Completes the hash of the data added by the update methods and return as a hex-encoded string.
+     * @return a String containing the hex-encoded representation of the hash result.
+     */
+    public String calculateHashString() {
+
+        return Hex.encodeHexString(digest.digest());
+
+    }
+
+    /**
+     * Calculate the hash of all data consumed from the provided stream.
+     * @param in the stream to hash, which is read until exhausted but not closed.
+     * @param buf a buffer to read the stream through.
+     * @return a byte array containing the hash result.
+     * @throws IOException if the stream cannot be read.
+     */
+    public byte[] calculateHashBytes(InputStream in, byte[] buf) throws IOException {
+
+        try {
+
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+
+                digest.update(buf, 0, len);
+
+            }
+
+        } catch (IOException ioe) {
+
+            digest.reset();
+            throw ioe;
+
+        }
+
+        return digest.digest();
+
+    }
+
+    /**
+     * Discards any data added by the update methods.
+     */
+    public void reset() {
+
+        digest.reset();
+
+    }
+
     /**
      * Calculate the tree hash from a list of leaf hashes.
      * @param hashes a List of hashes calculated from a set of blocks.
      * @return a byte array containing the has result.
      */
-    private byte[] calculateTreeHashFromHashes(List<byte[]> hashes) {
+    public byte[] calculateTreeHashFromHashes(List<byte[]> hashes) {
 
         LinkedList<byte[]> leaves = new LinkedList<>(hashes);
 
@@ -87,7 +212,7 @@ public class HashUtils
      * @param bytes the data to hash.
      * @return a String containing the hex-encoded representation of the hash result.
      */
-    private String calculateHashString(byte[] bytes) {
+    public String calculateHashString(byte[] bytes) {
 
         return Hex.encodeHexString(calculateHashBytes(bytes));
 
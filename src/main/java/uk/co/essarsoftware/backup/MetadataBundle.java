@@ -0,0 +1,146 @@
+package uk.co.essarsoftware.backup;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The hashtabs and indexes of a backup, collected into one gzipped tar so they can be uploaded as a single archive.
+ * The content hash covers the name and content of each file, but not their mtimes, so a bundle of unchanged files has
+ * the same hash from run to run and need not be uploaded again.
+ * @author <steve.roberts/>
+ */
+class MetadataBundle
+{
+
+    private static final int _BUFFER_SIZE = 65536;
+
+    private final Map<String, Path> files = new LinkedHashMap<>();
+    private final Map<String, byte[]> texts = new LinkedHashMap<>();
+
+    /**
+     * Adds a file to the bundle, if it exists.
+     * @param name the entry name of the file in the bundle.
+     * @param file the file.
+     * @throws IllegalArgumentException if the bundle already has an entry of the name.
+     */
+    void add(String name, Path file) {
+
+        if (Files.isRegularFile(file)) {
+
+            checkName(name);
+            files.put(name, file);
+
+        }
+    }
+
+    /**
+     * Adds text to the bundle, as a file of its own.
+     * @param name the entry name of the text in the bundle.
+     * @param text the text, written as UTF-8.
+     * @throws IllegalArgumentException if the bundle already has an entry of the name.
+     */
+    void add(String name, String text) {
+
+        checkName(name);
+        texts.put(name, text.getBytes(StandardCharsets.UTF_8));
+
+    }
+
+    // A second entry of a name would replace the first, losing a file that restores may depend on
+    private void checkName(String name) {
+
+        if (files.containsKey(name) || texts.containsKey(name)) {
+
+            throw new IllegalArgumentException("Metadata bundle already has an entry named " + name);
+
+        }
+    }
+
+    /**
+     * Gets the number of files in the bundle.
+     * @return the number of files.
+     */
+    int getFileCount() {
+
+        return files.size() + texts.size();
+
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the name and content of each file, in the order they were added.
+     * @return the hex-encoded hash.
+     * @throws IOException if a file cannot be read.
+     */
+    String calculateContentHash() throws IOException {
+
+        HashUtils bundleHash = HashUtils.createSHA256Instance();
+        HashUtils fileHash = HashUtils.createSHA256Instance();
+        byte[] buf = new byte[_BUFFER_SIZE];
+
+        for (Map.Entry<String, Path> file : files.entrySet()) {
+
+            bundleHash.update(file.getKey().getBytes(StandardCharsets.UTF_8));
+            bundleHash.update((byte) 0);
+
+            try (InputStream in = Files.newInputStream(file.getValue())) {
+
+                bundleHash.update(fileHash.calculateHashBytes(in, buf));
+
+            }
+        }
+        for (Map.Entry<String, byte[]> text : texts.entrySet()) {
+
+            bundleHash.update(text.getKey().getBytes(StandardCharsets.UTF_8));
+            bundleHash.update((byte) 0);
+            bundleHash.update(fileHash.calculateHashBytes(text.getValue(), 0, text.getValue().length));
+
+        }
+
+        return Hex.encodeHexString(bundleHash.calculateHashBytes());
+
+    }
+
+    /**
+     * Writes the bundle.
+     * @param bundleFile the file to write, replaced if it exists.
+     * @throws IOException if the bundle cannot be written, or a file cannot be read.
+     */
+    void write(Path bundleFile) throws IOException {
+
+        try (TarArchiveOutputStream out = new TarArchiveOutputStream(new GZIPOutputStream(new BufferedOutputStream(
+                new FileOutputStream(bundleFile.toFile()), _BUFFER_SIZE), _BUFFER_SIZE))) {
+
+            out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            out.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+            for (Map.Entry<String, Path> file : files.entrySet()) {
+
+                TarArchiveEntry entry = new TarArchiveEntry(file.getKey());
+                entry.setSize(Files.size(file.getValue()));
+                entry.setModTime(Files.getLastModifiedTime(file.getValue()).toMillis());
+                out.putArchiveEntry(entry);
+                Files.copy(file.getValue(), out);
+                out.closeArchiveEntry();
+
+            }
+            for (Map.Entry<String, byte[]> text : texts.entrySet()) {
+
+                TarArchiveEntry entry = new TarArchiveEntry(text.getKey());
+                entry.setSize(text.getValue().length);
+                out.putArchiveEntry(entry);
+                out.write(text.getValue());
+                out.closeArchiveEntry();
+
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package uk.co.essarsoftware.backup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A machine-readable summary of a backup, written as one line of JSON so that reports of successive runs can be
+ * appended to the same file. Sections and fields are added in order, and written as JSON objects, arrays, numbers,
+ * booleans and strings.
+ * @author <steve.roberts/>
+ */
+class RunReport
+{
+
+    private final Map<String, Object> report = new LinkedHashMap<>();
+
+    /**
+     * Gets a section of the report, adding it if it does not exist.
+     * @param name the name of the section.
+     * @return the fields of the section, to add to.
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, Object> section(String name) {
+
+        return (Map<String, Object>) report.computeIfAbsent(name, n -> new LinkedHashMap<String, Object>());
+
+    }
+
+    /**
+     * Adds a top-level field.
+     * @param name the name of the field.
+     * @param value the value: a map, collection, array of longs, number, boolean, string or null.
+     */
+    void put(String name, Object value) {
+
+        report.put(name, value);
+
+    }
+
+    /**
+     * Gets the peak heap use since the peaks were last reset, summed across the heap pools.
+     * @return the peak in bytes.
+     */
+    static long getPeakHeapBytes() {
+
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+
+                peak += pool.getPeakUsage().getUsed();
+
+            }
+        }
+
+        return peak;
+
+    }
+
+    /**
+     * Resets the peak heap use, so a run in a JVM that has run others reports its own peak.
+     */
+    static void resetPeakHeap() {
+
+        ManagementFactory.getMemoryPoolMXBeans().stream().filter(p -> p.getType() == MemoryType.HEAP).forEach(MemoryPoolMXBean::resetPeakUsage);
+
+    }
+
+    /**
+     * Gets percentiles of a set of values by the nearest-rank method.
+     * @param values the values.
+     * @param percentiles the percentiles to get, from 1 to 100.
+     * @return each percentile keyed by {@code p<n>}, and the maximum, or an empty map if there are no values.
+     */
+    static Map<String, Object> percentiles(long[] values, int... percentiles) {
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        if (values.length == 0) {
+
+            return result;
+
+        }
+
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (int p : percentiles) {
+
+            int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+            result.put("p" + p, sorted[Math.max(0, rank - 1)]);
+
+        }
+        result.put("max", sorted[sorted.length - 1]);
+
+        return result;
+
+    }
+
+    /**
+     * Appends the report to a file, as one line.
+     * @param file the file to append to, created if it does not exist.
+     * @throws IOException if the file cannot be written.
+     */
+    void append(Path file) throws IOException {
+
+        Files.write(file, (toString() + System.lineSeparator()).getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder json = new StringBuilder();
+        write(json, report);
+        return json.toString();
+
+    }
+
+    private static void write(StringBuilder json, Object value) {
+
+        if (value instanceof Map) {
+
+            json.append('{');
+            Iterator<? extends Map.Entry<?, ?>> fields = ((Map<?, ?>) value).entrySet().iterator();
+            while (fields.hasNext()) {
+
+                Map.Entry<?, ?> field = fields.next();
+                writeString(json, String.valueOf(field.getKey()));
+                json.append(':');
+                write(json, field.getValue());
+                json.append(fields.hasNext() ? "," : "");
+
+            }
+            json.append('}');
+
+        } else if (value instanceof Collection || value instanceof long[]) {
+
+            Iterator<?> items = (value instanceof long[] ? Arrays.stream((long[]) value).boxed().iterator() : ((Collection<?>) value).iterator());
+            json.append('[');
+            while (items.hasNext()) {
+
+                write(json, items.next());
+                json.append(items.hasNext() ? "," : "");
+
+            }
+            json.append(']');
+
+        } else if (value instanceof Number || value instanceof Boolean) {
+
+            json.append(value);
+
+        } else if (value == null) {
+
+            json.append("null");
+
+        } else {
+
+            writeString(json, value.toString());
+
+        }
+    }
+
+    private static void writeString(StringBuilder json, String text) {
+
+        json.append('"');
+        for (char c : text.toCharArray()) {
+
+            if (c == '"' || c == '\\') {
+
+                json.append('\\').append(c);
+
+            } else if (c < 0x20) {
+
+                json.append(String.format("\\u%04x", (int) c));
+
+            } else {
+
+                json.append(c);
+
+            }
+        }
+        json.append('"');
+
+    }
+}
@@ -0,0 +1,88 @@
+package uk.co.essarsoftware.backup;
+
+import org.slf4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records when each stage of a backup starts and finishes, relative to the start of the run. Stages may overlap, so
+ * the breakdown shows how far the run is from taking only as long as its slowest stage.
+ * @author <steve.roberts/>
+ */
+class StageTimings
+{
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, long[]> stages = new LinkedHashMap<>();
+
+    private long now() {
+
+        return System.nanoTime() - startNanos;
+
+    }
+
+    /**
+     * Records the start of a stage, unless it has already started.
+     * @param stage the name of the stage.
+     */
+    synchronized void start(String stage) {
+
+        stages.putIfAbsent(stage, new long[] { now(), -1 });
+
+    }
+
+    /**
+     * Records the end of a stage. Ignored if the stage has not started.
+     * @param stage the name of the stage.
+     */
+    synchronized void stop(String stage) {
+
+        long[] times = stages.get(stage);
+        if (times != null) {
+
+            times[1] = now();
+
+        }
+    }
+
+    /**
+     * Gets the duration of each stage so far, in the order they started. Stages still running are measured to now.
+     * @return the duration of each stage in milliseconds.
+     */
+    synchronized Map<String, Long> getDurations() {
+
+        long end = now();
+        Map<String, Long> durations = new LinkedHashMap<>();
+        stages.forEach((stage, times) -> durations.put(stage, ((times[1] < 0 ? end : times[1]) - times[0]) / 1000000));
+        return durations;
+
+    }
+
+    /**
+     * Gets the time since the run started.
+     * @return the time in milliseconds.
+     */
+    long getTotalMillis() {
+
+        return now() / 1000000;
+
+    }
+
+    /**
+     * Logs the start, end and duration of each stage in milliseconds, and of the whole run so far.
+     * @param log the logger to write to.
+     */
+    synchronized void log(Logger log) {
+
+        long end = now();
+        stages.forEach((stage, times) -> {
+
+            long stop = (times[1] < 0 ? end : times[1]);
+            log.info(String.format("%-8s %,10dms (%,dms to %,dms)", stage, (stop - times[0]) / 1000000, times[0] / 1000000, stop / 1000000));
+
+        });
+        log.info(String.format("%-8s %,10dms", "total", end / 1000000));
+
+    }
+}
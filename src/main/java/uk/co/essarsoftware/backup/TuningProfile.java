@@ -0,0 +1,290 @@
+package uk.co.essarsoftware.backup;
+
+import org.slf4j.Logger;
+import uk.co.essarsoftware.backup.upload.GlacierConfiguration;
+
+/**
+ * Buffer sizes, pool sizes and concurrency limits of the tar, hash and upload subsystems, all derived from a memory
+ * budget and a share of the processors, so the memory a backup uses is bounded by the budget. Half the budget is
+ * given to upload parts, which each worker holds twice while sending, as the SDK copies each part; a sixteenth to the
+ * read buffers of the walker threads; and a little to tar buffers and the pipeline queue. The rest is left for the
+ * hashtab spools, indexes and the lists of changed files.
+ * <p>
+ * Chunk sizes of the chunk store are not derived, as they decide where chunks are split, so changing them would stop
+ * chunks matching those already stored.
+ * @author <steve.roberts/>
+ */
+public class TuningProfile
+{
+
+    private static final int _1KB = 1024;
+    private static final int _1MB = 1048576;
+
+    // Parts used when the budget allows, and the archive size at which larger parts are used
+    private static final int _SMALL_PART_SIZE = 8 * _1MB;
+    private static final int _LARGE_PART_SIZE = 32 * _1MB;
+    private static final long _LARGE_ARCHIVE_SIZE = 128L * _1MB;
+    private static final long _MEDIUM_ARCHIVE_SIZE = 16L * _1MB;
+
+    // Glacier accepts at most this many parts in an archive
+    private static final int _MAX_PARTS = 10000;
+
+    // Rough size of a queued batch of changed files
+    private static final int _BATCH_SIZE = 4 * _1KB;
+
+    private final long memoryBudget;
+    private final double cpuShare;
+    private final int cpus, diffThreads, hashBufferSize, pipelineBatches, tarBufferSize, tarOutputBufferSize, volumeUploads;
+
+    /**
+     * Creates a profile.
+     * @param memoryBudget the memory the subsystems may use, in bytes.
+     * @param cpuShare the share of the processors to use, greater than 0 and at most 1.
+     * @throws IllegalArgumentException if the budget is under 16 MB, or the share is out of range.
+     */
+    public TuningProfile(long memoryBudget, double cpuShare) {
+
+        if (memoryBudget < 16 * _1MB) {
+
+            throw new IllegalArgumentException("Memory budget must be at least 16MB");
+
+        }
+        if (!(cpuShare > 0 && cpuShare <= 1)) {
+
+            throw new IllegalArgumentException("CPU share must be greater than 0 and at most 1");
+
+        }
+
+        this.memoryBudget = memoryBudget;
+        this.cpuShare = cpuShare;
+
+        cpus = (int) Math.max(1, Math.round(Runtime.getRuntime().availableProcessors() * cpuShare));
+
+        // Directory listing is bound by filesystem latency rather than CPU, so allow more threads than processors
+        diffThreads = Math.max(4, cpus * 2);
+        hashBufferSize = fit(memoryBudget / 16 / diffThreads, 4 * _1KB, 64 * _1KB);
+
+        tarBufferSize = fit(memoryBudget / 512, 8 * _1KB, 64 * _1KB);
+        tarOutputBufferSize = fit(memoryBudget / 64, 64 * _1KB, _1MB);
+        pipelineBatches = (int) Math.max(16, Math.min(1024, memoryBudget / 64 / _BATCH_SIZE));
+
+        // Upload a volume while the next is written only if both can have a worker with a large part
+        volumeUploads = (getUploadBudget() >= 2 * 2L * _LARGE_PART_SIZE ? 2 : 1);
+
+    }
+
+    /**
+     * Gets the default profile: a budget of three quarters of the maximum heap, and every processor.
+     * @return the default profile.
+     */
+    public static TuningProfile getDefault() {
+
+        return new TuningProfile(getDefaultBudget(), 1.0);
+
+    }
+
+    private static long getDefaultBudget() {
+
+        return Runtime.getRuntime().maxMemory() / 4 * 3;
+
+    }
+
+    /**
+     * Gets the profile configured by {@code tuning.memory.mb} and {@code tuning.cpu.share} in
+     * {@link GlacierConfiguration}, using the default for either that is not set.
+     * @param memoryBudgetMB a budget in MB in place of the configured one, or 0 to use that.
+     * @param cpuShare a share in place of the configured one, or 0 to use that.
+     * @return the profile.
+     * @throws IllegalArgumentException if a configured value is invalid.
+     */
+    public static TuningProfile fromConfiguration(long memoryBudgetMB, double cpuShare) {
+
+        try {
+
+            if (memoryBudgetMB == 0 && GlacierConfiguration.memoryBudgetMB != null) {
+
+                memoryBudgetMB = Long.parseLong(GlacierConfiguration.memoryBudgetMB.trim());
+
+            }
+            if (cpuShare == 0 && GlacierConfiguration.cpuShare != null) {
+
+                cpuShare = Double.parseDouble(GlacierConfiguration.cpuShare.trim());
+
+            }
+
+        } catch (NumberFormatException nfe) {
+
+            throw new IllegalArgumentException("Invalid tuning configuration: " + nfe.getMessage());
+
+        }
+
+        return new TuningProfile(memoryBudgetMB == 0 ? getDefaultBudget() : memoryBudgetMB * _1MB, cpuShare == 0 ? 1.0 : cpuShare);
+
+    }
+
+    /**
+     * Gets the largest power of two no greater than a size, within limits.
+     */
+    private static int fit(long size, int min, int max) {
+
+        return (int) Math.max(min, Math.min(max, Long.highestOneBit(Math.max(1, size))));
+
+    }
+
+    private long getUploadBudget() {
+
+        return memoryBudget / 2;
+
+    }
+
+    /**
+     * Gets the size of the parts an archive is uploaded in: 32 MB parts for archives over 128 MB, otherwise 8 MB,
+     * halved until a worker for each concurrent upload fits the budget. Parts are never so small that the archive
+     * would need more parts than Glacier accepts, even once encrypted.
+     * @param size the size of the archive.
+     * @return the part size in bytes.
+     */
+    public int getPartSize(long size) {
+
+        return getPartSize(size > _LARGE_ARCHIVE_SIZE ? _LARGE_PART_SIZE : _SMALL_PART_SIZE, size);
+
+    }
+
+    private int getPartSize(int preferred, long size) {
+
+        int partSize = preferred;
+        while (partSize > _1MB && 2L * partSize * volumeUploads > getUploadBudget()) {
+
+            partSize /= 2;
+
+        }
+
+        // Glacier requires a power of two number of MB; encryption adds 28 bytes to each MB
+        long needed = (size + size / 32768 + _MAX_PARTS - 1) / _MAX_PARTS;
+        while (partSize < needed && partSize < (1 << 30)) {
+
+            partSize *= 2;
+
+        }
+
+        return partSize;
+
+    }
+
+    /**
+     * Gets the number of workers an archive is uploaded with: 8 for archives over 128 MB, 4 for those over 16 MB,
+     * otherwise 2, but no more than two per processor, nor more than the budget holds parts for.
+     * @param size the size of the archive.
+     * @return the number of workers.
+     */
+    public int getUploadThreads(long size) {
+
+        int preferred = (size > _LARGE_ARCHIVE_SIZE ? 8 : size > _MEDIUM_ARCHIVE_SIZE ? 4 : 2);
+        return getUploadThreads(preferred, getPartSize(size));
+
+    }
+
+    private int getUploadThreads(int preferred, int partSize) {
+
+        long fits = getUploadBudget() / volumeUploads / (2L * partSize);
+        return (int) Math.max(1, Math.min(Math.min(preferred, cpus * 2), fits));
+
+    }
+
+    /**
+     * Gets the size of the parts of an archive uploaded as it is written. The final size is not known, so the parts
+     * are as large as the budget allows, up to 32 MB. An archive needing more parts than Glacier accepts, over 312 GB
+     * with 32 MB parts, is uploaded again once written.
+     * @return the part size in bytes.
+     */
+    public int getStreamedPartSize() {
+
+        return getPartSize(_LARGE_PART_SIZE, 0);
+
+    }
+
+    /**
+     * Gets the number of workers an archive uploaded as it is written is uploaded with.
+     * @return the number of workers.
+     */
+    public int getStreamedUploadThreads() {
+
+        return getUploadThreads(4, getStreamedPartSize());
+
+    }
+
+    /**
+     * Gets the number of volumes or packs uploaded at once.
+     * @return the number of concurrent uploads.
+     */
+    public int getVolumeUploads() {
+
+        return volumeUploads;
+
+    }
+
+    /**
+     * Gets the number of directories listed at once when checking a tree for changes.
+     * @return the number of walker threads.
+     */
+    public int getDiffThreads() {
+
+        return diffThreads;
+
+    }
+
+    /**
+     * Gets the size of the buffer each walker thread reads files into to hash their content.
+     * @return the buffer size in bytes.
+     */
+    public int getHashBufferSize() {
+
+        return hashBufferSize;
+
+    }
+
+    /**
+     * Gets the size of the buffer files are copied into the tarball through.
+     * @return the buffer size in bytes.
+     */
+    public int getTarBufferSize() {
+
+        return tarBufferSize;
+
+    }
+
+    /**
+     * Gets the size of the buffer the tarball is written through.
+     * @return the buffer size in bytes.
+     */
+    public int getTarOutputBufferSize() {
+
+        return tarOutputBufferSize;
+
+    }
+
+    /**
+     * Gets the number of batches of changed files that may wait for the tarball when pipelined.
+     * @return the queue capacity.
+     */
+    public int getPipelineBatches() {
+
+        return pipelineBatches;
+
+    }
+
+    /**
+     * Logs the budget and the settings derived from it.
+     * @param log the logger to write to.
+     */
+    public void log(Logger log) {
+
+        log.info(String.format("Tuning: %dMB budget, %d of %d processors", memoryBudget / _1MB, cpus, Runtime.getRuntime().availableProcessors()));
+        log.info(String.format("Tuning: diff %d threads with %dKB buffers; tar %dKB buffer, %dKB output; pipeline %d batches",
+                diffThreads, hashBufferSize / _1KB, tarBufferSize / _1KB, tarOutputBufferSize / _1KB, pipelineBatches));
+        log.info(String.format("Tuning: upload %dMB parts with up to %d workers, %d at once; streamed %dMB parts with %d workers",
+                getPartSize(_LARGE_ARCHIVE_SIZE + 1) / _1MB, getUploadThreads(_LARGE_ARCHIVE_SIZE + 1), volumeUploads,
+                getStreamedPartSize() / _1MB, getStreamedUploadThreads()));
+
+    }
+}
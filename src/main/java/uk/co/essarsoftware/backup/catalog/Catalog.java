@@ -0,0 +1,545 @@
+package uk.co.essarsoftware.backup.catalog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.essarsoftware.backup.tar.TarballEntry;
+import uk.co.essarsoftware.backup.tar.TarballIndexReader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Local catalog of every path stored by previous backups, answering which archive holds a path without reading each
+ * backup's index. Each binary tarball index added to the catalog is written as a new sorted segment; once there are
+ * more than {@value #_MAX_SEGMENTS} segments the smallest are merged into one. A manifest file names the live
+ * segments and is replaced atomically, so an interrupted ingest or compaction leaves the previous catalog intact.
+ * @author <steve.roberts/>
+ */
+public class Catalog implements Closeable
+{
+
+    private static final Logger _LOG = LoggerFactory.getLogger(Catalog.class);
+
+    public static final String MANIFEST = "catalog.manifest";
+
+    private static final int _MAX_SEGMENTS = 8;
+    private static final String _INDEX_SUFFIX = ".idx";
+
+    private final Path directory;
+    private final List<CatalogSegment> segments = new ArrayList<>();
+    private long nextVersion, nextSegment;
+
+    /**
+     * Opens a catalog, creating the directory if needed.
+     * @param directory the catalog directory.
+     * @throws IOException if the manifest or a segment cannot be read.
+     */
+    public Catalog(Path directory) throws IOException {
+
+        this.directory = directory;
+
+        Files.createDirectories(directory);
+        load();
+
+    }
+
+    private void load() throws IOException {
+
+        Path manifest = directory.resolve(MANIFEST);
+        if (!Files.exists(manifest)) {
+
+            // New catalog
+            return;
+
+        }
+
+        try (BufferedReader r = new BufferedReader(new FileReader(manifest.toFile()))) {
+
+            int lineNumber = 0;
+            String line = r.readLine();
+            while (line != null) {
+
+                lineNumber++;
+
+                String[] parts = line.split("\\s+");
+                if (parts.length == 3 && "N".equals(parts[0])) {
+
+                    nextVersion = Long.parseLong(parts[1]);
+                    nextSegment = Long.parseLong(parts[2]);
+
+                } else if (parts.length == 2 && "S".equals(parts[0])) {
+
+                    segments.add(new CatalogSegment(directory.resolve(parts[1])));
+
+                } else {
+
+                    _LOG.warn("Catalog: Ignoring invalid line {} in manifest", lineNumber);
+
+                }
+
+                line = r.readLine();
+
+            }
+
+        } catch (NumberFormatException nfe) {
+
+            throw new IOException("Invalid catalog manifest: " + manifest, nfe);
+
+        }
+    }
+
+    private void save() throws IOException {
+
+        Path manifest = directory.resolve(MANIFEST);
+        Path tmp = directory.resolve(MANIFEST + ".tmp");
+
+        try (PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(tmp.toFile())))) {
+
+            w.println(String.format("N %d %d", nextVersion, nextSegment));
+            segments.forEach(s -> w.println(String.format("S %s", s.getFile().getFileName())));
+
+        }
+
+        Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    }
+
+    private Path newSegmentFile() {
+
+        return directory.resolve(String.format("segment-%08d.cat", nextSegment++));
+
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        for (CatalogSegment segment : segments) {
+
+            segment.close();
+
+        }
+        segments.clear();
+
+    }
+
+    /**
+     * Merges segments until no more than the given number remain, or no further merge fits within a single segment.
+     * Segments are merged smallest first, so recent small ingests are folded together before being merged into the
+     * large segments left by earlier compactions.
+     * @param maxSegments the number of segments to leave.
+     * @throws IOException if a merged segment cannot be written.
+     */
+    private void compact(int maxSegments) throws IOException {
+
+        while (segments.size() > maxSegments) {
+
+            List<CatalogSegment> bySize = new ArrayList<>(segments);
+            bySize.sort(Comparator.comparingInt(CatalogSegment::getEntryCount));
+
+            // Take the smallest segments whose merge still fits in one segment
+            List<CatalogSegment> merge = new ArrayList<>();
+            long entries = 0, namesLength = 0;
+            for (CatalogSegment segment : bySize) {
+
+                if (entries + segment.getEntryCount() > CatalogSegment.MAX_ENTRIES
+                        || namesLength + segment.getNamesLength() > Integer.MAX_VALUE) {
+
+                    break;
+
+                }
+
+                merge.add(segment);
+                entries += segment.getEntryCount();
+                namesLength += segment.getNamesLength();
+
+                if (segments.size() - merge.size() + 1 <= maxSegments) {
+
+                    break;
+
+                }
+            }
+
+            if (merge.size() < 2) {
+
+                _LOG.debug("Catalog: No further segments can be merged");
+                return;
+
+            }
+
+            merge(merge);
+
+        }
+    }
+
+    /**
+     * Compacts the catalog into as few segments as possible.
+     * @throws IOException if a merged segment cannot be written.
+     */
+    public void compact() throws IOException {
+
+        compact(1);
+
+    }
+
+    /**
+     * Finds every version of a path.
+     * @param path the path, as named in the tarball.
+     * @return a List of entries, newest version first.
+     */
+    public List<CatalogEntry> find(String path) {
+
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        List<CatalogEntry> found = new ArrayList<>();
+
+        for (CatalogSegment segment : segments) {
+
+            for (int record = segment.lowerBound(key); record < segment.getEntryCount() && segment.equalsName(record, key); record++) {
+
+                found.add(segment.getEntry(record));
+
+            }
+        }
+
+        found.sort(Comparator.comparingLong(CatalogEntry::getVersion).reversed());
+        return found;
+
+    }
+
+    /**
+     * Finds the latest version of a path.
+     * @param path the path, as named in the tarball.
+     * @return the entry from the most recent backup holding the path, or null if no backup holds it.
+     */
+    public CatalogEntry findLatest(String path) {
+
+        List<CatalogEntry> found = find(path);
+        return found.isEmpty() ? null : found.get(0);
+
+    }
+
+    /**
+     * Finds every version of every path starting with a prefix, such as all the files under a directory.
+     * @param prefix the path prefix.
+     * @return a List of entries in path order, newest version first within each path.
+     */
+    public List<CatalogEntry> findPrefix(String prefix) {
+
+        byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        List<CatalogEntry> found = new ArrayList<>();
+
+        for (CatalogSegment segment : segments) {
+
+            for (int record = segment.lowerBound(key); record < segment.getEntryCount() && segment.hasPrefix(record, key); record++) {
+
+                found.add(segment.getEntry(record));
+
+            }
+        }
+
+        found.sort(Comparator.comparing(CatalogEntry::getPath).thenComparing(Comparator.comparingLong(CatalogEntry::getVersion).reversed()));
+        return found;
+
+    }
+
+    public long getEntryCount() {
+
+        long count = 0;
+        for (CatalogSegment segment : segments) {
+
+            count += segment.getEntryCount();
+
+        }
+
+        return count;
+
+    }
+
+    public int getSegmentCount() {
+
+        return segments.size();
+
+    }
+
+    /**
+     * Adds a backup to the catalog from its binary tarball index. The backup is given the next version, and its
+     * entries are written as a new segment without loading the index: the index is already in path order.
+     * @param binaryIndexFile the binary tarball index.
+     * @return the number of entries added.
+     * @throws IOException if the index cannot be read or the segment cannot be written.
+     */
+    public int ingest(Path binaryIndexFile) throws IOException {
+
+        String backupName = binaryIndexFile.getFileName().toString();
+        if (backupName.endsWith(_INDEX_SUFFIX)) {
+
+            backupName = backupName.substring(0, backupName.length() - _INDEX_SUFFIX.length());
+
+        }
+
+        long version = nextVersion;
+        long ingestTime = System.currentTimeMillis();
+        List<CatalogSegment> added = new ArrayList<>();
+
+        try (TarballIndexReader index = new TarballIndexReader(binaryIndexFile)) {
+
+            List<CatalogSegment.Archive> archives = new ArrayList<>();
+            for (int v = 0; v < index.getVolumeCount(); v++) {
+
+                archives.add(new CatalogSegment.Archive(version, ingestTime, backupName, index.getVolumeName(v),
+                        index.getArchiveId(v), index.getArchiveLength(v)));
+
+            }
+
+            // Roll over to a further segment if the index is larger than a segment can hold
+            int record = 0;
+            while (record < index.getEntryCount() || added.isEmpty()) {
+
+                Path segmentFile = newSegmentFile();
+                try (CatalogSegment.Writer out = new CatalogSegment.Writer(segmentFile, archives)) {
+
+                    for (; record < index.getEntryCount() && !out.isFull(); record++) {
+
+                        TarballEntry e = index.getEntry(record);
+                        out.add(e.getName().getBytes(StandardCharsets.UTF_8), e.getVolume(), e.getDataOffset(), e.getSize(),
+                                e.getModTime(), e.getRangeStart(), e.getRangeEnd(index.getArchiveLength(e.getVolume())));
+
+                    }
+                }
+                added.add(new CatalogSegment(segmentFile));
+
+            }
+
+        } catch (IOException ioe) {
+
+            for (CatalogSegment segment : added) {
+
+                segment.close();
+                Files.deleteIfExists(segment.getFile());
+
+            }
+            throw ioe;
+
+        }
+
+        nextVersion = version + 1;
+        segments.addAll(added);
+        save();
+
+        int count = added.stream().mapToInt(CatalogSegment::getEntryCount).sum();
+        _LOG.info("Catalog: Added {} entries from {} as version {}", count, backupName, version);
+
+        compact(_MAX_SEGMENTS);
+        return count;
+
+    }
+
+    /**
+     * Lists the immediate children of a directory across every backup. Each child is found with one search, skipping
+     * past every path below it, so the cost depends on the number of children rather than the number of paths.
+     * @param dir the directory path, with or without a trailing slash. An empty String lists the top level.
+     * @return a sorted Set of child names; directories end with a slash.
+     */
+    public SortedSet<String> listDirectory(String dir) {
+
+        String prefix = (dir.isEmpty() || dir.endsWith("/")) ? dir : dir + "/";
+        byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        SortedSet<String> children = new TreeSet<>();
+
+        for (CatalogSegment segment : segments) {
+
+            int record = segment.lowerBound(key);
+            while (record < segment.getEntryCount() && segment.hasPrefix(record, key)) {
+
+                byte[] name = segment.getName(record);
+
+                int end = key.length;
+                while (end < name.length && name[end] != '/') {
+
+                    end++;
+
+                }
+
+                if (end == name.length) {
+
+                    // A file, possibly followed by further versions of it
+                    children.add(new String(name, key.length, end - key.length, StandardCharsets.UTF_8));
+                    record++;
+
+                } else {
+
+                    // A subdirectory: skip every path beneath it, which all sort before the child name followed by '0'
+                    children.add(new String(name, key.length, end + 1 - key.length, StandardCharsets.UTF_8));
+
+                    byte[] next = Arrays.copyOf(name, end + 1);
+                    next[end] = '/' + 1;
+                    record = segment.lowerBound(next);
+
+                }
+            }
+        }
+
+        return children;
+
+    }
+
+    private void merge(List<CatalogSegment> merge) throws IOException {
+
+        // The merged segment's archive table is each input's table in turn
+        List<CatalogSegment.Archive> archives = new ArrayList<>();
+        Map<CatalogSegment, Integer> archiveBase = new HashMap<>();
+        for (CatalogSegment segment : merge) {
+
+            archiveBase.put(segment, archives.size());
+            archives.addAll(segment.getArchives());
+
+        }
+
+        PriorityQueue<Cursor> queue = new PriorityQueue<>();
+        for (CatalogSegment segment : merge) {
+
+            if (segment.getEntryCount() > 0) {
+
+                queue.add(new Cursor(segment, 0));
+
+            }
+        }
+
+        Path segmentFile = newSegmentFile();
+        try (CatalogSegment.Writer out = new CatalogSegment.Writer(segmentFile, archives)) {
+
+            while (!queue.isEmpty()) {
+
+                Cursor cursor = queue.poll();
+                cursor.segment.copyTo(cursor.record, out, archiveBase.get(cursor.segment));
+
+                if (cursor.record + 1 < cursor.segment.getEntryCount()) {
+
+                    queue.add(new Cursor(cursor.segment, cursor.record + 1));
+
+                }
+            }
+
+        } catch (IOException ioe) {
+
+            Files.deleteIfExists(segmentFile);
+            throw ioe;
+
+        }
+
+        CatalogSegment merged = new CatalogSegment(segmentFile);
+        int position = segments.indexOf(merge.get(0));
+        segments.removeAll(merge);
+        segments.add(Math.min(position, segments.size()), merged);
+        save();
+
+        // Only remove the old segments once the manifest no longer names them
+        for (CatalogSegment segment : merge) {
+
+            segment.close();
+            try {
+
+                Files.deleteIfExists(segment.getFile());
+
+            } catch (IOException ioe) {
+
+                _LOG.warn("Unable to delete merged catalog segment {}: {}", segment.getFile(), ioe.getMessage());
+                _LOG.debug(ioe.getClass().getName(), ioe);
+
+            }
+        }
+
+        _LOG.info("Catalog: Merged {} segments into {}", merge.size(), merged);
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("%s (%d entries in %d segments)", directory, getEntryCount(), getSegmentCount());
+
+    }
+
+    /**
+     * Position in a segment during a merge, ordered by path and then newest version first.
+     */
+    private static class Cursor implements Comparable<Cursor>
+    {
+
+        private final CatalogSegment segment;
+        private final int record;
+        private final byte[] name;
+        private final long version;
+
+        Cursor(CatalogSegment segment, int record) {
+
+            this.segment = segment;
+            this.record = record;
+            this.name = segment.getName(record);
+            this.version = segment.getArchive(record).getVersion();
+
+        }
+
+        @Override
+        public int compareTo(Cursor o) {
+
+            int cmp = CatalogSegment.compareNames(name, o.name);
+            return cmp != 0 ? cmp : Long.compare(o.version, version);
+
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 2) {
+
+            System.err.println("Usage: Catalog <catalog dir> ingest <index.idx>... | find <path> | prefix <path> | ls <dir> | compact");
+            System.exit(1);
+
+        }
+
+        try (Catalog catalog = new Catalog(Paths.get(args[0]))) {
+
+            long start = System.nanoTime();
+
+            switch (args[1]) {
+
+                case "ingest":
+                    for (int i = 2; i < args.length; i++) {
+
+                        catalog.ingest(Paths.get(args[i]));
+
+                    }
+                    break;
+
+                case "find":
+                    catalog.find(args[2]).forEach(System.out::println);
+                    break;
+
+                case "prefix":
+                    catalog.findPrefix(args[2]).forEach(System.out::println);
+                    break;
+
+                case "ls":
+                    catalog.listDirectory(args.length > 2 ? args[2] : "").forEach(System.out::println);
+                    break;
+
+                case "compact":
+                    catalog.compact();
+                    break;
+
+                default:
+                    System.err.println("Unknown command: " + args[1]);
+                    System.exit(1);
+
+            }
+
+            System.err.println(String.format("%s; %.1f ms", catalog, (System.nanoTime() - start) / 1e6));
+
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package uk.co.essarsoftware.backup.catalog;
+
+/**
+ * One version of a path held in the catalog: the backup that stored it and where the path's data sits in the archive.
+ * @author <steve.roberts/>
+ */
+public class CatalogEntry
+{
+
+    private final String path, backupName, volumeName, archiveId;
+    private final long version, ingestTime, dataOffset, size, modTime, rangeStart, rangeEnd;
+
+    CatalogEntry(String path, long version, long ingestTime, String backupName, String volumeName, String archiveId,
+                 long dataOffset, long size, long modTime, long rangeStart, long rangeEnd) {
+
+        this.path = path;
+        this.version = version;
+        this.ingestTime = ingestTime;
+        this.backupName = backupName;
+        this.volumeName = volumeName;
+        this.archiveId = archiveId;
+        this.dataOffset = dataOffset;
+        this.size = size;
+        this.modTime = modTime;
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+
+    }
+
+    /**
+     * Gets the archive ID holding this version.
+     * @return the archive ID, or null if the backup was not uploaded.
+     */
+    public String getArchiveId() {
+
+        return archiveId;
+
+    }
+
+    public String getBackupName() {
+
+        return backupName;
+
+    }
+
+    public long getDataOffset() {
+
+        return dataOffset;
+
+    }
+
+    /**
+     * Gets the time the backup's index was added to the catalog.
+     * @return the time in milliseconds.
+     */
+    public long getIngestTime() {
+
+        return ingestTime;
+
+    }
+
+    public long getModTime() {
+
+        return modTime;
+
+    }
+
+    public String getPath() {
+
+        return path;
+
+    }
+
+    public long getRangeEnd() {
+
+        return rangeEnd;
+
+    }
+
+    public long getRangeStart() {
+
+        return rangeStart;
+
+    }
+
+    /**
+     * Gets the range of the archive to retrieve to restore this version, aligned to whole tree hash leaves.
+     * @return a String in the form {@code start-end}, as used for Glacier range retrievals.
+     */
+    public String getRetrievalRange() {
+
+        return String.format("%d-%d", rangeStart, rangeEnd);
+
+    }
+
+    public long getSize() {
+
+        return size;
+
+    }
+
+    /**
+     * Gets the version of this entry. Each backup added to the catalog takes the next version, so a higher version is
+     * a later backup.
+     * @return the version.
+     */
+    public long getVersion() {
+
+        return version;
+
+    }
+
+    /**
+     * Gets the name of the volume holding this version.
+     * @return the volume file name, or an empty String for a single-file tarball.
+     */
+    public String getVolumeName() {
+
+        return volumeName;
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("%s v%d (%d bytes in %s%s, archive %s, range %s)", path, version, size, backupName,
+                volumeName.isEmpty() ? "" : "/" + volumeName, archiveId, getRetrievalRange());
+
+    }
+}
@@ -0,0 +1,493 @@
+package uk.co.essarsoftware.backup.catalog;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable catalog segment. The file holds a header listing the archives the segment refers to, then a table of
+ * fixed-size records sorted by path and newest version first, then the paths. Records are binary searched in place
+ * from a memory-mapped file. Every {@value #_FENCE_INTERVAL}th path is also held in memory, so a search reads at most
+ * one block of the mapped records.
+ * @author <steve.roberts/>
+ */
+class CatalogSegment implements Closeable
+{
+
+    static final int MAGIC = 0x47434154;
+    static final int VERSION = 1;
+    static final int RECORD_SIZE = 56;
+
+    /** Most records a segment may hold, keeping both the record table and the paths mappable. */
+    static final int MAX_ENTRIES = 16 * 1048576;
+
+    private static final int _FENCE_INTERVAL = 256;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer records, names;
+    private final int entryCount;
+    private final List<Archive> archives = new ArrayList<>();
+    private final byte[][] fences;
+    private final Path file;
+
+    CatalogSegment(Path file) throws IOException {
+
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        try {
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+            if (in.readInt() != MAGIC) {
+
+                throw new IOException("Not a catalog segment: " + file);
+
+            }
+            if (in.readInt() != VERSION) {
+
+                throw new IOException("Unsupported catalog segment version: " + file);
+
+            }
+
+            entryCount = in.readInt();
+            long recordsOffset = in.readLong();
+            long namesOffset = in.readLong();
+
+            int archiveCount = in.readInt();
+            for (int i = 0; i < archiveCount; i++) {
+
+                archives.add(Archive.read(in));
+
+            }
+
+            long recordsLength = namesOffset - recordsOffset;
+            long namesLength = channel.size() - namesOffset;
+
+            if (recordsLength != (long) entryCount * RECORD_SIZE || namesLength > Integer.MAX_VALUE) {
+
+                throw new IOException("Catalog segment is corrupt or too large to map: " + file);
+
+            }
+
+            records = channel.map(FileChannel.MapMode.READ_ONLY, recordsOffset, recordsLength);
+            names = channel.map(FileChannel.MapMode.READ_ONLY, namesOffset, namesLength);
+
+        } catch (IOException ioe) {
+
+            channel.close();
+            throw ioe;
+
+        }
+
+        fences = new byte[(entryCount + _FENCE_INTERVAL - 1) / _FENCE_INTERVAL][];
+        for (int i = 0; i < fences.length; i++) {
+
+            fences[i] = getName(i * _FENCE_INTERVAL);
+
+        }
+    }
+
+    /**
+     * Compares two UTF-8 encoded paths byte by byte, treating bytes as unsigned. This is the order of records in a
+     * segment, and the same order as the binary tarball index.
+     * @param a the first path.
+     * @param b the second path.
+     * @return a negative number, zero or a positive number as the first path sorts before, equal to or after the second.
+     */
+    static int compareNames(byte[] a, byte[] b) {
+
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+
+                return cmp;
+
+            }
+        }
+
+        return a.length - b.length;
+
+    }
+
+    private int compareName(int record, byte[] name) {
+
+        int base = record * RECORD_SIZE;
+        int nameOffset = (int) records.getLong(base);
+        int nameLength = records.getInt(base + 8);
+
+        int length = Math.min(nameLength, name.length);
+        for (int i = 0; i < length; i++) {
+
+            int cmp = (names.get(nameOffset + i) & 0xff) - (name[i] & 0xff);
+            if (cmp != 0) {
+
+                return cmp;
+
+            }
+        }
+
+        return nameLength - name.length;
+
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        channel.close();
+
+    }
+
+    /**
+     * Copies a record to a segment being written, for compaction.
+     * @param record the record number.
+     * @param out the segment being written.
+     * @param archiveBase the position of this segment's first archive in the written segment's archive table.
+     * @throws IOException if the record cannot be written.
+     */
+    void copyTo(int record, Writer out, int archiveBase) throws IOException {
+
+        int base = record * RECORD_SIZE;
+        out.add(getName(record), archiveBase + records.getInt(base + 12), records.getLong(base + 16),
+                records.getLong(base + 24), records.getLong(base + 32), records.getLong(base + 40), records.getLong(base + 48));
+
+    }
+
+    /**
+     * Checks whether a record holds a path.
+     * @param record the record number.
+     * @param name the encoded path.
+     * @return true if the record's path is the given path.
+     */
+    boolean equalsName(int record, byte[] name) {
+
+        return compareName(record, name) == 0;
+
+    }
+
+    List<Archive> getArchives() {
+
+        return Collections.unmodifiableList(archives);
+
+    }
+
+    Archive getArchive(int record) {
+
+        return archives.get(records.getInt(record * RECORD_SIZE + 12));
+
+    }
+
+    CatalogEntry getEntry(int record) {
+
+        ByteBuffer r = records.duplicate();
+        r.position(record * RECORD_SIZE + 12);
+
+        Archive archive = archives.get(r.getInt());
+        long dataOffset = r.getLong();
+        long size = r.getLong();
+        long modTime = r.getLong();
+        long rangeStart = r.getLong();
+        long rangeEnd = r.getLong();
+
+        return new CatalogEntry(new String(getName(record), StandardCharsets.UTF_8), archive.version, archive.ingestTime,
+                archive.backupName, archive.volumeName, archive.archiveId, dataOffset, size, modTime, rangeStart, rangeEnd);
+
+    }
+
+    int getEntryCount() {
+
+        return entryCount;
+
+    }
+
+    Path getFile() {
+
+        return file;
+
+    }
+
+    byte[] getName(int record) {
+
+        int base = record * RECORD_SIZE;
+        int nameOffset = (int) records.getLong(base);
+        int nameLength = records.getInt(base + 8);
+
+        byte[] name = new byte[nameLength];
+        ByteBuffer n = names.duplicate();
+        n.position(nameOffset);
+        n.get(name);
+
+        return name;
+
+    }
+
+    long getNamesLength() {
+
+        return names.capacity();
+
+    }
+
+    boolean hasPrefix(int record, byte[] prefix) {
+
+        int base = record * RECORD_SIZE;
+        int nameOffset = (int) records.getLong(base);
+        int nameLength = records.getInt(base + 8);
+
+        if (nameLength < prefix.length) {
+
+            return false;
+
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+
+            if (names.get(nameOffset + i) != prefix[i]) {
+
+                return false;
+
+            }
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Finds the first record whose path sorts at or after the given path. The in-memory fences narrow the search to a
+     * single block of records before the mapped records are read.
+     * @param name the encoded path to search for.
+     * @return the record number, or the entry count if every path sorts before it.
+     */
+    int lowerBound(byte[] name) {
+
+        // First fence at or after the name
+        int low = 0, high = fences.length;
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+            if (compareNames(fences[mid], name) < 0) {
+
+                low = mid + 1;
+
+            } else {
+
+                high = mid;
+
+            }
+        }
+
+        if (low == 0) {
+
+            return 0;
+
+        }
+
+        // The answer lies after the previous fence, up to and including this one
+        int first = (low - 1) * _FENCE_INTERVAL + 1;
+        int last = Math.min(low * _FENCE_INTERVAL, entryCount);
+
+        while (first < last) {
+
+            int mid = (first + last) >>> 1;
+            if (compareName(mid, name) < 0) {
+
+                first = mid + 1;
+
+            } else {
+
+                last = mid;
+
+            }
+        }
+
+        return first;
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("%s (%d entries, %d archives)", file.getFileName(), entryCount, archives.size());
+
+    }
+
+    /**
+     * An archive referred to by a segment: one volume of a backup, with the version the backup was given when its
+     * index was added to the catalog.
+     */
+    static class Archive
+    {
+
+        private final long version, ingestTime, length;
+        private final String backupName, volumeName, archiveId;
+
+        Archive(long version, long ingestTime, String backupName, String volumeName, String archiveId, long length) {
+
+            this.version = version;
+            this.ingestTime = ingestTime;
+            this.backupName = backupName;
+            this.volumeName = volumeName;
+            this.archiveId = archiveId;
+            this.length = length;
+
+        }
+
+        static Archive read(DataInput in) throws IOException {
+
+            long version = in.readLong();
+            long ingestTime = in.readLong();
+            String backupName = in.readUTF();
+            String volumeName = in.readUTF();
+            String archiveId = in.readUTF();
+            long length = in.readLong();
+
+            return new Archive(version, ingestTime, backupName, volumeName, archiveId.isEmpty() ? null : archiveId, length);
+
+        }
+
+        long getVersion() {
+
+            return version;
+
+        }
+
+        void write(DataOutput out) throws IOException {
+
+            out.writeLong(version);
+            out.writeLong(ingestTime);
+            out.writeUTF(backupName);
+            out.writeUTF(volumeName);
+            out.writeUTF(archiveId == null ? "" : archiveId);
+            out.writeLong(length);
+
+        }
+    }
+
+    /**
+     * Writes a segment. Records must be added in segment order. Paths are spooled to a temporary file alongside the
+     * segment and appended when it is closed, so the writer holds nothing in memory beyond its buffers.
+     */
+    static class Writer implements Closeable
+    {
+
+        private final DataOutputStream out, namesOut;
+        private final Path file, namesFile;
+        private final long recordsOffset;
+        private byte[] lastName;
+        private long nameOffset;
+        private int entryCount;
+
+        Writer(Path file, List<Archive> archives) throws IOException {
+
+            this.file = file;
+            this.namesFile = file.resolveSibling(file.getFileName() + ".names");
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            try (DataOutputStream h = new DataOutputStream(header)) {
+
+                h.writeInt(archives.size());
+                for (Archive archive : archives) {
+
+                    archive.write(h);
+
+                }
+            }
+
+            // Magic, version, entry count and two offsets precede the archive table
+            recordsOffset = 4 + 4 + 4 + 8 + 8 + header.size();
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile()), 65536));
+            namesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(namesFile.toFile()), 65536));
+
+            // Placeholder header, rewritten on close
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(0);
+            out.writeLong(0);
+            out.writeLong(0);
+            header.writeTo(out);
+
+        }
+
+        void add(byte[] name, int archive, long dataOffset, long size, long modTime, long rangeStart, long rangeEnd) throws IOException {
+
+            if (entryCount == MAX_ENTRIES) {
+
+                throw new IOException("Catalog segment is full: " + file);
+
+            }
+            if (lastName != null && compareNames(lastName, name) > 0) {
+
+                throw new IllegalArgumentException("Catalog segment entries must be added in path order");
+
+            }
+
+            out.writeLong(nameOffset);
+            out.writeInt(name.length);
+            out.writeInt(archive);
+            out.writeLong(dataOffset);
+            out.writeLong(size);
+            out.writeLong(modTime);
+            out.writeLong(rangeStart);
+            out.writeLong(rangeEnd);
+
+            namesOut.write(name);
+            nameOffset += name.length;
+            lastName = name;
+            entryCount++;
+
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            try {
+
+                namesOut.close();
+                Files.copy(namesFile, out);
+
+            } finally {
+
+                out.close();
+                Files.deleteIfExists(namesFile);
+
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(4 + 8 + 8);
+            header.putInt(entryCount);
+            header.putLong(recordsOffset);
+            header.putLong(recordsOffset + (long) entryCount * RECORD_SIZE);
+            header.flip();
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+
+                channel.write(header, 8);
+                channel.force(true);
+
+            }
+        }
+
+        int getEntryCount() {
+
+            return entryCount;
+
+        }
+
+        boolean isFull() {
+
+            return entryCount == MAX_ENTRIES;
+
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package uk.co.essarsoftware.backup.chunk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+/**
+ * Local index of every chunk stored by previous backups, keyed by the chunk's SHA-256 hash. Records which pack archive
+ * each chunk was written to and the archive ID each pack was uploaded as.
+ * @author <steve.roberts/>
+ */
+class ChunkIndex
+{
+
+    private static final Logger _LOG = LoggerFactory.getLogger(ChunkIndex.class);
+
+    static final String INDEXFILE = ".chunkIndex";
+
+    private final HashMap<String, ChunkLocation> chunks = new HashMap<>();
+    private final HashMap<String, String> packs = new HashMap<>();
+
+    void load(Path indexFile) {
+
+        try {
+
+            if (!Files.exists(indexFile)) {
+
+                // Just ignore
+                return;
+
+            }
+
+            try (BufferedReader r = new BufferedReader(new FileReader(indexFile.toFile()))) {
+
+                int lineNumber = 0;
+                String line = r.readLine();
+                while (line != null) {
+
+                    lineNumber++;
+
+                    String[] parts = line.split("\\s+");
+                    if (parts.length == 3 && "P".equals(parts[0])) {
+
+                        packs.put(parts[1], parts[2]);
+
+                    } else if (parts.length == 5 && "C".equals(parts[0])) {
+
+                        chunks.put(parts[1], new ChunkLocation(parts[2], Long.parseLong(parts[3]), Integer.parseInt(parts[4])));
+
+                    } else {
+
+                        _LOG.warn("ChunkIndex: Ignoring invalid line {} in index", lineNumber);
+
+                    }
+
+                    line = r.readLine();
+
+                }
+            }
+
+        } catch (IOException | NumberFormatException e) {
+
+            _LOG.error("Error loading chunk index", e);
+
+        }
+    }
+
+    void save(Path indexFile) {
+
+        try {
+
+            Files.createDirectories(indexFile.toAbsolutePath().getParent());
+
+            try (PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(indexFile.toFile())))) {
+
+                packs.forEach((k, v) -> w.println(String.format("P %s %s", k, v)));
+                chunks.forEach((k, v) -> w.println(String.format("C %s %s %d %d", k, v.pack, v.offset, v.length)));
+
+            }
+
+        } catch (IOException ioe) {
+
+            _LOG.error("Error saving chunk index", ioe);
+
+        }
+    }
+
+    boolean contains(String hash) {
+
+        return chunks.containsKey(hash);
+
+    }
+
+    int getChunkCount() {
+
+        return chunks.size();
+
+    }
+
+    void putChunk(String hash, String pack, long offset, int length) {
+
+        chunks.put(hash, new ChunkLocation(pack, offset, length));
+
+    }
+
+    /**
+     * Checks whether a pack is known to the index, either uploaded or still holding chunks of a backup in progress.
+     * @param pack the pack name.
+     * @return true if chunks or an archive ID are recorded against the pack.
+     */
+    boolean containsPack(String pack) {
+
+        return packs.containsKey(pack) || chunks.values().stream().anyMatch(l -> pack.equals(l.pack));
+
+    }
+
+    void putPack(String pack, String archiveId) {
+
+        packs.put(pack, archiveId);
+
+    }
+
+    /**
+     * Forgets a pack and every chunk stored in it, so the chunks are stored again by the next backup. Used when a pack
+     * could not be uploaded.
+     * @param pack the pack name.
+     * @return the number of chunks removed.
+     */
+    int removePack(String pack) {
+
+        int size = chunks.size();
+
+        packs.remove(pack);
+        chunks.values().removeIf(l -> pack.equals(l.pack));
+
+        return size - chunks.size();
+
+    }
+
+    private static class ChunkLocation
+    {
+
+        private final String pack;
+        private final long offset;
+        private final int length;
+
+        ChunkLocation(String pack, long offset, int length) {
+
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package uk.co.essarsoftware.backup.chunk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream into variable-length chunks at content-defined boundaries using a gear rolling hash. A boundary depends
+ * only on the bytes immediately before it, so inserting or appending data changes only the chunks around the edit and
+ * the remaining chunks can be deduplicated against earlier backups.
+ * @author <steve.roberts/>
+ */
+public class ChunkSplitter
+{
+
+    private static final long[] GEAR = createGearTable();
+
+    private final byte[] buf = new byte[65536];
+    private final byte[] chunk;
+    private final InputStream in;
+    private final int minSize;
+    private final long mask;
+
+    private int bufLength, bufPosition;
+
+    /**
+     * Wraps an existing {@see InputStream}.
+     * @param in the stream to split.
+     * @param minSize the minimum chunk size; no boundary is considered before this many bytes.
+     * @param avgSize the target average chunk size. Must be a power of two.
+     * @param maxSize the maximum chunk size; a boundary is forced at this many bytes.
+     */
+    public ChunkSplitter(InputStream in, int minSize, int avgSize, int maxSize) {
+
+        if (Integer.bitCount(avgSize) != 1) {
+
+            throw new IllegalArgumentException("Average chunk size must be a power of two");
+
+        }
+        if (minSize > avgSize || avgSize > maxSize) {
+
+            throw new IllegalArgumentException("Chunk sizes must satisfy min <= avg <= max");
+
+        }
+
+        this.in = in;
+        this.minSize = minSize;
+        this.chunk = new byte[maxSize];
+
+        // Test the high bits of the hash; with a gear hash these depend on the most bytes
+        int bits = Integer.numberOfTrailingZeros(avgSize);
+        this.mask = bits == 0 ? 0 : (-1L << (64 - bits));
+
+    }
+
+    /**
+     * Creates the table of random values mixed into the hash for each byte value. The table is generated from a fixed
+     * seed so boundaries are stable between runs and JVMs.
+     * @return an array of 256 pseudo-random values.
+     */
+    private static long[] createGearTable() {
+
+        long[] table = new long[256];
+        long seed = 0x2545F4914F6CDD1DL;
+
+        for (int i = 0; i < table.length; i++) {
+
+            // SplitMix64
+            long z = (seed += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            table[i] = z ^ (z >>> 31);
+
+        }
+
+        return table;
+
+    }
+
+    private boolean fill() throws IOException {
+
+        bufPosition = 0;
+        bufLength = in.read(buf);
+
+        return bufLength > 0;
+
+    }
+
+    /**
+     * Reads the next chunk from the stream.
+     * @return a byte array containing the chunk data, shrunk to its exact length, or an empty array at the end of the
+     * stream.
+     * @throws IOException if an error occurs reading the data.
+     */
+    public byte[] nextChunk() throws IOException {
+
+        long hash = 0;
+        int length = 0;
+
+        while (length < chunk.length) {
+
+            if (bufPosition >= bufLength && !fill()) {
+
+                break;
+
+            }
+
+            byte b = buf[bufPosition++];
+            chunk[length++] = b;
+            hash = (hash << 1) + GEAR[b & 0xff];
+
+            if (length >= minSize && (hash & mask) == 0) {
+
+                break;
+
+            }
+        }
+
+        return Arrays.copyOf(chunk, length);
+
+    }
+}
@@ -0,0 +1,339 @@
+package uk.co.essarsoftware.backup.chunk;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.essarsoftware.backup.HashUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Deduplicating alternative to a tarball. File contents are split into content-defined chunks and only chunks not
+ * already held in the local chunk index are written, to pack archives. A manifest lists each file in the backup along
+ * with the IDs of the chunks that make it up.
+ * <p>
+ * Packs are tar files with one entry per chunk, named by the chunk's SHA-256 hash. Chunks are located by pack name, so
+ * each backup names its packs by the time it started, and a pack name already in the index is never reused.
+ * @author <steve.roberts/>
+ */
+public class ChunkStore implements Closeable
+{
+
+    private static final Logger _LOG = LoggerFactory.getLogger(ChunkStore.class);
+
+    private static final int _1MB = 1048576;
+    private static final int _RECORD_SIZE = 512;
+
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+    private static final int AVG_CHUNK_SIZE = _1MB;
+    private static final int MAX_CHUNK_SIZE = 4 * _1MB;
+
+    private static final DateTimeFormatter _RUN_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    public static final String INDEXFILE = ChunkIndex.INDEXFILE;
+
+    private final ChunkIndex index = new ChunkIndex();
+    private final File packBase;
+    private final List<File> packs = new ArrayList<>();
+    private final long packSize;
+    private final Consumer<File> packHandler;
+    private final Path indexFile;
+    private final PrintWriter manifest;
+    private final String runId;
+
+    private HashUtils hash = HashUtils.createSHA256Instance();
+
+    private TarArchiveOutputStream packOut;
+    private long packOffset, bytesRead, bytesStored;
+    private int chunksRead, chunksStored;
+    private boolean overwrite;
+
+    /**
+     * Opens the chunk store and starts a new backup manifest.
+     * @param indexFile the local chunk index, shared between backups.
+     * @param manifestFile the manifest to write for this backup.
+     * @param packBase the base file name for packs. Packs are named by appending the start time of the backup and a
+     * sequence number to it.
+     * @param packSize the target maximum size of each pack in bytes.
+     * @param packHandler called with each pack as soon as it is complete. May be null.
+     * @throws IOException if the manifest cannot be created.
+     */
+    public ChunkStore(Path indexFile, Path manifestFile, File packBase, long packSize, Consumer<File> packHandler) throws IOException {
+
+        this.indexFile = indexFile;
+        this.packBase = packBase;
+        this.packSize = packSize;
+        this.packHandler = packHandler;
+
+        index.load(indexFile);
+        _LOG.debug("Loaded {} chunks from {}", index.getChunkCount(), indexFile);
+
+        LocalDateTime now = LocalDateTime.now();
+        runId = now.format(_RUN_FORMAT);
+
+        manifest = new PrintWriter(new BufferedWriter(new FileWriter(manifestFile.toFile())));
+        manifest.println(now.format(DateTimeFormatter.ISO_DATE_TIME));
+        manifest.println("---");
+
+    }
+
+    private static String getEntryName(Path path, Path root) {
+
+        if(root != null) {
+
+            return root.relativize(path).toString();
+
+        }
+
+        return path.toString();
+
+    }
+
+    private static long getRecordedSize(long size) {
+
+        return _RECORD_SIZE + ((size + _RECORD_SIZE - 1) / _RECORD_SIZE) * _RECORD_SIZE;
+
+    }
+
+    /**
+     * Chunks the given files, or the files directly inside the given directories, and adds them to the manifest.
+     * @param root the directory that manifest names are relative to.
+     * @param paths the files and directories to add.
+     * @throws IOException if a directory cannot be listed or a pack cannot be written.
+     */
+    public void addPaths(Path root, List<Path> paths) throws IOException {
+
+        for(Path p : paths) {
+
+            if (Files.isDirectory(p)) {
+
+                try (Stream<Path> files = Files.list(p)) {
+
+                    files.forEach(f -> addFile(f, root));
+
+                }
+
+            } else {
+
+                addFile(p, root);
+
+            }
+        }
+    }
+
+    private void addFile(Path path, Path root) {
+
+        _LOG.debug("Chunking {}", path);
+
+        try {
+
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) {
+
+                return;
+
+            }
+
+            // Write to the manifest once the file is fully chunked, so a failed read leaves no partial record
+            List<String> chunkIds = new ArrayList<>();
+            try (InputStream in = new FileInputStream(path.toFile())) {
+
+                ChunkSplitter splitter = new ChunkSplitter(in, MIN_CHUNK_SIZE, AVG_CHUNK_SIZE, MAX_CHUNK_SIZE);
+
+                byte[] chunk = splitter.nextChunk();
+                while (chunk.length > 0) {
+
+                    chunkIds.add(addChunk(chunk));
+                    chunk = splitter.nextChunk();
+
+                }
+            }
+
+            manifest.println(String.format("F %d %d %s", attrs.size(), attrs.lastModifiedTime().toMillis(), getEntryName(path, root)));
+            chunkIds.forEach(id -> manifest.println("C " + id));
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to add {} to chunk store: {}", path.getFileName(), ioe.getMessage());
+            _LOG.debug(ioe.getClass().getName(), ioe);
+
+        }
+    }
+
+    /**
+     * Stores a chunk if it has not been seen before.
+     * @param chunk the chunk data.
+     * @return the chunk ID.
+     * @throws IOException if the chunk cannot be written to a pack.
+     */
+    private String addChunk(byte[] chunk) throws IOException {
+
+        String id = hash.calculateHashString(chunk);
+
+        chunksRead++;
+        bytesRead += chunk.length;
+
+        if (index.contains(id)) {
+
+            return id;
+
+        }
+
+        if (packOut == null) {
+
+            openPack();
+
+        } else if (packOffset > 0 && (packOffset + getRecordedSize(chunk.length)) > packSize) {
+
+            closePack();
+            openPack();
+
+        }
+
+        TarArchiveEntry entry = new TarArchiveEntry(id);
+        entry.setSize(chunk.length);
+
+        packOut.putArchiveEntry(entry);
+        packOut.write(chunk);
+        packOut.closeArchiveEntry();
+
+        // Chunk data follows its header record
+        index.putChunk(id, getCurrentPack().getName(), packOffset + _RECORD_SIZE, chunk.length);
+        packOffset += getRecordedSize(chunk.length);
+
+        chunksStored++;
+        bytesStored += chunk.length;
+
+        return id;
+
+    }
+
+    private File getCurrentPack() {
+
+        return packs.get(packs.size() - 1);
+
+    }
+
+    private void openPack() throws IOException {
+
+        File pack = new File(packBase.getPath() + String.format(".%s.pack.%03d", runId, packs.size() + 1));
+
+        // Rebinding a known pack name would point the chunks of an earlier backup at this pack
+        if (index.containsPack(pack.getName())) {
+
+            throw new IOException(String.format("Pack %s is already in the chunk index", pack.getName()));
+
+        }
+        if (pack.exists() && !overwrite) {
+
+            throw new IOException(String.format("Pack file %s already exists and overwrite flag not set", pack));
+
+        }
+
+        packOut = new TarArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(pack)));
+        packOffset = 0;
+        packs.add(pack);
+
+        _LOG.debug("Opened pack {}", pack);
+
+    }
+
+    private void closePack() throws IOException {
+
+        packOut.close();
+        packOut = null;
+
+        File pack = getCurrentPack();
+        _LOG.debug("Closed pack {}; {} bytes", pack, pack.length());
+
+        if (packHandler != null) {
+
+            packHandler.accept(pack);
+
+        }
+    }
+
+    /**
+     * Closes the current pack and the manifest. Does not save the chunk index; call {@link #save()} once the packs are
+     * uploaded.
+     * @throws IOException if the pack cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+
+        manifest.close();
+
+        if (packOut != null) {
+
+            closePack();
+
+        }
+
+        _LOG.info("Chunked {} bytes in {} chunks; stored {} bytes in {} new chunks", bytesRead, chunksRead, bytesStored, chunksStored);
+
+    }
+
+    /**
+     * Sets whether pack files left by an earlier backup that never reached the chunk index may be overwritten.
+     * @param overwrite true to overwrite them.
+     */
+    public void setOverwrite(boolean overwrite) {
+
+        this.overwrite = overwrite;
+
+    }
+
+    public List<File> getPacks() {
+
+        return Collections.unmodifiableList(packs);
+
+    }
+
+    /**
+     * Records the result of uploading a pack. A pack that failed to upload is dropped from the index along with its
+     * chunks.
+     * @param pack the pack file.
+     * @param archiveId the archive ID the pack was uploaded as, or null if the upload failed.
+     */
+    public void setPackArchiveId(File pack, String archiveId) {
+
+        if (archiveId == null) {
+
+            int removed = index.removePack(pack.getName());
+            _LOG.warn("Pack {} was not uploaded, dropped {} chunks from index", pack.getName(), removed);
+
+        } else {
+
+            index.putPack(pack.getName(), archiveId);
+
+        }
+    }
+
+    /**
+     * Saves the chunk index, including the chunks stored by this backup.
+     */
+    public void save() {
+
+        index.save(indexFile);
+        _LOG.info("Saved {} chunks to {}", index.getChunkCount(), indexFile);
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("%s (%d new chunks in %d packs)", packBase.getName(), chunksStored, packs.size());
+
+    }
+}
@@ -0,0 +1,292 @@
+package uk.co.essarsoftware.backup.diff;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Journal of the directories below a root that have changed, recorded by a {@link WatchDaemon} as they change and read
+ * by {@link TreeDiff} in place of walking the whole tree. Each line holds a type and a path relative to the root:
+ * {@code D} for a directory whose entries have changed, {@code R} for a directory created with everything below it,
+ * and {@code F} alone when changes may have been missed, so the whole tree must be walked.
+ * <p>
+ * Changes made while no daemon is watching are never recorded, so the journal is only trusted while a daemon holds its
+ * lock. A daemon records {@code F} when it starts, so the first check after a daemon starts walks the whole tree.
+ * @author <steve.roberts/>
+ */
+class ChangeJournal
+{
+
+    private static final Logger _LOG = LoggerFactory.getLogger(ChangeJournal.class);
+
+    static final String DIRTY = "D";
+    static final String FULL_WALK = "F";
+    static final String RECURSIVE = "R";
+
+    // File locks are held by the whole JVM, so threads of a daemon and a check in one JVM must also take this
+    private static final Object _LOCK = new Object();
+
+    private final Path journalFile, lockFile, pendingFile, daemonFile;
+    private final Set<String> ancestors = new HashSet<>(), dirty = new HashSet<>(), recursive = new HashSet<>();
+    private boolean fullWalk;
+
+    ChangeJournal(Path journalFile) {
+
+        this.journalFile = journalFile;
+        this.lockFile = journalFile.resolveSibling(journalFile.getFileName() + ".lock");
+        this.pendingFile = journalFile.resolveSibling(journalFile.getFileName() + ".pending");
+        this.daemonFile = journalFile.resolveSibling(journalFile.getFileName() + ".daemon");
+
+    }
+
+    private FileChannel openLockFile(Path file) throws IOException {
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+    }
+
+    /**
+     * Appends entries to the journal, and forces them to disk before returning. Safe to call while the journal is
+     * being taken, from this or another process.
+     * @param entries the entries, each a type followed by a space and a relative path, or {@link #FULL_WALK} alone.
+     * @throws IOException if the journal cannot be written.
+     */
+    void append(Collection<String> entries) throws IOException {
+
+        StringBuilder buf = new StringBuilder();
+        entries.forEach(e -> buf.append(e).append('\n'));
+
+        synchronized (_LOCK) {
+
+            // Closing the lock file releases the lock. The journal is only opened once locked, as it may be taken.
+            try (FileChannel lock = openLockFile(lockFile)) {
+
+                lock.lock();
+                try (FileChannel out = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+
+                    ByteBuffer bytes = StandardCharsets.UTF_8.encode(buf.toString());
+                    while (bytes.hasRemaining()) {
+
+                        out.write(bytes);
+
+                    }
+                    out.force(false);
+
+                }
+            }
+        }
+    }
+
+    /**
+     * Formats a journal entry.
+     * @param type the type of entry.
+     * @param path the directory, relative to the root.
+     * @return the entry.
+     */
+    static String entry(String type, Path path) {
+
+        return type + " " + path;
+
+    }
+
+    /**
+     * Marks the journal as watched, for as long as the returned channel is open. Fails if another daemon is already
+     * watching the root.
+     * @return the open lock file.
+     * @throws IOException if the journal is already watched, or the lock file cannot be opened.
+     */
+    FileChannel lockDaemon() throws IOException {
+
+        FileChannel channel = openLockFile(daemonFile);
+
+        try {
+
+            if (channel.tryLock() != null) {
+
+                return channel;
+
+            }
+
+        } catch (OverlappingFileLockException ofle) {
+
+            // Locked elsewhere in this JVM
+        }
+
+        channel.close();
+        throw new IOException("Another daemon is already watching " + journalFile.getParent());
+
+    }
+
+    /**
+     * Checks whether a daemon currently holds the journal lock.
+     * @return true if changes are being recorded.
+     */
+    private boolean isWatched() {
+
+        try (FileChannel channel = openLockFile(daemonFile)) {
+
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+
+                return true;
+
+            }
+
+            lock.release();
+            return false;
+
+        } catch (OverlappingFileLockException ofle) {
+
+            // Held by a daemon in this JVM
+            return true;
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to check for a daemon watching {}: {}", journalFile.getParent(), ioe.getMessage());
+            return false;
+
+        }
+    }
+
+    /**
+     * Takes the changes recorded since the last call was committed. Entries recorded from now on go to a new journal,
+     * so none are lost while the taken ones are checked. Taken entries are kept until {@link #commit()}, so a check
+     * that fails is repeated with them next time.
+     * @throws IOException if the journal cannot be read.
+     */
+    void take() throws IOException {
+
+        // Check before taking, so anything recorded up to a daemon stopping has been taken
+        boolean watched = isWatched();
+
+        synchronized (_LOCK) {
+
+            try (FileChannel lock = openLockFile(lockFile)) {
+
+                lock.lock();
+                if (Files.exists(journalFile)) {
+
+                    Files.write(pendingFile, Files.readAllBytes(journalFile), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    Files.delete(journalFile);
+
+                }
+            }
+        }
+
+        List<String> entries = (Files.exists(pendingFile) ? Files.readAllLines(pendingFile, StandardCharsets.UTF_8) : Collections.emptyList());
+        fullWalk = !watched;
+
+        for (String e : entries) {
+
+            if (FULL_WALK.equals(e)) {
+
+                fullWalk = true;
+                continue;
+
+            }
+            if (e.length() < 2) {
+
+                // A partial line is left by a daemon stopped mid-write
+                continue;
+
+            }
+
+            String type = e.substring(0, 1), path = e.substring(2);
+            if (DIRTY.equals(type)) {
+
+                dirty.add(path);
+
+            } else if (RECURSIVE.equals(type)) {
+
+                recursive.add(path);
+
+            } else {
+
+                continue;
+
+            }
+
+            // Every directory above a changed one must be listed to reach it
+            for (Path p = Paths.get(path).getParent(); p != null; p = p.getParent()) {
+
+                ancestors.add(p.toString());
+
+            }
+            ancestors.add("");
+
+        }
+    }
+
+    /**
+     * Discards the taken entries, once the changes they cover have been saved.
+     * @throws IOException if the taken entries cannot be deleted.
+     */
+    void commit() throws IOException {
+
+        Files.deleteIfExists(pendingFile);
+
+    }
+
+    /**
+     * Gets the number of changed directories taken from the journal.
+     * @return the number of directories.
+     */
+    int getChangedDirCount() {
+
+        return dirty.size() + recursive.size();
+
+    }
+
+    /**
+     * Checks whether the whole tree must be walked, as changes may have been missed since the last check.
+     * @return true if the journal cannot be trusted.
+     */
+    boolean isFullWalkRequired() {
+
+        return fullWalk;
+
+    }
+
+    /**
+     * Checks whether a directory must be listed: if it has changed, is below a new directory, or is above a changed
+     * one.
+     * @param path the directory, relative to the root.
+     * @return true if the directory must be listed.
+     */
+    boolean requiresWalk(String path) {
+
+        if (dirty.contains(path) || ancestors.contains(path)) {
+
+            return true;
+
+        }
+
+        for (Path p = Paths.get(path); p != null; p = p.getParent()) {
+
+            if (recursive.contains(p.toString())) {
+
+                return true;
+
+            }
+        }
+
+        return false;
+
+    }
+}
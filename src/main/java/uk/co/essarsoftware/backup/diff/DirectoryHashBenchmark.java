@@ -0,0 +1,157 @@
+package uk.co.essarsoftware.backup.diff;
+
+import org.apache.commons.codec.binary.Hex;
+import uk.co.essarsoftware.backup.HashUtils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks directory hashing in {@link TreeDiff} against the original approach, which made three stat calls and a
+ * formatted string per file and hashed the concatenated strings. Every directory below the given root is hashed both
+ * ways for a number of warm-up and measured rounds, and the hashes compared, as a hashtab written by either must be
+ * valid for the other. Reports the time and, where the JVM supports it, the bytes allocated per file.
+ * <p>
+ * Usage: {@code DirectoryHashBenchmark <dir> [rounds]}
+ * @author <steve.roberts/>
+ */
+public class DirectoryHashBenchmark
+{
+
+    private static final int _WARMUP_ROUNDS = 3;
+
+    private final List<Path> dirs;
+    private final HashUtils hash = HashUtils.createSHA1Instance();
+    private long files;
+
+    private DirectoryHashBenchmark(List<Path> dirs) {
+
+        this.dirs = dirs;
+
+    }
+
+    private static long getAllocatedBytes() {
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+
+        }
+
+        return -1;
+
+    }
+
+    private List<String> hashAll() throws IOException {
+
+        List<String> hashes = new ArrayList<>(dirs.size());
+        for (Path dir : dirs) {
+
+            byte[] dirHash = TreeDiff.calculateHash(dir, hash, new LinkedHashMap<>(), new HashSet<>(), null);
+            hashes.add(dirHash == null ? HashUtils.DEFAULT_HASH : Hex.encodeHexString(dirHash));
+
+        }
+
+        return hashes;
+
+    }
+
+    private List<String> hashAllOriginal() throws IOException {
+
+        List<String> hashes = new ArrayList<>(dirs.size());
+        files = 0;
+
+        for (Path dir : dirs) {
+
+            StringBuffer buf = new StringBuffer();
+
+            try (Stream<Path> list = Files.list(dir)) {
+
+                for (Path p : list.filter(Files::isRegularFile).collect(Collectors.toList())) {
+
+                    String name = p.getFileName().toString();
+                    if (!HashTab.isTabFile(name)) {
+
+                        buf.append(String.format("%s|%d|%d", p.getFileName(), Files.size(p), Files.getLastModifiedTime(p).toMillis()));
+                        files++;
+
+                    }
+                }
+            }
+
+            hashes.add(buf.length() == 0 ? HashUtils.DEFAULT_HASH : hash.calculateHashString(new String(buf)));
+
+        }
+
+        return hashes;
+
+    }
+
+    private List<String> run(String name, boolean original, int rounds) throws IOException {
+
+        List<String> hashes = null;
+        for (int i = 0; i < _WARMUP_ROUNDS; i++) {
+
+            hashes = original ? hashAllOriginal() : hashAll();
+
+        }
+
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+
+            hashes = original ? hashAllOriginal() : hashAll();
+
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = (allocated < 0 ? -1 : getAllocatedBytes() - allocated);
+
+        long perRound = files * rounds;
+        System.out.println(String.format("%-10s %8.3f ms/round %8.0f ns/file %10s bytes/file", name, elapsed / 1e6 / rounds,
+                perRound == 0 ? 0.0 : (double) elapsed / perRound, allocated < 0 || perRound == 0 ? "n/a" : String.valueOf(allocated / perRound)));
+
+        return hashes;
+
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+
+            System.err.println("Usage: DirectoryHashBenchmark <dir> [rounds]");
+            System.exit(1);
+
+        }
+
+        int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : 10);
+
+        List<Path> dirs;
+        try (Stream<Path> walk = Files.walk(Paths.get(args[0]))) {
+
+            dirs = walk.filter(Files::isDirectory).collect(Collectors.toList());
+
+        }
+
+        DirectoryHashBenchmark benchmark = new DirectoryHashBenchmark(dirs);
+
+        // The original approach also counts the files measured
+        List<String> expected = benchmark.run("original", true, rounds);
+        List<String> actual = benchmark.run("streaming", false, rounds);
+        System.out.println(String.format("%d directories, %d files, %d rounds", dirs.size(), benchmark.files, rounds));
+
+        if (!expected.equals(actual)) {
+
+            System.err.println("Directory hashes differ from the original approach");
+            System.exit(2);
+
+        }
+    }
+}
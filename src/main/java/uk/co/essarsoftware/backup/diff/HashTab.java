@@ -0,0 +1,572 @@
+package uk.co.essarsoftware.backup.diff;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A table of the last recorded hash of each path below a root, held off-heap in a memory-mapped file. The file is an
+ * open-addressing hash table of fixed-size slots, each holding a 64-bit fingerprint of a relative path and a
+ * {@value #VALUE_SIZE}-byte value. Paths themselves are not stored. Lookups read only the pages they touch, so opening
+ * a table costs the same whatever its size and memory use follows the number of paths checked.
+ * <p>
+ * Tables in the original text format, one {@code path hash} pair per line, are read into memory once and replaced
+ * with the binary format when the new table is saved.
+ * @author <steve.roberts/>
+ */
+class HashTab implements Closeable
+{
+
+    private static final Logger _LOG = LoggerFactory.getLogger(HashTab.class);
+
+    static final String TABFILE = ".hashTab";
+    static final String FILETAB = ".fileTab";
+    static final String CONTENTTAB = ".contentTab";
+    static final String HASHCACHE = ".hashCache";
+    static final String TREETAB = ".treeTab";
+    static final String JOURNAL = ".changeJournal";
+
+    private static final String[] _TAB_FILES = { TABFILE, FILETAB, CONTENTTAB, HASHCACHE, TREETAB, JOURNAL };
+
+    static final int MAGIC = 0x47485442;
+    static final int VERSION = 1;
+    static final int VALUE_SIZE = 20;
+
+    // Slots are a power of two in size, so no slot crosses a mapped segment; the header takes the first slot
+    private static final int _SLOT_BITS = 5;
+    private static final int _SLOT_SIZE = 1 << _SLOT_BITS;
+    private static final int _SEGMENT_BITS = 30;
+    private static final int _SEGMENT_SIZE = 1 << _SEGMENT_BITS;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final Map<Long, byte[]> legacyEntries;
+    private final long mask;
+
+    private HashTab(FileChannel channel, MappedByteBuffer[] segments, long slots, Map<Long, byte[]> legacyEntries) {
+
+        this.channel = channel;
+        this.segments = segments;
+        this.mask = slots - 1;
+        this.legacyEntries = legacyEntries;
+
+    }
+
+    /**
+     * Receives the entries of a table.
+     */
+    interface EntryConsumer
+    {
+
+        void accept(long fingerprint, long value1, long value2, int value3) throws IOException;
+
+    }
+
+    /**
+     * Opens a table for reading.
+     * @param tabFile the table file.
+     * @return the table, which is empty if the file does not exist or cannot be read.
+     */
+    static HashTab open(Path tabFile) {
+
+        if (!Files.exists(tabFile)) {
+
+            return new HashTab(null, new MappedByteBuffer[0], 0, null);
+
+        }
+
+        int magic, version, slotBits;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tabFile.toFile()), _SLOT_SIZE))) {
+
+            magic = in.readInt();
+            version = in.readInt();
+            slotBits = in.readInt();
+
+        } catch (IOException ioe) {
+
+            // Too short to be a binary table
+            magic = 0;
+            version = slotBits = -1;
+
+        }
+
+        FileChannel channel = null;
+        try {
+
+            if (magic != MAGIC) {
+
+                return new HashTab(null, new MappedByteBuffer[0], 0, loadText(tabFile));
+
+            }
+            if (version != VERSION) {
+
+                throw new IOException("Unsupported hashtab version");
+
+            }
+
+            channel = FileChannel.open(tabFile, StandardOpenOption.READ);
+
+            long length = (1L << slotBits) * _SLOT_SIZE + _SLOT_SIZE;
+            if (slotBits < 0 || slotBits > 40 || channel.size() != length) {
+
+                throw new IOException("Hashtab is corrupt");
+
+            }
+
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((length + _SEGMENT_SIZE - 1) >>> _SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i++) {
+
+                long offset = (long) i << _SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(_SEGMENT_SIZE, length - offset));
+
+            }
+
+            return new HashTab(channel, segments, 1L << slotBits, null);
+
+        } catch (IOException ioe) {
+
+            _LOG.error("Error loading hashtab", ioe);
+            closeQuietly(channel);
+            return new HashTab(null, new MappedByteBuffer[0], 0, null);
+
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+
+        try {
+
+            if (c != null) {
+
+                c.close();
+
+            }
+
+        } catch (IOException ioe) {
+
+            _LOG.debug(ioe.getClass().getName(), ioe);
+
+        }
+    }
+
+    /**
+     * Reads a table in the original text format.
+     */
+    private static Map<Long, byte[]> loadText(Path tabFile) throws IOException {
+
+        Map<Long, byte[]> entries = new HashMap<>();
+
+        try (BufferedReader r = new BufferedReader(new FileReader(tabFile.toFile()))) {
+
+            int lineNumber = 0;
+            String line = r.readLine();
+            while (line != null) {
+
+                lineNumber++;
+
+                // Split at the last space, as names may contain spaces but hashes do not
+                int split = line.lastIndexOf(' ');
+                byte[] value = (split < 0 ? null : parseTextValue(line.substring(split + 1)));
+                if (value != null) {
+
+                    entries.put(fingerprint(line.substring(0, split)), value);
+
+                } else {
+
+                    _LOG.warn("HashTab: Ignoring invalid line {} in hashtab", lineNumber);
+
+                }
+
+                line = r.readLine();
+
+            }
+        }
+
+        _LOG.info("Read {} entries from text hashtab {}", entries.size(), tabFile);
+        return entries;
+
+    }
+
+    /**
+     * Converts a value from the text format: either a hex digest, or a file state of size, mtime and optional file key.
+     */
+    private static byte[] parseTextValue(String value) {
+
+        try {
+
+            if (value.length() == VALUE_SIZE * 2) {
+
+                return Hex.decodeHex(value.toCharArray());
+
+            }
+
+            String[] parts = value.split(",", 3);
+            if (parts.length >= 2) {
+
+                return TreeDiff.encodeFileState(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts.length > 2 ? parts[2] : null);
+
+            }
+
+        } catch (DecoderException | NumberFormatException e) {
+
+            // Invalid value
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Checks whether a file is a hashtab, or a temporary file written while saving one, and so should not be hashed.
+     * @param name the file name.
+     * @return true if the file belongs to a hashtab.
+     */
+    static boolean isTabFile(String name) {
+
+        for (String tabFile : _TAB_FILES) {
+
+            if (name.equals(tabFile) || name.startsWith(tabFile + ".")) {
+
+                return true;
+
+            }
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Calculates the fingerprint of a path, by which it is looked up. Never zero, as zero marks an empty slot.
+     * @param path the relative path.
+     * @return a 64-bit fingerprint of the path.
+     */
+    static long fingerprint(String path) {
+
+        // FNV-1a over the characters, then the MurmurHash3 finaliser to spread the bits used for the slot number
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+
+            h ^= path.charAt(i);
+            h *= 0x100000001b3L;
+
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h == 0 ? 1 : h;
+
+    }
+
+    private static ByteBuffer getSegment(MappedByteBuffer[] segments, long slot) {
+
+        return segments[(int) (((slot + 1) << _SLOT_BITS) >>> _SEGMENT_BITS)];
+
+    }
+
+    private static int getOffset(long slot) {
+
+        return (int) (((slot + 1) << _SLOT_BITS) & (_SEGMENT_SIZE - 1));
+
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        if (channel != null) {
+
+            channel.close();
+
+        }
+    }
+
+    /**
+     * Passes every entry of the table to a consumer, in slot order. Each value is given as two longs and an int.
+     * @param entries the consumer.
+     * @throws IOException if the consumer throws it.
+     */
+    void forEachEntry(EntryConsumer entries) throws IOException {
+
+        if (legacyEntries != null) {
+
+            for (Map.Entry<Long, byte[]> e : legacyEntries.entrySet()) {
+
+                ByteBuffer value = ByteBuffer.wrap(e.getValue());
+                entries.accept(e.getKey(), value.getLong(0), value.getLong(8), value.getInt(16));
+
+            }
+            return;
+
+        }
+
+        for (long slot = 0; slot <= mask && segments.length > 0; slot++) {
+
+            ByteBuffer segment = getSegment(segments, slot);
+            int offset = getOffset(slot);
+
+            long f = segment.getLong(offset);
+            if (f != 0) {
+
+                entries.accept(f, segment.getLong(offset + 8), segment.getLong(offset + 16), segment.getInt(offset + 24));
+
+            }
+        }
+    }
+
+    /**
+     * Gets the number of entries in the table.
+     * @return the number of entries.
+     */
+    long getEntryCount() {
+
+        if (legacyEntries != null) {
+
+            return legacyEntries.size();
+
+        }
+
+        return segments.length == 0 ? 0 : segments[0].getLong(12);
+
+    }
+
+    /**
+     * Gets the recorded value for a path.
+     * @param path the relative path.
+     * @return a new array holding the value, or null if the path is not recorded.
+     */
+    byte[] get(String path) {
+
+        long fingerprint = fingerprint(path);
+
+        if (legacyEntries != null) {
+
+            return legacyEntries.get(fingerprint);
+
+        }
+        if (segments.length == 0) {
+
+            return null;
+
+        }
+
+        for (long slot = fingerprint & mask; ; slot = (slot + 1) & mask) {
+
+            ByteBuffer segment = getSegment(segments, slot);
+            int offset = getOffset(slot);
+
+            long f = segment.getLong(offset);
+            if (f == 0) {
+
+                return null;
+
+            }
+            if (f == fingerprint) {
+
+                // Absolute reads, so lookups from several threads do not disturb each other
+                byte[] value = new byte[VALUE_SIZE];
+                ByteBuffer.wrap(value).putLong(segment.getLong(offset + 8)).putLong(segment.getLong(offset + 16))
+                        .putInt(segment.getInt(offset + 24));
+                return value;
+
+            }
+        }
+    }
+
+    /**
+     * Writes a new table. Entries are spooled sequentially to a file beside the table as they are put, then placed in
+     * their slots in a memory-mapped file when the table is saved, so the heap never holds the table.
+     */
+    static class Writer implements Closeable
+    {
+
+        private static final int _SPOOL_RECORD_SIZE = 8 + VALUE_SIZE;
+
+        private final Path tabFile, spoolFile;
+        private final DataOutputStream spool;
+        private long entryCount;
+
+        Writer(Path tabFile) throws IOException {
+
+            this.tabFile = tabFile;
+            this.spoolFile = tabFile.resolveSibling(tabFile.getFileName() + ".spool");
+
+            Files.createDirectories(tabFile.toAbsolutePath().getParent());
+            spool = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spoolFile.toFile()), 65536));
+
+        }
+
+        /**
+         * Records the value for a path. Safe to call from several threads.
+         * @param path the relative path.
+         * @param value the value, of {@value #VALUE_SIZE} bytes.
+         * @throws UncheckedIOException if the spool cannot be written.
+         */
+        synchronized void put(String path, byte[] value) {
+
+            if (value.length != VALUE_SIZE) {
+
+                throw new IllegalArgumentException("Hashtab values must be " + VALUE_SIZE + " bytes");
+
+            }
+
+            try {
+
+                spool.writeLong(fingerprint(path));
+                spool.write(value);
+                entryCount++;
+
+            } catch (IOException ioe) {
+
+                throw new UncheckedIOException(ioe);
+
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            try {
+
+                spool.close();
+
+            } finally {
+
+                Files.deleteIfExists(spoolFile);
+
+            }
+        }
+
+        /**
+         * Builds the table from the spooled entries and replaces the table file with it. A later entry for the same
+         * path replaces an earlier one.
+         * @throws IOException if the table cannot be written.
+         */
+        void save() throws IOException {
+
+            save(null);
+
+        }
+
+        private static boolean insert(MappedByteBuffer[] segments, long mask, long fingerprint, long value1, long value2, int value3) {
+
+            for (long slot = fingerprint & mask; ; slot = (slot + 1) & mask) {
+
+                ByteBuffer segment = getSegment(segments, slot);
+                int offset = getOffset(slot);
+
+                long f = segment.getLong(offset);
+                if (f == 0 || f == fingerprint) {
+
+                    segment.putLong(offset, fingerprint);
+                    segment.putLong(offset + 8, value1);
+                    segment.putLong(offset + 16, value2);
+                    segment.putInt(offset + 24, value3);
+                    return f == 0;
+
+                }
+            }
+        }
+
+        /**
+         * Builds the table from the entries of an earlier table overlaid with the spooled entries, and replaces the
+         * table file with it. Entries of the earlier table that were not put again are kept.
+         * @param base the earlier table, or null to build from the spooled entries alone.
+         * @throws IOException if the table cannot be written.
+         */
+        synchronized void save(HashTab base) throws IOException {
+
+            spool.close();
+
+            // At most half full, so probe sequences stay short
+            long maxEntries = entryCount + (base == null ? 0 : base.getEntryCount());
+            int slotBits = 4;
+            while ((1L << slotBits) < maxEntries * 2) {
+
+                slotBits++;
+
+            }
+
+            long slots = 1L << slotBits;
+            long mask = slots - 1;
+            long length = slots * _SLOT_SIZE + _SLOT_SIZE;
+            Path newFile = tabFile.resolveSibling(tabFile.getFileName() + ".new");
+
+            try {
+
+                try (FileChannel channel = FileChannel.open(newFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                     DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spoolFile.toFile()), 65536))) {
+
+                    // The file is created sparse and zero filled, so every slot starts empty
+                    MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((length + _SEGMENT_SIZE - 1) >>> _SEGMENT_BITS)];
+                    for (int i = 0; i < segments.length; i++) {
+
+                        long offset = (long) i << _SEGMENT_BITS;
+                        segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, Math.min(_SEGMENT_SIZE, length - offset));
+
+                    }
+
+                    segments[0].putInt(0, MAGIC);
+                    segments[0].putInt(4, VERSION);
+                    segments[0].putInt(8, slotBits);
+
+                    long[] count = new long[1];
+                    if (base != null) {
+
+                        base.forEachEntry((fingerprint, value1, value2, value3) -> {
+
+                            if (insert(segments, mask, fingerprint, value1, value2, value3)) {
+
+                                count[0]++;
+
+                            }
+                        });
+                    }
+
+                    for (long i = 0; i < entryCount; i++) {
+
+                        if (insert(segments, mask, in.readLong(), in.readLong(), in.readLong(), in.readInt())) {
+
+                            count[0]++;
+
+                        }
+                    }
+
+                    segments[0].putLong(12, count[0]);
+                    for (MappedByteBuffer segment : segments) {
+
+                        segment.force();
+
+                    }
+                }
+
+                Files.move(newFile, tabFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            } finally {
+
+                Files.deleteIfExists(newFile);
+                Files.deleteIfExists(spoolFile);
+
+            }
+
+            _LOG.debug("Saved {} hashtab entries to {}", entryCount, tabFile);
+
+        }
+    }
+}
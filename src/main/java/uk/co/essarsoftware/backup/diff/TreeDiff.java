@@ -1,27 +1,52 @@
 package uk.co.essarsoftware.backup.diff;
 
+import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.co.essarsoftware.backup.HashUtils;
 
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class TreeDiff
 {
 
     private static Logger _LOG = LoggerFactory.getLogger(TreeDiff.class);
 
-    private HashTab hashTab = new HashTab();
-    private HashTab newHashTab = new HashTab();
+    // Directory listing is bound by filesystem latency rather than CPU, so allow more threads than processors
+    public static final int DEFAULT_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final int _READ_BUFFER_SIZE = 65536;
+
+    // Bytes of each directory's Merkle hash kept in the tree hashtab, beside the directory mtime
+    private static final int _TREE_HASH_SIZE = HashTab.VALUE_SIZE - 8;
+
     private Path metaDir;
+    private boolean contentHash, dryRun, pruneSubtrees, trackInodes, useJournal;
+    private final int threads;
+    private int readBufferSize = _READ_BUFFER_SIZE;
+    private ForkJoinPool pool;
+
+    // Work done by every check of this instance, for reporting
+    private final LongAdder dirsListed = new LongAdder(), filesChecked = new LongAdder();
+    private final LongAdder filesHashed = new LongAdder(), bytesHashed = new LongAdder(), hashNanos = new LongAdder();
+    private final LongAdder filesChanged = new LongAdder(), bytesChanged = new LongAdder();
 
-    private HashUtils hash = HashUtils.createSHA1Instance();
+    // MessageDigest is not thread safe, so each walker thread has its own. Kept with the thread rather than the
+    // instance, so the threads of a shared pool reuse them from one check to the next.
+    private static final ThreadLocal<HashUtils> hash = ThreadLocal.withInitial(HashUtils::createSHA1Instance);
+    private static final ThreadLocal<byte[]> readBuffer = ThreadLocal.withInitial(() -> new byte[_READ_BUFFER_SIZE]);
 
     public TreeDiff() {
 
@@ -32,7 +57,25 @@ public class TreeDiff
 
     public TreeDiff(Path metaDir) {
 
+        this(metaDir, DEFAULT_THREADS);
+
+    }
+
+    /**
+     * Creates a new instance.
+     * @param metaDir the directory to save hashtabs in, or null to save them in each root directory.
+     * @param threads the maximum number of directories to list at once.
+     */
+    public TreeDiff(Path metaDir, int threads) {
+
+        if (threads < 1) {
+
+            throw new IllegalArgumentException("Number of threads must be positive");
+
+        }
+
         this.metaDir = metaDir;
+        this.threads = threads;
         if (metaDir != null) {
 
             try {
@@ -51,40 +94,98 @@ public class TreeDiff
         }
     }
 
-    private static String getFileModificationString(Path p) throws IOException {
+    /**
+     * Gets the read buffer of the current thread, replacing it if a check with a different buffer size used it last.
+     */
+    private byte[] getReadBuffer() {
+
+        byte[] buffer = readBuffer.get();
+        if (buffer.length != readBufferSize) {
+
+            buffer = new byte[readBufferSize];
+            readBuffer.set(buffer);
+
+        }
 
-        return String.format("%s|%d|%d", p.getFileName(), Files.size(p), Files.getLastModifiedTime(p).toMillis());
+        return buffer;
 
     }
 
-    /**
-     * Calculate a modification hash for a file or directory based on size and mtime.
-     * @param path If file is a file, return its hash. If file is a directory, return a hash based on its contents.
-     * @return a hex string containing the SHA-1 hash of the file metadata.
-     * @throws IOException if the file metadata cannot be read.
-     */
-    private String calculateHash(Path path) throws IOException {
+    private static BasicFileAttributes readAttributes(SecureDirectoryStream<Path> dir, Path p, LinkOption... options) throws IOException {
 
-        // Path represents a file
-        if (Files.isRegularFile(path)) {
+        if (dir == null) {
 
-            return hash.calculateHashString(getFileModificationString(path));
+            return Files.readAttributes(p, BasicFileAttributes.class, options);
 
         }
 
-        if (Files.isDirectory(path)) {
+        // Read relative to the open directory, so the path is not looked up again
+        return dir.getFileAttributeView(p.getFileName(), BasicFileAttributeView.class, options).readAttributes();
+
+    }
+
+    /**
+     * Calculate a modification hash for a directory based on the name, size and mtime of the files it contains. Lists
+     * the directory once, reading the attributes of each entry once, and feeds each file's metadata straight into the
+     * digest. The hash is that of each file's {@code name|size|mtime} string in listing order.
+     * @param dir the directory to hash.
+     * @param hash the digest to use.
+     * @param subDirs a map to add the attributes of each subdirectory to, in listing order.
+     * @param linkedDirs a set to add links to directories to. These are checked but not walked.
+     * @param files a map to add the attributes of each file hashed to, in listing order, or null.
+     * @return the SHA-1 hash of the file metadata, or null if the directory holds no files.
+     * @throws IOException if the directory cannot be listed.
+     */
+    static byte[] calculateHash(Path dir, HashUtils hash, Map<Path, BasicFileAttributes> subDirs, Set<Path> linkedDirs,
+                                Map<Path, BasicFileAttributes> files) throws IOException {
+
+        boolean empty = true;
 
-            StringBuffer buf = new StringBuffer();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
 
-            // Get the modification string for each file in the directory
-            Files.list(path).filter(Files::isRegularFile).forEach(p -> {
+            SecureDirectoryStream<Path> secure = (entries instanceof SecureDirectoryStream ? (SecureDirectoryStream<Path>) entries : null);
+
+            for (Path p : entries) {
 
                 try {
 
+                    BasicFileAttributes attrs = readAttributes(secure, p, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isSymbolicLink()) {
+
+                        // Links to files are hashed as the file they point to
+                        attrs = readAttributes(secure, p);
+                        if (attrs.isDirectory()) {
+
+                            subDirs.put(p, attrs);
+                            linkedDirs.add(p);
+                            continue;
+
+                        }
+
+                    } else if (attrs.isDirectory()) {
+
+                        subDirs.put(p, attrs);
+                        continue;
+
+                    }
+
+                    String name = p.getFileName().toString();
+
                     // Ignore the hashtab file
-                    if(!HashTab.TABFILE.equals(p.getFileName().toString())) {
+                    if (attrs.isRegularFile() && !HashTab.isTabFile(name)) {
 
-                        buf.append(getFileModificationString(p));
+                        hash.update(name.getBytes());
+                        hash.update((byte) '|');
+                        hash.updateDecimal(attrs.size());
+                        hash.update((byte) '|');
+                        hash.updateDecimal(attrs.lastModifiedTime().toMillis());
+                        empty = false;
+
+                        if (files != null) {
+
+                            files.put(p, attrs);
+
+                        }
 
                     }
 
@@ -93,212 +194,936 @@ public class TreeDiff
                     _LOG.warn("Ignoring {}: {}", p, ioe.getMessage());
 
                 }
-            });
+            }
+
+        } catch (DirectoryIteratorException die) {
 
-            return buf.length() == 0 ? HashUtils.DEFAULT_HASH : hash.calculateHashString(new String(buf));
+            // Discard anything added before the failure, so the digest can be reused
+            hash.reset();
+            throw die.getCause();
+
+        } catch (IOException ioe) {
+
+            hash.reset();
+            throw ioe;
 
         }
 
-        // Default response, in case file does not exist
-        return HashUtils.DEFAULT_HASH;
+        return empty ? null : hash.calculateHashBytes();
 
     }
 
-    private boolean hasDirChanged(Path path, String hash) {
+    /**
+     * Encodes the recorded state of a file as a hashtab value: its size, mtime and a fingerprint of its file key.
+     * @param size the size of the file.
+     * @param modTime the mtime of the file in milliseconds.
+     * @param fileKey the file key of the file, or null if inodes are not tracked.
+     * @return a value of {@value HashTab#VALUE_SIZE} bytes.
+     */
+    static byte[] encodeFileState(long size, long modTime, Object fileKey) {
+
+        // A zero fingerprint means no file key was recorded
+        int inode = 0;
+        if (fileKey != null) {
 
-        // Compare with the hash from the hashTab
-        boolean changed = hashTab.checkHash(path, hash);
+            inode = (int) HashTab.fingerprint(fileKey.toString());
+            inode = (inode == 0 ? 1 : inode);
 
-        // Save the hash to the new hashtab
-        newHashTab.putHash(path, hash);
+        }
 
-        return changed;
+        return ByteBuffer.allocate(HashTab.VALUE_SIZE).putLong(size).putLong(modTime).putInt(inode).array();
+
+    }
+
+    /**
+     * Builds the key a file's content digest is cached under: its device, inode, size, mtime and ctime. Any write to a
+     * file changes its ctime, even if the mtime is then put back, so a file with the same key has the same content.
+     * Where the platform has no unix attributes the absolute path and file key stand in for the device and inode.
+     * @param path the file.
+     * @param attrs the attributes of the file.
+     * @return the cache key.
+     * @throws IOException if the attributes of the file cannot be read.
+     */
+    private static String getCacheKey(Path path, BasicFileAttributes attrs) throws IOException {
+
+        StringBuilder key = new StringBuilder();
+
+        try {
+
+            Map<String, Object> unix = Files.readAttributes(path, "unix:dev,ino,ctime");
+            key.append(unix.get("dev")).append(':').append(unix.get("ino")).append(':')
+                    .append(((FileTime) unix.get("ctime")).to(TimeUnit.NANOSECONDS));
+
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+
+            key.append(path.toAbsolutePath()).append(':').append(attrs.fileKey());
+
+        }
+
+        key.append(':').append(attrs.size()).append(':').append(attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        return key.toString();
+
+    }
+
+    /**
+     * Gets the Merkle hash of a directory recorded by the last check of a root. The hash covers the metadata of every
+     * file below the directory, so comparing the hashes recorded by two checks answers whether anything below the
+     * directory changed between them, without walking it.
+     * @param root the root directory.
+     * @param dir the directory, relative to the root.
+     * @return a hex string of the hash, or null if none was recorded.
+     */
+    public String getTreeHash(Path root, Path dir) {
+
+        try (HashTab tab = HashTab.open(getTabFile(root, HashTab.TREETAB))) {
+
+            byte[] treeHash = decodeTreeHash(tab.get(dir.toString()));
+            return treeHash == null ? null : Hex.encodeHexString(treeHash);
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to read tree hash of {}: {}", dir, ioe.getMessage());
+            return null;
+
+        }
+    }
+
+    private static byte[] decodeTreeHash(byte[] state) {
+
+        return state == null ? null : Arrays.copyOfRange(state, 8, HashTab.VALUE_SIZE);
 
     }
 
     private Path getTabFile(Path root) {
 
+        return getTabFile(root, HashTab.TABFILE);
+
+    }
+
+    private Path getTabFile(Path root, String tabFile) {
+
+        return getTabFile(metaDir, root, tabFile);
+
+    }
+
+    static Path getTabFile(Path metaDir, Path root, String tabFile) {
+
         if(metaDir == null) {
 
-            return root.resolve(HashTab.TABFILE);
+            return root.resolve(tabFile);
 
         }
 
-        return metaDir.resolve(root).resolve(HashTab.TABFILE);
+        return metaDir.resolve(root).resolve(tabFile);
 
     }
 
-    public List<Path> listChangedDirs(Path root) {
+    /**
+     * Gets the hashtab files saved for a root, such as to back them up. The change journal is not included, as it only
+     * holds changes not yet checked.
+     * @param metaDir the directory hashtabs are saved in, or null if they are saved in each root directory.
+     * @param root the root directory.
+     * @return the hashtab files that exist.
+     */
+    public static List<Path> getTabFiles(Path metaDir, Path root) {
 
-        if (root == null || !Files.isDirectory(root)) {
+        List<Path> tabFiles = new ArrayList<>();
+        for (String tabFile : new String[] { HashTab.TABFILE, HashTab.FILETAB, HashTab.CONTENTTAB, HashTab.HASHCACHE, HashTab.TREETAB }) {
 
-            throw new IllegalArgumentException("Provided argument must be a directory");
+            Path path = getTabFile(metaDir, root, tabFile);
+            if (Files.isRegularFile(path)) {
 
+                tabFiles.add(path);
+
+            }
         }
 
-        ArrayList<Path> changedDirs = new ArrayList<>();
+        return tabFiles;
 
-        // Load the hashTab from the directory
-        hashTab.load(getTabFile(root));
+    }
 
-        try {
+    /**
+     * Sets whether files are compared by a digest of their content rather than by size and mtime. Content is only read
+     * when a file's device, inode, size, mtime or ctime have changed since it was last hashed, so a touched file is not
+     * reported as changed, and a file changed by a tool that keeps its mtime is. Files are hashed on the walker threads
+     * in parallel.
+     * @param contentHash true to compare files by content.
+     */
+    public void setContentHash(boolean contentHash) {
 
-            // Check the hash of the root directory followed by all subdirectories recursively.
-            Files.walk(root).filter(Files::isDirectory).forEach(p -> {
+        this.contentHash = contentHash;
 
-                Path rp = root.relativize(p);
+    }
 
-                try {
+    /**
+     * Gets the number of bytes of file content hashed by every check so far. Files are sized as listed.
+     * @return the number of bytes.
+     */
+    public long getBytesHashed() {
 
-                    // Calculate the hash of the directory
-                    String hash = calculateHash(p);
+        return bytesHashed.sum();
 
-                    if (hasDirChanged(rp, hash)) {
+    }
 
-                        changedDirs.add(p);
+    /**
+     * Gets the number of files reported as changed by every check so far, including hashtabs. Directories reported
+     * as changed are not counted.
+     * @return the number of files.
+     */
+    public long getFilesChanged() {
 
-                    }
+        return filesChanged.sum();
 
-                } catch (IOException ioe) {
+    }
 
-                    _LOG.warn("Unable to check for changes in {}: {}", rp, ioe.getMessage());
+    /**
+     * Gets the total size of the files reported as changed by every check so far. Files are sized as listed, so the
+     * size is known without reading their attributes again.
+     * @return the number of bytes.
+     */
+    public long getBytesChanged() {
 
-                }
-            });
+        return bytesChanged.sum();
+
+    }
+
+    private void countChange(long size) {
+
+        filesChanged.increment();
+        bytesChanged.add(size);
+
+    }
+
+    /**
+     * Gets the number of directories listed by every check so far.
+     * @return the number of directories.
+     */
+    public long getDirectoriesListed() {
+
+        return dirsListed.sum();
+
+    }
+
+    /**
+     * Gets the number of files compared with their recorded state by every check so far.
+     * @return the number of files.
+     */
+    public long getFilesChecked() {
+
+        return filesChecked.sum();
+
+    }
+
+    /**
+     * Gets the number of files whose content was hashed by every check so far.
+     * @return the number of files.
+     */
+    public long getFilesHashed() {
+
+        return filesHashed.sum();
+
+    }
+
+    /**
+     * Gets the time spent hashing file content by every check so far, summed across the walker threads.
+     * @return the time in milliseconds.
+     */
+    public long getHashMillis() {
+
+        return hashNanos.sum() / 1000000;
+
+    }
+
+    /**
+     * Sets the size of the buffer each walker thread reads files into to hash their content.
+     * @param readBufferSize the buffer size in bytes.
+     */
+    public void setReadBufferSize(int readBufferSize) {
+
+        if (readBufferSize < 1) {
+
+            throw new IllegalArgumentException("Read buffer size must be positive");
+
+        }
+
+        this.readBufferSize = readBufferSize;
+
+    }
+
+    /**
+     * Sets a pool to walk trees in, in place of one created for each check. A pool kept between checks keeps its
+     * threads, and their digests and buffers, warm; its idle threads still exit after a while, so an idle pool holds
+     * little memory. The pool is not shut down by this instance, and its parallelism replaces the number of threads.
+     * @param pool the pool to use, or null to create one for each check.
+     */
+    public void setPool(ForkJoinPool pool) {
+
+        this.pool = pool;
+
+    }
+
+    /**
+     * Sets whether the new state is discarded rather than saved. A dry run lists the same changes as a check, but
+     * leaves the hashtabs and the change journal as they were, so the next check lists them again.
+     * @param dryRun true to discard the new state.
+     */
+    public void setDryRun(boolean dryRun) {
+
+        this.dryRun = dryRun;
+
+    }
+
+    /**
+     * Sets whether a subdirectory whose mtime is unchanged since the last check is skipped, with everything below it,
+     * without being listed. A directory's mtime changes only when entries are added to, removed from or renamed
+     * within it, not when a file is written in place or something changes further down. Only use this for trees where
+     * every change shows in the mtime of each directory above it, such as those written only by tools that touch
+     * each parent directory.
+     * <p>
+     * The state of a skipped subtree is carried forward from the previous hashtabs, so they keep entries for paths
+     * that have been removed until the next check without pruning.
+     * @param pruneSubtrees true to skip subtrees with unchanged mtimes.
+     */
+    public void setPruneSubtrees(boolean pruneSubtrees) {
+
+        this.pruneSubtrees = pruneSubtrees;
+
+    }
+
+    /**
+     * Sets whether the inode of each file is recorded, so a file replaced by another of the same size and mtime is
+     * detected as changed. Uses the file key of the platform, so has no effect where there is none.
+     * @param trackInodes true to record inodes.
+     */
+    public void setTrackInodes(boolean trackInodes) {
+
+        this.trackInodes = trackInodes;
+
+    }
+
+    /**
+     * Sets whether the journal recorded by a {@link WatchDaemon} is read in place of walking the whole tree. Only
+     * directories recorded as changed, and those above them, are listed; the state of every other subtree is carried
+     * forward from the previous hashtabs, as with {@link #setPruneSubtrees(boolean)}. The whole tree is walked if no
+     * daemon is watching the root, or the daemon may have missed changes since the last check.
+     * @param useJournal true to read the change journal.
+     */
+    public void setUseJournal(boolean useJournal) {
+
+        this.useJournal = useJournal;
+
+    }
+
+    /**
+     * Lists the directories below a root whose files have changed since the last call, and saves the new state. The
+     * tree is walked in parallel, but directories are listed in the order a depth-first walk would find them.
+     * @param root the root directory.
+     * @return the changed directories, followed by the hashtab files if there are any.
+     */
+    public List<Path> listChangedDirs(Path root) {
+
+        return listChanges(root, false, null);
+
+    }
+
+    /**
+     * Lists the files below a root that have changed since the last call, and saves the new state. Only directories
+     * whose hash has changed are compared file by file, so unchanged directories cost no more than with
+     * {@link #listChangedDirs(Path)}. Files are listed in the order a depth-first walk would find them.
+     * @param root the root directory.
+     * @return the new and changed files, followed by the hashtab files if there are any.
+     */
+    public List<Path> listChangedFiles(Path root) {
+
+        return listChanges(root, true, null);
+
+    }
+
+    /**
+     * Finds the files below a root that have changed since the last call, passing them on as they are found, and
+     * saves the new state. The changed files of each directory are passed to the sink as soon as the directory has
+     * been compared, from the walker threads, so the order varies between runs. The hashtab files are passed last,
+     * once saved, if there are any changes.
+     * @param root the root directory.
+     * @param sink called with the changed files of each directory. May block, which holds back the walk.
+     */
+    public void listChangedFiles(Path root, Consumer<List<Path>> sink) {
+
+        listChanges(root, true, sink);
+
+    }
+
+    private List<Path> listChanges(Path root, boolean listFiles, Consumer<List<Path>> sink) {
+
+        if (root == null || !Files.isDirectory(root)) {
+
+            throw new IllegalArgumentException("Provided argument must be a directory");
+
+        }
+
+        List<Path> changes, tabFiles;
+        boolean changed;
+        try (RootCheck check = new RootCheck(root, listFiles, sink)) {
+
+            changes = check.run();
+            tabFiles = check.tabFiles;
+            changed = (check.changed || !changes.isEmpty());
 
         } catch (IOException ioe) {
 
-            _LOG.error("Error checking directory for changes", ioe);
+            throw new UncheckedIOException("Error checking directory for changes", ioe);
 
         }
 
-        // Save the changed hashes
-        newHashTab.save(getTabFile(root));
+        // Add the tab files only if there are changes
+        if (changed) {
 
-        // Add the tab file only if there are changes
-        if (changedDirs.size() > 0) {
+            for (Path tabFile : tabFiles) {
 
-            changedDirs.add(getTabFile(root));
+                countChange(tabFile.toFile().length());
 
+            }
         }
+        if (changed && sink != null) {
 
-        return changedDirs;
+            sink.accept(tabFiles);
 
-    }
+        } else if (changed) {
 
-    public static void main(String[] args) {
+            changes.addAll(tabFiles);
 
-        TreeDiff diff = new TreeDiff(Paths.get("meta"));
-        List<Path> changedDirs = diff.listChangedDirs(Paths.get("src"));
-        changedDirs.forEach(System.out::println);
+        }
+
+        return changes;
 
     }
 
-    static class HashTab
+    /**
+     * The state of one check of a root: its previous hashtabs, read in place, and the new ones, spooled to disk. Each
+     * check has its own, so several roots can be checked at once.
+     */
+    private class RootCheck implements Closeable
     {
 
-        private final HashMap<String, String> entries = new HashMap<>();
-        static final String TABFILE = ".hashTab";
+        private final Path root;
+        private final boolean listFiles;
+        private final Consumer<List<Path>> sink;
+        private final List<Path> tabFiles = new ArrayList<>();
+        private final List<Closeable> resources = new ArrayList<>();
+        private HashTab hashTab, fileTab, hashCache, treeTab;
+        private HashTab.Writer newHashTab, newFileTab, newHashCache, newTreeTab;
+        private ChangeJournal journal;
+        private volatile boolean changed;
+
+        RootCheck(Path root, boolean listFiles, Consumer<List<Path>> sink) throws IOException {
+
+            this.root = root;
+            this.listFiles = listFiles;
+            this.sink = sink;
 
+            // File states of each kind are kept in their own table, so switching modes does not compare one with the
+            // other
+            String fileTabName = (contentHash ? HashTab.CONTENTTAB : HashTab.FILETAB);
+            tabFiles.addAll(Arrays.asList(getTabFile(root), getTabFile(root, fileTabName), getTabFile(root, HashTab.TREETAB)));
+            if (contentHash) {
 
-        void load(Path tabFile) {
+                tabFiles.add(getTabFile(root, HashTab.HASHCACHE));
+
+            }
 
             try {
 
-                if (!Files.exists(tabFile)) {
+                hashTab = open(HashTab.open(getTabFile(root)));
+                fileTab = open(HashTab.open(getTabFile(root, fileTabName)));
+                hashCache = (contentHash ? open(HashTab.open(getTabFile(root, HashTab.HASHCACHE))) : null);
+                treeTab = open(HashTab.open(getTabFile(root, HashTab.TREETAB)));
+                newHashTab = open(new HashTab.Writer(getTabFile(root)));
+                newFileTab = open(new HashTab.Writer(getTabFile(root, fileTabName)));
+                newHashCache = (contentHash ? open(new HashTab.Writer(getTabFile(root, HashTab.HASHCACHE))) : null);
+                newTreeTab = open(new HashTab.Writer(getTabFile(root, HashTab.TREETAB)));
+
+            } catch (IOException | RuntimeException e) {
+
+                try {
+
+                    close();
 
-                    // Just ignore
-                    return;
+                } catch (IOException ioe) {
+
+                    e.addSuppressed(ioe);
 
                 }
+                throw e;
 
-                try (BufferedReader r = new BufferedReader(new FileReader(tabFile.toFile()))) {
+            }
+        }
 
-                    int lineNumber = 0;
-                    String line = r.readLine();
-                    while (line != null) {
+        private <T extends Closeable> T open(T resource) {
 
-                        lineNumber++;
+            resources.add(resource);
+            return resource;
 
-                        String[] parts = line.split("\\s+");
-                        if (parts.length == 2) {
+        }
 
-                            entries.put(parts[0], parts[1]);
+        @Override
+        public void close() throws IOException {
 
-                        } else {
+            // Close in the reverse order of opening, keeping the first failure
+            IOException failure = null;
+            for (int i = resources.size() - 1; i >= 0; i--) {
 
-                            _LOG.warn("HashTab: Ignoring invalid line {} in hashtab", lineNumber);
+                try {
 
-                        }
+                    resources.get(i).close();
 
-                        line = r.readLine();
+                } catch (IOException ioe) {
+
+                    if (failure == null) {
+
+                        failure = ioe;
+
+                    } else {
+
+                        failure.addSuppressed(ioe);
 
                     }
                 }
+            }
 
-            } catch (IOException ioe) {
+            resources.clear();
+            if (failure != null) {
 
-                _LOG.error("Error loading hashtab", ioe);
+                throw failure;
 
             }
         }
 
-        void save(Path tabFile) {
+        /**
+         * Walks the root, or the parts of it recorded in the change journal, and saves the new hashtabs.
+         * @return the changes found.
+         * @throws IOException if the hashtabs or the journal cannot be written.
+         */
+        List<Path> run() throws IOException {
+
+            ChangeJournal changeJournal = null;
+            if (useJournal) {
+
+                changeJournal = new ChangeJournal(getTabFile(root, HashTab.JOURNAL));
+                changeJournal.take();
+                if (changeJournal.isFullWalkRequired()) {
+
+                    _LOG.info("Change journal for {} may be incomplete, walking the whole tree", root);
 
+                } else {
+
+                    _LOG.info("{} directories below {} recorded as changed", changeJournal.getChangedDirCount(), root);
+                    journal = changeJournal;
+
+                }
+            }
+
+            // Check the hash of the root directory followed by all subdirectories recursively.
+            ForkJoinPool walkPool = (pool == null ? new ForkJoinPool(threads) : pool);
+            DirectoryResult result;
             try {
 
-                Files.createDirectories(tabFile.getParent());
+                result = walkPool.invoke(new DirectoryTask(root, Files.getLastModifiedTime(root), true));
 
-                try (PrintWriter w = new PrintWriter(new FileWriter(tabFile.toFile()))) {
+            } finally {
 
-                    entries.forEach((k, v) -> w.println(String.format("%s %s", k, v)));
+                if (walkPool != pool) {
+
+                    walkPool.shutdown();
 
                 }
+            }
 
-            } catch (IOException ioe) {
+            if (result.treeHash != null && Arrays.equals(result.treeHash, decodeTreeHash(treeTab.get("")))) {
 
-                _LOG.error("Error saving hashtab", ioe);
+                _LOG.info("Nothing below {} has changed", root);
 
             }
+
+            if (dryRun) {
+
+                // The spooled tables are discarded on close
+                return result.changes;
+
+            }
+
+            // Save the changed hashes. Entries for skipped subtrees are carried forward from the previous tables;
+            // otherwise only paths still present are kept, so the tables do not grow without bound.
+            boolean carryForward = (pruneSubtrees || journal != null);
+            newHashTab.save(carryForward ? hashTab : null);
+            newFileTab.save(carryForward ? fileTab : null);
+            if (newHashCache != null) {
+
+                newHashCache.save(carryForward ? hashCache : null);
+
+            }
+            newTreeTab.save(carryForward ? treeTab : null);
+
+            // The journal entries are only discarded once the changes they cover are saved
+            if (changeJournal != null) {
+
+                changeJournal.commit();
+
+            }
+
+            return result.changes;
+
         }
 
-        boolean checkHash(Path p, String hash) {
+        private boolean hasDirChanged(Path path, byte[] hash) {
+
+            // Compare with the hash from the hashTab
+            String key = path.toString();
+            boolean changed = !Arrays.equals(hash, hashTab.get(key));
 
-            return !hash.equals(getHash(p));
+            // Save the hash to the new hashtab
+            if (hash != null) {
+
+                newHashTab.put(key, hash);
+
+            }
+
+            return changed;
 
         }
 
-        String getHash(Path path) {
+        /**
+         * Checks whether a file has changed since the last call, by comparing its state with that recorded in the file
+         * hashtab. In content hash mode the state is a digest of the file's content, and is always compared. Otherwise it
+         * is the file's size and mtime, and its inode if inodes are being tracked. A recorded state without an inode is
+         * compared on size and mtime alone, so starting to track inodes does not report every file as changed.
+         * @param path the path of the file relative to the root.
+         * @param state the current state of the file.
+         * @param dirChanged whether the hash of the directory holding the file has changed.
+         * @return true if the file has changed or was not recorded.
+         */
+        private boolean hasFileChanged(Path path, byte[] state, boolean dirChanged) {
+
+            String key = path.toString();
+            byte[] recorded = fileTab.get(key);
 
-            return getHash(path.toString());
+            // Save the state to the new hashtab
+            newFileTab.put(key, state);
+
+            if (recorded == null) {
+
+                // Files in an unchanged directory are as they were, even if they were not recorded
+                return dirChanged;
+
+            }
+            if (contentHash) {
+
+                return !Arrays.equals(state, recorded);
+
+            }
+            if (!dirChanged && !trackInodes) {
+
+                // The directory hash covers size and mtime
+                return false;
+
+            }
+
+            ByteBuffer current = ByteBuffer.wrap(state), previous = ByteBuffer.wrap(recorded);
+            int inode = current.getInt(16), recordedInode = previous.getInt(16);
+
+            return current.getLong(0) != previous.getLong(0) || current.getLong(8) != previous.getLong(8)
+                    || (inode != 0 && recordedInode != 0 && inode != recordedInode);
 
         }
 
-        String getHash(String fileName) {
+        /**
+         * Checks one directory for changes, then checks its subdirectories as separate tasks. Idle threads steal the
+         * subdirectory tasks, so many directories are listed at once. Each file's state is recorded whichever is
+         * listed, so switching between listing directories and files does not report every file as changed.
+         */
+        private class DirectoryTask extends RecursiveTask<DirectoryResult>
+        {
+
+            private static final long serialVersionUID = 1L;
+
+            private final Path dir;
+            private final FileTime modTime;
+            private final boolean walk;
+
+            DirectoryTask(Path dir, FileTime modTime, boolean walk) {
+
+                this.dir = dir;
+                this.modTime = modTime;
+                this.walk = walk;
+
+            }
+
+            /**
+             * Compares the files of the directory with their recorded states. In content hash mode, files whose content
+             * digest is not cached are hashed as separate tasks, so idle threads share the hashing of a large directory.
+             * @param files the attributes of each file, in listing order.
+             * @param dirChanged whether the hash of the directory has changed.
+             * @return the files that have changed, in listing order.
+             */
+            private List<Path> compareFiles(Map<Path, BasicFileAttributes> files, boolean dirChanged) {
+
+                List<Path> paths = new ArrayList<>(files.keySet());
+                String[] cacheKeys = new String[paths.size()];
+                byte[][] states = new byte[paths.size()][];
+                ContentHashTask[] tasks = new ContentHashTask[paths.size()];
+
+                for (int i = 0; i < paths.size(); i++) {
+
+                    Path p = paths.get(i);
+                    BasicFileAttributes attrs = files.get(p);
+
+                    if (!contentHash) {
+
+                        states[i] = encodeFileState(attrs.size(), attrs.lastModifiedTime().toMillis(), trackInodes ? attrs.fileKey() : null);
+                        continue;
+
+                    }
+
+                    try {
+
+                        cacheKeys[i] = getCacheKey(p, attrs);
+                        states[i] = hashCache.get(cacheKeys[i]);
+                        if (states[i] == null) {
+
+                            tasks[i] = new ContentHashTask(p, attrs.size());
+                            tasks[i].fork();
+
+                        }
+
+                    } catch (IOException ioe) {
+
+                        _LOG.warn("Ignoring {}: {}", p, ioe.getMessage());
+
+                    }
+                }
+
+                List<Path> changedFiles = new ArrayList<>();
+                for (int i = 0; i < paths.size(); i++) {
+
+                    if (tasks[i] != null) {
+
+                        states[i] = tasks[i].join();
+
+                    }
+                    if (states[i] == null) {
+
+                        // Could not be read, so is neither recorded nor reported
+                        continue;
+
+                    }
+                    if (cacheKeys[i] != null) {
+
+                        newHashCache.put(cacheKeys[i], states[i]);
 
-            if(entries.containsKey(fileName)) {
+                    }
+                    if (hasFileChanged(root.relativize(paths.get(i)), states[i], dirChanged)) {
 
-                return entries.get(fileName);
+                        changedFiles.add(paths.get(i));
+
+                    }
+                }
+
+                return changedFiles;
 
             }
 
-            return HashUtils.DEFAULT_HASH;
+            @Override
+            protected DirectoryResult compute() {
+
+                Map<Path, BasicFileAttributes> subDirs = new LinkedHashMap<>();
+                Set<Path> linkedDirs = new HashSet<>();
+                Map<Path, BasicFileAttributes> files = new LinkedHashMap<>();
+                Path rp = root.relativize(dir);
+
+                byte[] hash;
+                try {
+
+                    // Calculate the hash of the directory
+                    hash = calculateHash(dir, TreeDiff.hash.get(), subDirs, linkedDirs, files);
+                    dirsListed.increment();
+                    filesChecked.add(files.size());
+
+                } catch (IOException ioe) {
+
+                    _LOG.warn("Unable to check for changes in {}: {}", rp, ioe.getMessage());
+                    return new DirectoryResult(new ArrayList<>(), null);
+
+                }
+
+                // As with Files.walk, a link to a directory is checked but not walked. Subdirectories are walked while the
+                // files here are compared.
+                Map<Path, BasicFileAttributes> walkedDirs = (walk ? subDirs : Collections.emptyMap());
+                Map<Path, byte[]> prunedDirs = new HashMap<>();
+                Map<Path, DirectoryTask> tasks = new LinkedHashMap<>();
+                for (Map.Entry<Path, BasicFileAttributes> subDir : walkedDirs.entrySet()) {
+
+                    FileTime subDirModTime = subDir.getValue().lastModifiedTime();
+                    String key = root.relativize(subDir.getKey()).toString();
+                    byte[] recorded = treeTab.get(key);
+
+                    boolean unchanged = (pruneSubtrees && recorded != null && ByteBuffer.wrap(recorded).getLong(0) == subDirModTime.to(TimeUnit.NANOSECONDS))
+                            || (journal != null && !journal.requiresWalk(key));
+
+                    if (recorded != null && unchanged) {
+
+                        // Unchanged since the last check, so carry its state forward without listing it
+                        newTreeTab.put(key, recorded);
+                        prunedDirs.put(subDir.getKey(), decodeTreeHash(recorded));
+                        continue;
+
+                    }
+
+                    DirectoryTask task = new DirectoryTask(subDir.getKey(), subDirModTime, !linkedDirs.contains(subDir.getKey()));
+                    task.fork();
+                    tasks.put(subDir.getKey(), task);
+
+                }
+
+                boolean dirChanged = hasDirChanged(rp, hash);
+                List<Path> changedFiles = compareFiles(files, dirChanged);
+
+                List<Path> changes = new ArrayList<>();
+                if (listFiles) {
+
+                    changes.addAll(changedFiles);
+                    changedFiles.forEach(p -> countChange(files.get(p).size()));
+
+                } else if (contentHash ? !changedFiles.isEmpty() : dirChanged) {
+
+                    // By content, a directory has changed only if one of its files has
+                    changes.add(dir);
+
+                }
+
+                if (sink != null && !changes.isEmpty()) {
+
+                    // Pass on this directory's changes while its subdirectories are walked
+                    changed = true;
+                    sink.accept(changes);
+                    changes = new ArrayList<>();
+
+                }
+
+                // Join in listing order so the result matches a sequential walk
+                Map<Path, byte[]> treeHashes = new HashMap<>(prunedDirs);
+                for (Map.Entry<Path, DirectoryTask> task : tasks.entrySet()) {
 
+                    DirectoryResult result = task.getValue().join();
+                    changes.addAll(result.changes);
+                    treeHashes.put(task.getKey(), result.treeHash);
+
+                }
+
+                return new DirectoryResult(changes, calculateTreeHash(rp, hash, walkedDirs.keySet(), treeHashes));
+
+            }
+
+            /**
+             * Calculates the Merkle hash of the directory, from the hash of its own files and the name and Merkle hash of
+             * each subdirectory in listing order, and records it with the directory mtime. Only called once every
+             * subdirectory has been joined, as joining may run other tasks that use this thread's digest.
+             * @return the hash, or null if part of the tree could not be listed. Such a directory is not recorded, so it is
+             * never skipped.
+             */
+            private byte[] calculateTreeHash(Path rp, byte[] hash, Set<Path> subDirs, Map<Path, byte[]> treeHashes) {
+
+                for (Path subDir : subDirs) {
+
+                    if (treeHashes.get(subDir) == null) {
+
+                        return null;
+
+                    }
+                }
+
+                HashUtils digest = TreeDiff.hash.get();
+                digest.update(hash == null ? new byte[HashTab.VALUE_SIZE] : hash);
+                for (Path subDir : subDirs) {
+
+                    digest.update(subDir.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                    digest.update(treeHashes.get(subDir));
+
+                }
+
+                byte[] treeHash = Arrays.copyOf(digest.calculateHashBytes(), _TREE_HASH_SIZE);
+                if (modTime != null) {
+
+                    newTreeTab.put(rp.toString(), ByteBuffer.allocate(HashTab.VALUE_SIZE).putLong(modTime.to(TimeUnit.NANOSECONDS)).put(treeHash).array());
+
+                }
+
+                return treeHash;
+
+            }
         }
+    }
+
+    private static class DirectoryResult
+    {
 
-        void putHash(Path path, String hash) {
+        private final List<Path> changes;
+        private final byte[] treeHash;
 
-            putHash(path.toString(), hash);
+        DirectoryResult(List<Path> changes, byte[] treeHash) {
+
+            this.changes = changes;
+            this.treeHash = treeHash;
 
         }
+    }
+
+    /**
+     * Calculates the digest of a file's content.
+     */
+    private class ContentHashTask extends RecursiveTask<byte[]>
+    {
+
+        private static final long serialVersionUID = 1L;
 
-        void putHash(String fileName, String hash) {
+        private final Path path;
+        private final long size;
 
-            if(!HashUtils.DEFAULT_HASH.equals(hash)) {
+        ContentHashTask(Path path, long size) {
 
-                entries.put(fileName, hash);
+            this.path = path;
+            this.size = size;
+
+        }
+
+        @Override
+        protected byte[] compute() {
+
+            long startNanos = System.nanoTime();
+            try (InputStream in = Files.newInputStream(path)) {
+
+                byte[] digest = hash.get().calculateHashBytes(in, getReadBuffer());
+                filesHashed.increment();
+                bytesHashed.add(size);
+                return digest;
+
+            } catch (IOException ioe) {
+
+                _LOG.warn("Ignoring {}: {}", path, ioe.getMessage());
+                return null;
+
+            } finally {
+
+                hashNanos.add(System.nanoTime() - startNanos);
 
             }
         }
     }
+
+    public static void main(String[] args) {
+
+        TreeDiff diff = new TreeDiff(Paths.get("meta"));
+        List<Path> changedDirs = diff.listChangedDirs(Paths.get("src"));
+        changedDirs.forEach(System.out::println);
+
+    }
 }
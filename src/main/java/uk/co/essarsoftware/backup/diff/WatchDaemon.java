@@ -0,0 +1,357 @@
+package uk.co.essarsoftware.backup.diff;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches source roots for changes and records the directories that change in each root's {@link ChangeJournal}, so
+ * the next check need only list those directories rather than walking the whole tree. Every directory below each root
+ * is watched, and new directories are watched as they are created. Changes are batched and written to the journal
+ * about once a second.
+ * <p>
+ * If events are lost, because the event queue overflowed or a directory could not be watched, the journal is marked
+ * so the next check walks the whole tree.
+ * <p>
+ * Usage: {@code WatchDaemon [--meta <dir>] <source>...}
+ * @author <steve.roberts/>
+ */
+public class WatchDaemon implements Closeable, Runnable
+{
+
+    private static final Logger _LOG = LoggerFactory.getLogger(WatchDaemon.class);
+
+    private static final long _FLUSH_INTERVAL_MS = 1000;
+
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final List<WatchedRoot> roots = new ArrayList<>();
+    private final WatchService watcher;
+    private volatile boolean closed;
+
+    /**
+     * Creates a daemon and starts watching each root. Journals are kept alongside the hashtabs of {@link TreeDiff}.
+     * @param metaDir the directory hashtabs are saved in, or null if they are saved in each root directory.
+     * @param roots the root directories to watch.
+     * @throws IOException if a root is already watched, or a watch service cannot be created.
+     */
+    public WatchDaemon(Path metaDir, List<Path> roots) throws IOException {
+
+        watcher = FileSystems.getDefault().newWatchService();
+
+        try {
+
+            for (Path root : roots) {
+
+                if (!Files.isDirectory(root)) {
+
+                    throw new IllegalArgumentException(String.format("%s is not a directory", root));
+
+                }
+
+                ChangeJournal journal = new ChangeJournal(TreeDiff.getTabFile(metaDir, root, HashTab.JOURNAL));
+                WatchedRoot watched = new WatchedRoot(root, journal, journal.lockDaemon());
+                this.roots.add(watched);
+
+                // Changes made before now were not seen, so the next check must walk the whole tree
+                watched.record(ChangeJournal.FULL_WALK);
+                register(watched, root);
+
+                _LOG.info("Watching {}", root);
+
+            }
+
+            flush();
+
+        } catch (IOException | RuntimeException e) {
+
+            close();
+            throw e;
+
+        }
+    }
+
+    @Override
+    public void close() {
+
+        closed = true;
+
+        try {
+
+            watcher.close();
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to close watch service: {}", ioe.getMessage());
+
+        }
+
+        flush();
+
+        for (WatchedRoot root : roots) {
+
+            try {
+
+                root.daemonLock.close();
+
+            } catch (IOException ioe) {
+
+                _LOG.warn("Unable to release journal lock for {}: {}", root.root, ioe.getMessage());
+
+            }
+        }
+    }
+
+    /**
+     * Writes the changes recorded since the last flush to each root's journal. Changes that cannot be written are kept
+     * and written with the next flush.
+     */
+    private void flush() {
+
+        for (WatchedRoot root : roots) {
+
+            List<String> entries;
+            synchronized (root) {
+
+                if (root.entries.isEmpty()) {
+
+                    continue;
+
+                }
+
+                entries = new ArrayList<>(root.entries);
+                root.entries.clear();
+
+            }
+
+            try {
+
+                root.journal.append(entries);
+
+            } catch (IOException ioe) {
+
+                _LOG.error("Unable to write change journal for {}: {}", root.root, ioe.getMessage());
+                synchronized (root) {
+
+                    root.entries.addAll(entries);
+
+                }
+            }
+        }
+    }
+
+    private WatchedRoot getRoot(Path dir) {
+
+        for (WatchedRoot root : roots) {
+
+            if (dir.startsWith(root.root)) {
+
+                return root;
+
+            }
+        }
+
+        return null;
+
+    }
+
+    private void handleEvents(WatchKey key) {
+
+        Path dir = watchedDirs.get(key);
+        WatchedRoot root = (dir == null ? null : getRoot(dir));
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+
+            if (event.kind() == OVERFLOW) {
+
+                // The queue is shared by every root, so any of them may have lost events
+                _LOG.warn("Change events were lost, the next check will walk every root");
+                roots.forEach(r -> r.record(ChangeJournal.FULL_WALK));
+                continue;
+
+            }
+            if (root == null) {
+
+                continue;
+
+            }
+
+            Path name = (Path) event.context();
+            if (HashTab.isTabFile(name.toString())) {
+
+                // Written by the checks and by this daemon
+                continue;
+
+            }
+
+            root.record(ChangeJournal.entry(ChangeJournal.DIRTY, root.root.relativize(dir)));
+
+            Path child = dir.resolve(name);
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+
+                // Entries may have been added before the new directory was watched, so list all of it
+                root.record(ChangeJournal.entry(ChangeJournal.RECURSIVE, root.root.relativize(child)));
+                register(root, child);
+
+            }
+        }
+
+        if (!key.reset()) {
+
+            // The directory is gone
+            watchedDirs.remove(key);
+
+        }
+    }
+
+    /**
+     * Watches a directory and every directory below it. Links to directories are not followed, as the walk of the
+     * tree does not follow them either.
+     */
+    private void register(WatchedRoot root, Path dir) {
+
+        try {
+
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+
+                    watchedDirs.put(d.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), d);
+                    return FileVisitResult.CONTINUE;
+
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ioe) {
+
+                    // Vanished since it was listed, or cannot be read
+                    _LOG.debug("Not watching {}: {}", file, ioe.getMessage());
+                    return FileVisitResult.CONTINUE;
+
+                }
+            });
+
+        } catch (IOException ioe) {
+
+            // Most likely the limit on the number of watches was reached
+            _LOG.error("Unable to watch {}, the next check will walk the whole tree: {}", dir, ioe.getMessage());
+            root.record(ChangeJournal.FULL_WALK);
+
+        }
+    }
+
+    /**
+     * Records changes until closed.
+     */
+    @Override
+    public void run() {
+
+        long nextFlush = System.currentTimeMillis() + _FLUSH_INTERVAL_MS;
+
+        try {
+
+            while (!closed) {
+
+                WatchKey key = watcher.poll(Math.max(1, nextFlush - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (key != null) {
+
+                    handleEvents(key);
+
+                }
+
+                if (System.currentTimeMillis() >= nextFlush) {
+
+                    flush();
+                    nextFlush = System.currentTimeMillis() + _FLUSH_INTERVAL_MS;
+
+                }
+            }
+
+        } catch (ClosedWatchServiceException cwse) {
+
+            // Closed while waiting
+
+        } catch (InterruptedException ie) {
+
+            Thread.currentThread().interrupt();
+
+        }
+
+        flush();
+
+    }
+
+    private static class WatchedRoot
+    {
+
+        private final Path root;
+        private final ChangeJournal journal;
+        private final FileChannel daemonLock;
+        private final Set<String> entries = new LinkedHashSet<>();
+
+        WatchedRoot(Path root, ChangeJournal journal, FileChannel daemonLock) {
+
+            this.root = root;
+            this.journal = journal;
+            this.daemonLock = daemonLock;
+
+        }
+
+        synchronized void record(String entry) {
+
+            entries.add(entry);
+
+        }
+    }
+
+    public static void main(String[] args) {
+
+        LinkedList<String> argList = new LinkedList<>(Arrays.asList(args));
+        List<Path> roots = new ArrayList<>();
+        Path metaDir = null;
+
+        while (argList.size() > 0) {
+
+            final String arg = argList.removeFirst();
+
+            if ("--meta".equals(arg)) {
+
+                metaDir = Paths.get(argList.removeFirst());
+                continue;
+
+            }
+
+            roots.add(Paths.get(arg));
+
+        }
+
+        if (roots.isEmpty()) {
+
+            System.err.println("Usage: WatchDaemon [--meta <dir>] <source>...");
+            System.exit(1);
+
+        }
+
+        try {
+
+            WatchDaemon daemon = new WatchDaemon(metaDir, roots);
+            Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+            daemon.run();
+
+        } catch (IOException | IllegalArgumentException e) {
+
+            _LOG.error("Unable to start watching: {}", e.getMessage());
+            System.exit(1);
+
+        }
+    }
+}
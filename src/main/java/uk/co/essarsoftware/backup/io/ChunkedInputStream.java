@@ -12,7 +12,7 @@ import java.util.Arrays;
 public class ChunkedInputStream extends InputStream
 {
 
-    private int position = 0;
+    private long position = 0;
     private final int chunkSize;
     private final InputStream in;
 
@@ -39,11 +39,18 @@ public class ChunkedInputStream extends InputStream
 
     }
 
+    @Override
+    public void close() throws IOException {
+
+        in.close();
+
+    }
+
     /**
      * Gets the current position from the start of the stream.
      * @return the number of bytes already read.
      */
-    public int getPosition() {
+    public long getPosition() {
 
         synchronized (this) {
 
@@ -88,7 +95,8 @@ public class ChunkedInputStream extends InputStream
 
     /**
      * Reads a chunk of data of the specified number of bytes or until the end of the stream. This method is synchronized
-     * so multiple threads may call this concurrently to retrieve sequential chunks.
+     * so multiple threads may call this concurrently to retrieve sequential chunks. Reads until the chunk is full, as
+     * the wrapped stream may return fewer bytes than requested, and only the last chunk may be short.
      * @return a byte array read from the stream. The byte array is shrunk to the exact length read.
      * @throws IOException if an error occurs reading the data.
      */
@@ -98,7 +106,19 @@ public class ChunkedInputStream extends InputStream
 
         synchronized (this) {
 
-            int len = read(buf);
+            int len = 0;
+            while (len < chunkSize) {
+
+                int read = read(buf, len, chunkSize - len);
+                if (read < 0) {
+
+                    break;
+
+                }
+                len += read;
+
+            }
+
             if (len > 0) {
 
                 return Arrays.copyOf(buf, len);
@@ -0,0 +1,122 @@
+package uk.co.essarsoftware.backup.io;
+
+import uk.co.essarsoftware.backup.HashUtils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stream that hashes data in fixed-size leaves as it is written, so a tree hash of the output can be calculated without
+ * reading it back.
+ * @author <steve.roberts/>
+ */
+public class LeafHashOutputStream extends FilterOutputStream
+{
+
+    private final HashUtils hash;
+    private final byte[] leaf;
+    private final List<byte[]> leaves;
+
+    private int leafLength;
+
+    /**
+     * Wraps an existing {@see OutputStream}, starting at the beginning of a leaf.
+     * @param out the stream to write to.
+     * @param hash the hashing instance to use for leaves.
+     * @param leafSize the size of each leaf.
+     */
+    public LeafHashOutputStream(OutputStream out, HashUtils hash, int leafSize) {
+
+        this(out, hash, leafSize, Collections.emptyList(), new byte[0]);
+
+    }
+
+    /**
+     * Wraps an existing {@see OutputStream} that continues previously hashed data.
+     * @param out the stream to write to.
+     * @param hash the hashing instance to use for leaves.
+     * @param leafSize the size of each leaf.
+     * @param leaves the hashes of the complete leaves already written.
+     * @param partialLeaf the data written since the last complete leaf. Must be shorter than the leaf size.
+     */
+    public LeafHashOutputStream(OutputStream out, HashUtils hash, int leafSize, List<byte[]> leaves, byte[] partialLeaf) {
+
+        super(out);
+
+        if (partialLeaf.length >= leafSize) {
+
+            throw new IllegalArgumentException("Partial leaf must be shorter than the leaf size");
+
+        }
+
+        this.hash = hash;
+        this.leaf = new byte[leafSize];
+        this.leaves = new ArrayList<>(leaves);
+
+        System.arraycopy(partialLeaf, 0, leaf, 0, partialLeaf.length);
+        leafLength = partialLeaf.length;
+
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+
+        out.write(b);
+
+        leaf[leafLength++] = (byte) b;
+        if (leafLength == leaf.length) {
+
+            completeLeaf();
+
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+
+        out.write(b, off, len);
+
+        while (len > 0) {
+
+            int copy = Math.min(len, leaf.length - leafLength);
+            System.arraycopy(b, off, leaf, leafLength, copy);
+            leafLength += copy;
+            off += copy;
+            len -= copy;
+
+            if (leafLength == leaf.length) {
+
+                completeLeaf();
+
+            }
+        }
+    }
+
+    private void completeLeaf() {
+
+        leaves.add(hash.calculateHashBytes(leaf, 0, leafLength));
+        leafLength = 0;
+
+    }
+
+    /**
+     * Gets the leaf hashes of everything written so far. The final leaf is included even if it is incomplete.
+     * @return a List of leaf hashes.
+     */
+    public List<byte[]> getLeaves() {
+
+        List<byte[]> all = new ArrayList<>(leaves);
+        if (leafLength > 0) {
+
+            all.add(hash.calculateHashBytes(leaf, 0, leafLength));
+
+        }
+
+        return all;
+
+    }
+}
@@ -0,0 +1,102 @@
+package uk.co.essarsoftware.backup.io;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+
+/**
+ * Stream reading a file while it is still being written. At the end of the data written so far, reads wait for more
+ * until the writer calls {@link #finish()}, so a file can be uploaded as it is created. The writer must only append to
+ * the file.
+ * @author <steve.roberts/>
+ */
+public class TailInputStream extends InputStream
+{
+
+    private static final long _POLL_MILLIS = 50L;
+
+    private final InputStream in;
+    private volatile boolean finished;
+    private volatile Throwable failure;
+
+    public TailInputStream(Path path) throws IOException {
+
+        this.in = new FileInputStream(path.toFile());
+
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        in.close();
+
+    }
+
+    /**
+     * Marks the file as complete, so reads return the end of the stream once every byte has been read.
+     */
+    public void finish() {
+
+        finished = true;
+
+    }
+
+    /**
+     * Marks the file as incomplete and abandoned, so reads fail rather than waiting for data that will never come.
+     * @param cause the reason the file was abandoned.
+     */
+    public void fail(Throwable cause) {
+
+        failure = cause;
+
+    }
+
+    @Override
+    public int read() throws IOException {
+
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+
+        if (len == 0) {
+
+            return 0;
+
+        }
+
+        while (true) {
+
+            // Check for completion before reading, so nothing written before finish() is missed
+            boolean complete = finished;
+            if (failure != null) {
+
+                throw new IOException("File was abandoned while being read", failure);
+
+            }
+
+            int read = in.read(b, off, len);
+            if (read >= 0 || complete) {
+
+                return read;
+
+            }
+
+            try {
+
+                Thread.sleep(_POLL_MILLIS);
+
+            } catch (InterruptedException ie) {
+
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for data");
+
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package uk.co.essarsoftware.backup.restore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.ProfileCredentialsProvider;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.glacier.GlacierClient;
+import software.amazon.awssdk.services.glacier.model.*;
+import uk.co.essarsoftware.backup.upload.GlacierConfiguration;
+
+/**
+ * Retrieves archives from the configured Glacier vault.
+ * @author <steve.roberts/>
+ */
+public class GlacierRetrievalService implements RetrievalService
+{
+
+    private static final Logger _LOG = LoggerFactory.getLogger(GlacierRetrievalService.class);
+
+    private final GlacierClient glacier;
+    private final String tier;
+
+    /**
+     * Creates a service for the vault and profile in {@link GlacierConfiguration}.
+     * @param tier the retrieval tier: {@code Expedited}, {@code Standard} or {@code Bulk}.
+     */
+    public GlacierRetrievalService(String tier) {
+
+        this.tier = tier;
+
+        glacier = GlacierClient.builder()
+                .credentialsProvider(ProfileCredentialsProvider.builder()
+                        .profileName(GlacierConfiguration.awsProfile)
+                        .build())
+                .build();
+
+        _LOG.debug("Initialised Glacier client: {}", glacier);
+
+    }
+
+    @Override
+    public void close() {
+
+        glacier.close();
+
+    }
+
+    @Override
+    public JobStatus describeJob(String jobId) {
+
+        DescribeJobRequest req = DescribeJobRequest.builder()
+                .vaultName(GlacierConfiguration.vaultName)
+                .jobId(jobId)
+                .build();
+
+        DescribeJobResponse rsp = glacier.describeJob(req);
+
+        // A range retrieval's output is the range; otherwise it is the whole archive
+        long outputSize = (rsp.archiveSizeInBytes() == null ? 0 : rsp.archiveSizeInBytes());
+        if (rsp.retrievalByteRange() != null) {
+
+            String[] range = rsp.retrievalByteRange().split("-");
+            outputSize = Long.parseLong(range[1]) - Long.parseLong(range[0]) + 1;
+
+        }
+
+        return new JobStatus(Boolean.TRUE.equals(rsp.completed()), rsp.statusCode() == StatusCode.SUCCEEDED,
+                rsp.statusMessage(), outputSize, rsp.sha256TreeHash());
+
+    }
+
+    @Override
+    public String findArchive(String archiveId, String fileName) {
+
+        return archiveId;
+
+    }
+
+    @Override
+    public JobOutput getJobOutput(String jobId, long start, long end) {
+
+        GetJobOutputRequest req = GetJobOutputRequest.builder()
+                .vaultName(GlacierConfiguration.vaultName)
+                .jobId(jobId)
+                .range(String.format("bytes=%d-%d", start, end))
+                .build();
+
+        ResponseInputStream<GetJobOutputResponse> in = glacier.getJobOutput(req);
+        return new JobOutput(in, in.response().checksum());
+
+    }
+
+    @Override
+    public String initiateRetrieval(String archiveId, String range) {
+
+        JobParameters.Builder params = JobParameters.builder()
+                .type("archive-retrieval")
+                .archiveId(archiveId)
+                .tier(tier);
+
+        if (range != null) {
+
+            params.retrievalByteRange(range);
+
+        }
+
+        InitiateJobRequest req = InitiateJobRequest.builder()
+                .vaultName(GlacierConfiguration.vaultName)
+                .jobParameters(params.build())
+                .build();
+
+        String jobId = glacier.initiateJob(req).jobId();
+        _LOG.info("Started {} retrieval of {} ({}): {}", tier, archiveId, range == null ? "whole archive" : range, jobId);
+
+        return jobId;
+
+    }
+}
@@ -0,0 +1,243 @@
+package uk.co.essarsoftware.backup.restore;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.essarsoftware.backup.HashUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in retrieval service serving archives from a local directory, for running a restore end to end without a
+ * vault. Archives are files named by archive ID or by tarball file name. Jobs can be made to take a number of polls
+ * to complete, and outputs can be corrupted in transit, to exercise polling and verification.
+ * @author <steve.roberts/>
+ */
+public class LocalRetrievalService implements RetrievalService
+{
+
+    private static final Logger _LOG = LoggerFactory.getLogger(LocalRetrievalService.class);
+
+    private static final int _1MB = 1048576;
+
+    private final Path directory;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicInteger corruptOutputs = new AtomicInteger(), jobCount = new AtomicInteger();
+    private int pollsToComplete;
+
+    public LocalRetrievalService(Path directory) {
+
+        this.directory = directory;
+
+    }
+
+    /**
+     * Calculates the tree hash of part of a file.
+     * @param channel the file.
+     * @param start the first byte.
+     * @param length the number of bytes.
+     * @return the hex encoded tree hash.
+     * @throws IOException if the file cannot be read.
+     */
+    private static String calculateTreeHash(FileChannel channel, long start, long length) throws IOException {
+
+        HashUtils hash = HashUtils.createSHA256Instance();
+        List<byte[]> leaves = new ArrayList<>();
+        ByteBuffer leaf = ByteBuffer.allocate(_1MB);
+
+        for (long offset = 0; offset < length; offset += _1MB) {
+
+            leaf.clear();
+            leaf.limit((int) Math.min(_1MB, length - offset));
+            read(channel, leaf, start + offset);
+            leaves.add(hash.calculateHashBytes(leaf.array(), 0, leaf.limit()));
+
+        }
+
+        return Hex.encodeHexString(hash.calculateTreeHashFromHashes(leaves));
+
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+
+        while (buf.hasRemaining()) {
+
+            if (channel.read(buf, position + buf.position()) < 0) {
+
+                throw new IOException("Unexpected end of archive");
+
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+
+        jobs.clear();
+
+    }
+
+    /**
+     * Corrupts the next outputs downloaded, while still reporting the checksum of the uncorrupted data.
+     * @param count the number of outputs to corrupt.
+     */
+    public void corruptOutputs(int count) {
+
+        corruptOutputs.set(count);
+
+    }
+
+    @Override
+    public JobStatus describeJob(String jobId) throws IOException {
+
+        Job job = getJob(jobId);
+
+        if (job.polls.incrementAndGet() <= pollsToComplete) {
+
+            return new JobStatus(false, false, "InProgress", job.length, null);
+
+        }
+
+        if (job.treeHash == null) {
+
+            try (FileChannel channel = FileChannel.open(job.file, StandardOpenOption.READ)) {
+
+                job.treeHash = calculateTreeHash(channel, job.start, job.length);
+
+            }
+        }
+
+        return new JobStatus(true, true, "Succeeded", job.length, job.treeHash);
+
+    }
+
+    @Override
+    public String findArchive(String archiveId, String fileName) {
+
+        if (archiveId != null && Files.isRegularFile(directory.resolve(archiveId))) {
+
+            return archiveId;
+
+        }
+
+        return Files.isRegularFile(directory.resolve(fileName)) ? fileName : null;
+
+    }
+
+    private Job getJob(String jobId) throws IOException {
+
+        Job job = jobs.get(jobId);
+        if (job == null) {
+
+            throw new IOException("No such job: " + jobId);
+
+        }
+
+        return job;
+
+    }
+
+    @Override
+    public JobOutput getJobOutput(String jobId, long start, long end) throws IOException {
+
+        Job job = getJob(jobId);
+        if (job.polls.get() <= pollsToComplete) {
+
+            throw new IOException("Job is not complete: " + jobId);
+
+        }
+        if (start < 0 || end >= job.length || end < start || end - start >= Integer.MAX_VALUE) {
+
+            throw new IOException(String.format("Invalid range %d-%d for job %s", start, end, jobId));
+
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate((int) (end - start + 1));
+        String checksum;
+
+        try (FileChannel channel = FileChannel.open(job.file, StandardOpenOption.READ)) {
+
+            read(channel, buf, job.start + start);
+
+            // Like Glacier, only give a checksum for ranges starting on a leaf
+            checksum = (start % _1MB == 0) ? calculateTreeHash(channel, job.start + start, buf.capacity()) : null;
+
+        }
+
+        if (corruptOutputs.getAndUpdate(c -> Math.max(c - 1, 0)) > 0) {
+
+            _LOG.debug("Corrupting output of {} range {}-{}", jobId, start, end);
+            buf.array()[buf.capacity() / 2] ^= 0xff;
+
+        }
+
+        return new JobOutput(new ByteArrayInputStream(buf.array()), checksum);
+
+    }
+
+    @Override
+    public String initiateRetrieval(String archiveId, String range) throws IOException {
+
+        Path file = directory.resolve(archiveId);
+        long size = Files.size(file);
+
+        long start = 0, end = size - 1;
+        if (range != null) {
+
+            String[] parts = range.split("-");
+            start = Long.parseLong(parts[0]);
+            end = Long.parseLong(parts[1]);
+
+            if (start % _1MB != 0 || (end + 1 != size && (end + 1) % _1MB != 0) || end >= size) {
+
+                throw new IOException("Range is not aligned to whole leaves: " + range);
+
+            }
+        }
+
+        String jobId = String.format("local-%d", jobCount.incrementAndGet());
+        jobs.put(jobId, new Job(file, start, end - start + 1));
+
+        _LOG.info("Started local retrieval of {} ({}): {}", archiveId, range == null ? "whole archive" : range, jobId);
+        return jobId;
+
+    }
+
+    /**
+     * Sets the number of times each job is polled before it completes.
+     * @param pollsToComplete the number of polls.
+     */
+    public void setPollsToComplete(int pollsToComplete) {
+
+        this.pollsToComplete = pollsToComplete;
+
+    }
+
+    private static class Job
+    {
+
+        private final AtomicInteger polls = new AtomicInteger();
+        private final Path file;
+        private final long start, length;
+        private volatile String treeHash;
+
+        Job(Path file, long start, long length) {
+
+            this.file = file;
+            this.start = start;
+            this.length = length;
+
+        }
+    }
+}
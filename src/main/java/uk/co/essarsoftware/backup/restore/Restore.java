@@ -0,0 +1,678 @@
+package uk.co.essarsoftware.backup.restore;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.essarsoftware.backup.HashUtils;
+import uk.co.essarsoftware.backup.tar.TarballEntry;
+import uk.co.essarsoftware.backup.tar.TarballIndexReader;
+import uk.co.essarsoftware.backup.upload.SegmentCipher;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Restores files from a backup using its binary tarball index. The entries to restore are grouped into leaf-aligned
+ * byte ranges of each archive, close ranges being merged so fewer jobs are needed, and a retrieval job is started for
+ * each range. Jobs are polled together with a backoff. As each job completes its output is downloaded in parts by a
+ * pool of workers, each part checked against the tree hash given by the service, and the entry data in the part
+ * written straight to the restored files. Encrypted archives are retrieved in whole segments, which are decrypted once
+ * verified.
+ * @author <steve.roberts/>
+ */
+public class Restore
+{
+
+    private static final Logger _LOG = LoggerFactory.getLogger(Restore.class);
+
+    private static final int _1MB = 1048576;
+    private static final int _RETRIES = 3;
+    private static final long _MERGE_GAP = 8L * _1MB;
+
+    private final RetrievalService service;
+    private final Path targetDirectory;
+    private final int downloadThreads, partSize;
+    private final AtomicInteger restoredFiles = new AtomicInteger();
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private SegmentCipher cipher;
+    private long pollMillis = 60000L, maxPollMillis = 1800000L;
+
+    /**
+     * Creates a restore.
+     * @param service the service to retrieve archives from.
+     * @param targetDirectory the directory to restore files into.
+     * @param downloadThreads the number of parts to download at once.
+     * @param partSize the size of each downloaded part; a power of two multiple of 1MB, so each part is tree hash
+     *                 aligned and the service can give its checksum.
+     */
+    public Restore(RetrievalService service, Path targetDirectory, int downloadThreads, int partSize) {
+
+        if (partSize < _1MB || Integer.bitCount(partSize) != 1) {
+
+            throw new IllegalArgumentException("Part size must be a power of two multiple of 1MB");
+
+        }
+
+        this.service = service;
+        this.targetDirectory = targetDirectory.toAbsolutePath().normalize();
+        this.downloadThreads = downloadThreads;
+        this.partSize = partSize;
+
+    }
+
+    private static List<byte[]> hashLeaves(HashUtils hash, byte[] buf) {
+
+        List<byte[]> leaves = new ArrayList<>();
+        for (int offset = 0; offset < buf.length; offset += _1MB) {
+
+            leaves.add(hash.calculateHashBytes(buf, offset, Math.min(_1MB, buf.length - offset)));
+
+        }
+
+        return leaves;
+
+    }
+
+    private static void readFully(InputStream in, byte[] buf) throws IOException {
+
+        int offset = 0;
+        while (offset < buf.length) {
+
+            int len = in.read(buf, offset, buf.length - offset);
+            if (len < 0) {
+
+                throw new EOFException(String.format("Job output ended after %d of %d bytes", offset, buf.length));
+
+            }
+            offset += len;
+
+        }
+    }
+
+    /**
+     * Downloads, verifies and extracts one part of a job's output, retrying if the download fails or does not match
+     * its checksum.
+     * @param span the retrieved range.
+     * @param start the offset of the first byte of the part in the archive.
+     * @param end the offset of the last byte of the part, inclusive.
+     * @return the hashes of each 1MB leaf of the part.
+     * @throws IOException if the part cannot be downloaded and verified, or a file cannot be written.
+     */
+    private List<byte[]> downloadPart(Span span, long start, long end) throws IOException {
+
+        byte[] buf = new byte[(int) (end - start + 1)];
+        HashUtils hash = HashUtils.createSHA256Instance();
+        List<byte[]> leaves = null;
+
+        for (int attempt = 1; leaves == null; attempt++) {
+
+            try (RetrievalService.JobOutput output = service.getJobOutput(span.jobId, start - span.start, end - span.start)) {
+
+                readFully(output.getInputStream(), buf);
+
+                List<byte[]> partLeaves = hashLeaves(hash, buf);
+                String treeHash = Hex.encodeHexString(hash.calculateTreeHashFromHashes(partLeaves));
+
+                if (output.getChecksum() == null || output.getChecksum().equals(treeHash)) {
+
+                    leaves = partLeaves;
+                    continue;
+
+                }
+
+                _LOG.warn("Checksum mismatch downloading {}-{} of {}, received:{}; expected:{}", start, end, span.archiveId,
+                        treeHash, output.getChecksum());
+
+            } catch (IOException | RuntimeException e) {
+
+                if (attempt >= _RETRIES) {
+
+                    throw e;
+
+                }
+                _LOG.warn("Download of {}-{} of {} failed, retrying: {}", start, end, span.archiveId, e.getMessage());
+                _LOG.debug(e.getClass().getName(), e);
+                continue;
+
+            }
+
+            if (attempt >= _RETRIES) {
+
+                throw new IOException(String.format("Download of %d-%d of %s failed verification", start, end, span.archiveId));
+
+            }
+        }
+
+        // Only verified data reaches the restored files
+        if (cipher == null) {
+
+            extract(span, start, buf);
+
+        } else {
+
+            try {
+
+                // Every segment must be from the archive the first part downloaded is from
+                byte[] archiveNonce;
+                synchronized (span) {
+
+                    if (span.archiveNonce == null) {
+
+                        span.archiveNonce = SegmentCipher.getArchiveNonce(buf);
+
+                    }
+                    archiveNonce = span.archiveNonce;
+
+                }
+
+                boolean last = span.toEnd && end == span.end;
+                extract(span, SegmentCipher.getPlainOffset(start), cipher.decrypt(buf, start, last, archiveNonce));
+
+            } catch (GeneralSecurityException gse) {
+
+                throw new IOException(String.format("Unable to decrypt %d-%d of %s: %s", start, end, span.archiveId, gse.getMessage()), gse);
+
+            }
+        }
+        downloadedBytes.addAndGet(buf.length);
+
+        return leaves;
+
+    }
+
+    /**
+     * Writes the entry data held in a downloaded part to each file it belongs to.
+     */
+    private void extract(Span span, long start, byte[] buf) throws IOException {
+
+        long end = start + buf.length;
+
+        // Files are in data order, so find the first whose data ends after the part starts
+        int low = 0, high = span.files.size();
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+            TarballEntry e = span.files.get(mid).getEntry();
+            if (e.getDataOffset() + e.getStoredSize() <= start) {
+
+                low = mid + 1;
+
+            } else {
+
+                high = mid;
+
+            }
+        }
+
+        for (int i = low; i < span.files.size() && span.files.get(i).getEntry().getDataOffset() < end; i++) {
+
+            RestoredFile file = span.files.get(i);
+            TarballEntry e = file.getEntry();
+
+            long from = Math.max(start, e.getDataOffset());
+            long to = Math.min(end, e.getDataOffset() + e.getStoredSize());
+
+            if (to > from && file.write(from, buf, (int) (from - start), (int) (to - from))) {
+
+                restoredFiles.incrementAndGet();
+
+            }
+        }
+    }
+
+    /**
+     * Plans the ranges to retrieve from one volume. Entries whose ranges are within {@value #_MERGE_GAP} bytes of each
+     * other share a range, as a few extra MB of retrieval costs less than the wait for another job.
+     */
+    private List<Span> planSpans(String archiveId, long archiveLength, List<RestoredFile> files) {
+
+        files.sort(Comparator.comparingLong(f -> f.getEntry().getDataOffset()));
+        long retrievedLength = (cipher == null ? archiveLength : SegmentCipher.getEncryptedSize(archiveLength));
+
+        List<Span> spans = new ArrayList<>();
+        Span span = null;
+
+        for (RestoredFile file : files) {
+
+            if (archiveLength <= 0) {
+
+                // Length unknown, so retrieve the whole archive
+                if (span == null) {
+
+                    span = new Span(archiveId, 0, -1);
+                    spans.add(span);
+
+                }
+
+            } else {
+
+                long rangeStart = file.getEntry().getRangeStart();
+                long rangeEnd = file.getEntry().getRangeEnd(archiveLength);
+                if (cipher != null) {
+
+                    // Retrieve each segment holding part of the range
+                    rangeStart = SegmentCipher.getSegmentOffset(rangeStart);
+                    rangeEnd = Math.min(SegmentCipher.getSegmentOffset(rangeEnd) + SegmentCipher.SEGMENT_SIZE, retrievedLength) - 1;
+
+                }
+
+                if (span == null || rangeStart > span.end + 1 + _MERGE_GAP) {
+
+                    span = new Span(archiveId, rangeStart, rangeEnd);
+                    spans.add(span);
+
+                } else {
+
+                    span.end = Math.max(span.end, rangeEnd);
+
+                }
+            }
+            span.files.add(file);
+
+        }
+
+        // A range covering the whole archive is retrieved as the archive
+        for (Span s : spans) {
+
+            s.toEnd = (s.end < 0 || s.end == retrievedLength - 1);
+            s.range = (s.start == 0 && s.toEnd) ? null : String.format("%d-%d", s.start, s.end);
+
+        }
+
+        return spans;
+
+    }
+
+    /**
+     * Restores files from a backup.
+     * @param binaryIndexFile the binary index of the backup.
+     * @param prefixes the paths to restore, matched as prefixes of entry names; all entries if empty.
+     * @return the number of files restored.
+     * @throws IOException if the index cannot be read or any file cannot be restored.
+     */
+    public int restore(Path binaryIndexFile, List<String> prefixes) throws IOException {
+
+        long startTime = System.nanoTime();
+
+        String fileName = binaryIndexFile.getFileName().toString();
+        String tarName = fileName.endsWith(".idx") ? fileName.substring(0, fileName.length() - 4) : fileName;
+
+        List<Span> spans = new ArrayList<>();
+        int skipped = 0;
+
+        try (TarballIndexReader index = new TarballIndexReader(binaryIndexFile)) {
+
+            // Select entries; where a name was appended more than once, the last copy is the current one
+            Map<String, TarballEntry> selected = new LinkedHashMap<>();
+            List<TarballEntry> entries = new ArrayList<>();
+            if (prefixes.isEmpty()) {
+
+                for (int i = 0; i < index.getEntryCount(); i++) {
+
+                    entries.add(index.getEntry(i));
+
+                }
+
+            } else {
+
+                prefixes.forEach(p -> entries.addAll(index.findPrefix(p)));
+
+            }
+
+            for (TarballEntry e : entries) {
+
+                selected.merge(e.getName(), e, (a, b) -> (b.getVolume() > a.getVolume()
+                        || (b.getVolume() == a.getVolume() && b.getHeaderOffset() > a.getHeaderOffset())) ? b : a);
+
+            }
+
+            // Group by volume, completing empty files straight away
+            Map<Integer, List<RestoredFile>> byVolume = new TreeMap<>();
+            for (TarballEntry e : selected.values()) {
+
+                Path target = targetDirectory.resolve(e.getName()).normalize();
+                if (!target.startsWith(targetDirectory) || target.equals(targetDirectory)) {
+
+                    _LOG.warn("Skipping entry outside the target directory: {}", e.getName());
+                    skipped++;
+                    continue;
+
+                }
+
+                RestoredFile file = new RestoredFile(e, target);
+                if (e.getStoredSize() == 0) {
+
+                    file.writeEmpty();
+                    restoredFiles.incrementAndGet();
+
+                } else {
+
+                    byVolume.computeIfAbsent(e.getVolume(), v -> new ArrayList<>()).add(file);
+
+                }
+            }
+
+            for (Map.Entry<Integer, List<RestoredFile>> volume : byVolume.entrySet()) {
+
+                int v = volume.getKey();
+                String volumeName = index.getVolumeName(v).isEmpty() ? tarName : index.getVolumeName(v);
+                String archiveId = service.findArchive(index.getArchiveId(v), volumeName);
+
+                if (archiveId == null) {
+
+                    _LOG.error("No archive available for {}; {} files cannot be restored", volumeName, volume.getValue().size());
+                    skipped += volume.getValue().size();
+                    continue;
+
+                }
+
+                spans.addAll(planSpans(archiveId, index.getArchiveLength(v), volume.getValue()));
+
+            }
+        }
+
+        _LOG.info("Retrieving {} ranges for {} files", spans.size(), spans.stream().mapToInt(s -> s.files.size()).sum());
+
+        ExecutorService downloadService = Executors.newFixedThreadPool(downloadThreads);
+        boolean failed = false;
+
+        try {
+
+            for (Span span : spans) {
+
+                span.jobId = service.initiateRetrieval(span.archiveId, span.range);
+
+            }
+
+            waitForJobs(spans, downloadService);
+
+            // Check each part, then the whole of each job against its tree hash
+            for (Span span : spans) {
+
+                List<byte[]> leaves = new ArrayList<>();
+                for (Future<List<byte[]>> part : span.parts) {
+
+                    try {
+
+                        leaves.addAll(part.get());
+
+                    } catch (ExecutionException ee) {
+
+                        _LOG.error("Download from {} failed", span.archiveId, ee.getCause());
+                        failed = true;
+                        leaves = null;
+                        break;
+
+                    }
+                }
+
+                if (leaves != null && span.treeHash != null) {
+
+                    String treeHash = Hex.encodeHexString(HashUtils.createSHA256Instance().calculateTreeHashFromHashes(leaves));
+                    if (!span.treeHash.equals(treeHash)) {
+
+                        _LOG.error("Retrieved data does not match job tree hash for {}, received:{}; expected:{}",
+                                span.archiveId, treeHash, span.treeHash);
+                        failed = true;
+
+                    }
+                }
+            }
+
+        } catch (InterruptedException ie) {
+
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for retrieval", ie);
+
+        } finally {
+
+            downloadService.shutdownNow();
+
+        }
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        _LOG.info("Restored {} files to {}; {} bytes downloaded in {} s", restoredFiles.get(), targetDirectory,
+                downloadedBytes.get(), String.format("%.1f", seconds));
+
+        if (failed || skipped > 0) {
+
+            throw new IOException(String.format("Restore incomplete: %d files restored, %d skipped", restoredFiles.get(), skipped));
+
+        }
+
+        return restoredFiles.get();
+
+    }
+
+    /**
+     * Sets the cipher the archives were encrypted with, so they are decrypted as they are downloaded.
+     * @param cipher the cipher, or null if the archives are not encrypted.
+     */
+    public void setCipher(SegmentCipher cipher) {
+
+        this.cipher = cipher;
+
+    }
+
+    /**
+     * Sets how often retrieval jobs are polled. The interval grows by half after each poll, up to the maximum.
+     * @param pollMillis the first interval, in milliseconds.
+     * @param maxPollMillis the longest interval, in milliseconds.
+     */
+    public void setPollInterval(long pollMillis, long maxPollMillis) {
+
+        this.pollMillis = pollMillis;
+        this.maxPollMillis = maxPollMillis;
+
+    }
+
+    /**
+     * Polls every outstanding job together, queuing the download of each as soon as it completes.
+     */
+    private void waitForJobs(List<Span> spans, ExecutorService downloadService) throws IOException, InterruptedException {
+
+        List<Span> pending = new LinkedList<>(spans);
+        long waitMillis = pollMillis;
+
+        while (!pending.isEmpty()) {
+
+            Iterator<Span> it = pending.iterator();
+            while (it.hasNext()) {
+
+                Span span = it.next();
+                RetrievalService.JobStatus status = service.describeJob(span.jobId);
+
+                if (!status.isCompleted()) {
+
+                    continue;
+
+                }
+                it.remove();
+
+                if (!status.isSucceeded()) {
+
+                    throw new IOException(String.format("Retrieval job %s failed: %s", span.jobId, status.getMessage()));
+
+                }
+
+                // The output size is known for certain once the job has completed
+                span.end = span.start + status.getOutputSize() - 1;
+                span.treeHash = status.getTreeHash();
+
+                _LOG.info("Retrieval job {} complete; downloading {} bytes", span.jobId, status.getOutputSize());
+
+                for (long start = span.start; start <= span.end; start += partSize) {
+
+                    final long partStart = start, partEnd = Math.min(start + partSize - 1, span.end);
+                    span.parts.add(downloadService.submit(() -> downloadPart(span, partStart, partEnd)));
+
+                }
+            }
+
+            if (!pending.isEmpty()) {
+
+                _LOG.debug("{} retrieval jobs in progress, waiting {} ms", pending.size(), waitMillis);
+                Thread.sleep(waitMillis);
+                waitMillis = Math.min((long) (waitMillis * 1.5), maxPollMillis);
+
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+
+        LinkedList<String> argList = new LinkedList<>(Arrays.asList(args));
+        List<String> prefixes = new ArrayList<>();
+        Path indexPath = null, localDirectory = null, targetPath = null;
+        String tier = "Standard";
+        int threads = 8, partSize = 16 * _1MB;
+        boolean decrypt = false;
+
+        try {
+
+            while (argList.size() > 0) {
+
+                final String arg = argList.removeFirst();
+
+                if ("--local".equals(arg)) {
+
+                    localDirectory = Paths.get(argList.removeFirst());
+                    continue;
+
+                }
+                if ("--tier".equals(arg)) {
+
+                    tier = argList.removeFirst();
+                    continue;
+
+                }
+                if ("--decrypt".equals(arg)) {
+
+                    decrypt = true;
+                    continue;
+
+                }
+                if ("--threads".equals(arg)) {
+
+                    threads = Integer.parseInt(argList.removeFirst());
+                    continue;
+
+                }
+                if ("--part-size".equals(arg)) {
+
+                    // Part size given in MB
+                    partSize = Integer.parseInt(argList.removeFirst()) * _1MB;
+                    continue;
+
+                }
+
+                if (indexPath == null) {
+
+                    indexPath = Paths.get(arg);
+
+                } else if (targetPath == null) {
+
+                    targetPath = Paths.get(arg);
+
+                } else {
+
+                    prefixes.add(arg);
+
+                }
+            }
+
+            if (targetPath == null) {
+
+                throw new IllegalArgumentException("Index and target directory must be specified");
+
+            }
+
+        } catch (NoSuchElementException | NumberFormatException e) {
+
+            _LOG.error("Usage: Restore [--local <dir>] [--tier <tier>] [--decrypt] [--threads <n>] [--part-size <MB>] <index.idx> <target dir> [path...]");
+            System.exit(1);
+            return;
+
+        } catch (IllegalArgumentException iae) {
+
+            _LOG.error(iae.getMessage());
+            System.exit(1);
+            return;
+
+        }
+
+        try (RetrievalService service = (localDirectory == null ? new GlacierRetrievalService(tier) : new LocalRetrievalService(localDirectory))) {
+
+            Restore restore = new Restore(service, targetPath, threads, partSize);
+            if (decrypt) {
+
+                // Archives are encrypted with the configured key
+                restore.setCipher(SegmentCipher.fromConfiguration());
+                if (restore.cipher == null) {
+
+                    throw new IllegalArgumentException("No encryption key is configured");
+
+                }
+            }
+
+            // Expedited retrievals take minutes; others take hours
+            if (localDirectory != null) {
+
+                restore.setPollInterval(10L, 1000L);
+
+            } else if ("Expedited".equalsIgnoreCase(tier)) {
+
+                restore.setPollInterval(30000L, 120000L);
+
+            } else {
+
+                restore.setPollInterval(900000L, 1800000L);
+
+            }
+
+            restore.restore(indexPath, prefixes);
+
+        } catch (IOException | IllegalArgumentException e) {
+
+            _LOG.error("Restore failed: {}", e.getMessage());
+            _LOG.debug(e.getClass().getName(), e);
+            System.exit(1);
+
+        }
+    }
+
+    /**
+     * A range of one archive to retrieve, and the files whose data it holds.
+     */
+    private static class Span
+    {
+
+        private final String archiveId;
+        private final List<RestoredFile> files = new ArrayList<>();
+        private final List<Future<List<byte[]>>> parts = new ArrayList<>();
+        private final long start;
+        private long end;
+        private boolean toEnd;
+        private byte[] archiveNonce;
+        private String jobId, range, treeHash;
+
+        Span(String archiveId, long start, long end) {
+
+            this.archiveId = archiveId;
+            this.start = start;
+            this.end = end;
+
+        }
+    }
+}
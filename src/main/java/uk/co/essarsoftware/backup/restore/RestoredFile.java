@@ -0,0 +1,239 @@
+package uk.co.essarsoftware.backup.restore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.essarsoftware.backup.tar.TarballEntry;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * A file being restored from a tarball entry. Ranges of the entry data are written in place as each downloaded part
+ * arrives, in any order, to a temporary file beside the target. Once every byte has arrived the file is moved into
+ * place and its modification time set.
+ * @author <steve.roberts/>
+ */
+class RestoredFile
+{
+
+    private static final Logger _LOG = LoggerFactory.getLogger(RestoredFile.class);
+
+    private static final int _RECORD_SIZE = 512;
+
+    private final TarballEntry entry;
+    private final Path target, tmp;
+    private FileChannel channel;
+    private long remaining;
+
+    RestoredFile(TarballEntry entry, Path target) {
+
+        this.entry = entry;
+        this.target = target;
+        this.tmp = target.resolveSibling(target.getFileName() + ".restore");
+        this.remaining = entry.getStoredSize();
+
+    }
+
+    private static void copy(FileChannel from, long position, long length, FileChannel to, long toPosition) throws IOException {
+
+        while (length > 0) {
+
+            long count = from.transferTo(position, length, to.position(toPosition));
+            if (count <= 0) {
+
+                throw new IOException("Unexpected end of sparse entry data");
+
+            }
+
+            position += count;
+            toPosition += count;
+            length -= count;
+
+        }
+    }
+
+    /**
+     * Moves the completed file into place. A sparse entry's stored data is the sparse map followed by each data
+     * segment, so it is expanded into the target rather than moved.
+     * @throws IOException if the file cannot be written.
+     */
+    private void finish() throws IOException {
+
+        if (channel != null) {
+
+            channel.close();
+            channel = null;
+
+        } else {
+
+            // Empty file
+            Files.createDirectories(target.getParent());
+            Files.write(tmp, new byte[0]);
+
+        }
+
+        if (isSparse()) {
+
+            expandSparse();
+            Files.delete(tmp);
+
+        } else {
+
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+
+        }
+
+        Files.setLastModifiedTime(target, FileTime.fromMillis(entry.getModTime()));
+        _LOG.debug("Restored {}", target);
+
+    }
+
+    private void expandSparse() throws IOException {
+
+        try (FileChannel in = FileChannel.open(tmp, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            // The map is decimal lines: the segment count, then the offset and length of each segment
+            CountingReader map = new CountingReader(new BufferedInputStream(Channels.newInputStream(in.position(0))));
+            int count = Integer.parseInt(map.readLine());
+            long[] segments = new long[count * 2];
+            for (int i = 0; i < segments.length; i++) {
+
+                segments[i] = Long.parseLong(map.readLine());
+
+            }
+
+            // Data follows the map, padded to a whole record
+            long position = ((map.count + _RECORD_SIZE - 1) / _RECORD_SIZE) * _RECORD_SIZE;
+            for (int i = 0; i < segments.length; i += 2) {
+
+                copy(in, position, segments[i + 1], out, segments[i]);
+                position += segments[i + 1];
+
+            }
+
+            // Extend over any trailing hole
+            if (out.size() < entry.getSize()) {
+
+                out.write(ByteBuffer.allocate(1), entry.getSize() - 1);
+
+            }
+
+        } catch (NumberFormatException nfe) {
+
+            throw new IOException("Invalid sparse map for " + entry.getName(), nfe);
+
+        }
+    }
+
+    TarballEntry getEntry() {
+
+        return entry;
+
+    }
+
+    /**
+     * Checks whether the entry was stored sparse: its stored data is the sparse map and data segments rather than the
+     * file contents.
+     * @return true for a sparse entry.
+     */
+    boolean isSparse() {
+
+        return entry.getStoredSize() != entry.getSize();
+
+    }
+
+    /**
+     * Writes part of the entry data.
+     * @param archiveOffset the offset of the data in the archive.
+     * @param buf the data.
+     * @param offset the offset of the data in the buffer.
+     * @param length the number of bytes.
+     * @return true if this completed the file.
+     * @throws IOException if the file cannot be written.
+     */
+    synchronized boolean write(long archiveOffset, byte[] buf, int offset, int length) throws IOException {
+
+        if (channel == null) {
+
+            Files.createDirectories(target.getParent());
+            channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        }
+
+        ByteBuffer bytes = ByteBuffer.wrap(buf, offset, length);
+        long position = archiveOffset - entry.getDataOffset();
+        while (bytes.hasRemaining()) {
+
+            position += channel.write(bytes, position);
+
+        }
+
+        remaining -= length;
+        if (remaining == 0) {
+
+            finish();
+            return true;
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Completes an entry with no data.
+     * @throws IOException if the file cannot be written.
+     */
+    synchronized void writeEmpty() throws IOException {
+
+        finish();
+
+    }
+
+    /**
+     * Reads lines of ASCII text one byte at a time, counting the bytes consumed.
+     */
+    private static class CountingReader
+    {
+
+        private final InputStream in;
+        private long count;
+
+        CountingReader(InputStream in) {
+
+            this.in = in;
+
+        }
+
+        String readLine() throws IOException {
+
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b = in.read();
+            while (b != '\n') {
+
+                if (b < 0) {
+
+                    throw new EOFException("Unexpected end of sparse map");
+
+                }
+
+                line.write(b);
+                b = in.read();
+
+            }
+
+            count += line.size() + 1;
+            return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+
+        }
+    }
+}
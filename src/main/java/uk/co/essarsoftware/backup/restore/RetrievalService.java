@@ -0,0 +1,139 @@
+package uk.co.essarsoftware.backup.restore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The archive retrieval operations used by a restore: start a retrieval job, check on it, and download its output in
+ * ranges. Implemented against Glacier by {@link GlacierRetrievalService}, and against local files by
+ * {@link LocalRetrievalService} so a restore can be run end to end without a vault.
+ * @author <steve.roberts/>
+ */
+public interface RetrievalService extends Closeable
+{
+
+    /**
+     * Finds the archive holding a backup file.
+     * @param archiveId the archive ID recorded in the index, or null if the file was not uploaded.
+     * @param fileName the tarball or volume file name.
+     * @return the archive ID to retrieve, or null if the service does not hold the file.
+     */
+    String findArchive(String archiveId, String fileName);
+
+    /**
+     * Starts a retrieval job for an archive.
+     * @param archiveId the archive ID.
+     * @param range the byte range to retrieve in the form {@code start-end}, aligned to whole 1MB leaves, or null to
+     *              retrieve the whole archive.
+     * @return the job ID.
+     * @throws IOException if the job cannot be started.
+     */
+    String initiateRetrieval(String archiveId, String range) throws IOException;
+
+    JobStatus describeJob(String jobId) throws IOException;
+
+    /**
+     * Downloads part of the output of a completed job.
+     * @param jobId the job ID.
+     * @param start the first byte to download, relative to the start of the job output.
+     * @param end the last byte to download, inclusive.
+     * @return the output, with the tree hash of the range if the service provides one.
+     * @throws IOException if the output cannot be downloaded.
+     */
+    JobOutput getJobOutput(String jobId, long start, long end) throws IOException;
+
+    class JobStatus
+    {
+
+        private final boolean completed, succeeded;
+        private final long outputSize;
+        private final String message, treeHash;
+
+        /**
+         * Describes a job.
+         * @param completed true if the job has finished, successfully or not.
+         * @param succeeded true if the job finished and its output is available.
+         * @param message the status message from the service.
+         * @param outputSize the number of bytes of job output.
+         * @param treeHash the tree hash of the job output, or null if the service does not provide one.
+         */
+        public JobStatus(boolean completed, boolean succeeded, String message, long outputSize, String treeHash) {
+
+            this.completed = completed;
+            this.succeeded = succeeded;
+            this.message = message;
+            this.outputSize = outputSize;
+            this.treeHash = treeHash;
+
+        }
+
+        public String getMessage() {
+
+            return message;
+
+        }
+
+        public long getOutputSize() {
+
+            return outputSize;
+
+        }
+
+        public String getTreeHash() {
+
+            return treeHash;
+
+        }
+
+        public boolean isCompleted() {
+
+            return completed;
+
+        }
+
+        public boolean isSucceeded() {
+
+            return succeeded;
+
+        }
+    }
+
+    class JobOutput implements Closeable
+    {
+
+        private final InputStream in;
+        private final String checksum;
+
+        public JobOutput(InputStream in, String checksum) {
+
+            this.in = in;
+            this.checksum = checksum;
+
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            in.close();
+
+        }
+
+        /**
+         * Gets the tree hash of the downloaded range, as calculated by the service.
+         * @return the hex encoded tree hash, or null if the range is not tree hash aligned or the service does not
+         * provide one.
+         */
+        public String getChecksum() {
+
+            return checksum;
+
+        }
+
+        public InputStream getInputStream() {
+
+            return in;
+
+        }
+    }
+}
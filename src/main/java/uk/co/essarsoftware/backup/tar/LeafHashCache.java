@@ -0,0 +1,142 @@
+package uk.co.essarsoftware.backup.tar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sidecar file recording where a tarball's entries end and the SHA-256 hash of each 1MB leaf of the file. Lets an
+ * append find the end-of-archive marker and recalculate the tree hash without reading the existing archive.
+ * @author <steve.roberts/>
+ */
+class LeafHashCache
+{
+
+    private static final Logger _LOG = LoggerFactory.getLogger(LeafHashCache.class);
+
+    static final String SUFFIX = ".leaves";
+
+    private static final int _HASH_LENGTH = 32;
+    private static final int _VERSION = 1;
+
+    private final long archiveEnd, archiveLength;
+    private final List<byte[]> leaves;
+
+    LeafHashCache(long archiveEnd, long archiveLength, List<byte[]> leaves) {
+
+        this.archiveEnd = archiveEnd;
+        this.archiveLength = archiveLength;
+        this.leaves = new ArrayList<>(leaves);
+
+    }
+
+    static File getCacheFile(File tarFile) {
+
+        return new File(tarFile.getPath() + SUFFIX);
+
+    }
+
+    /**
+     * Loads the cache for a tarball.
+     * @param tarFile the tarball.
+     * @return the cache, or null if there is no cache or it does not match the tarball's current length.
+     */
+    static LeafHashCache load(File tarFile) {
+
+        File cacheFile = getCacheFile(tarFile);
+        if (!cacheFile.exists()) {
+
+            return null;
+
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+
+            if (in.readInt() != _VERSION) {
+
+                _LOG.warn("Ignoring leaf hash cache {}: unknown version", cacheFile);
+                return null;
+
+            }
+
+            long archiveEnd = in.readLong();
+            long archiveLength = in.readLong();
+            int count = in.readInt();
+
+            if (archiveLength != tarFile.length()) {
+
+                _LOG.warn("Ignoring leaf hash cache {}: archive has changed", cacheFile);
+                return null;
+
+            }
+
+            List<byte[]> leaves = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+
+                byte[] leaf = new byte[_HASH_LENGTH];
+                in.readFully(leaf);
+                leaves.add(leaf);
+
+            }
+
+            return new LeafHashCache(archiveEnd, archiveLength, leaves);
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to load leaf hash cache {}: {}", cacheFile, ioe.getMessage());
+            return null;
+
+        }
+    }
+
+    void save(File tarFile) {
+
+        File cacheFile = getCacheFile(tarFile);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)))) {
+
+            out.writeInt(_VERSION);
+            out.writeLong(archiveEnd);
+            out.writeLong(archiveLength);
+            out.writeInt(leaves.size());
+
+            for (byte[] leaf : leaves) {
+
+                out.write(leaf);
+
+            }
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to save leaf hash cache {}: {}", cacheFile, ioe.getMessage());
+
+        }
+    }
+
+    /**
+     * Gets the offset of the end-of-archive marker, immediately after the last entry.
+     * @return the offset in bytes.
+     */
+    long getArchiveEnd() {
+
+        return archiveEnd;
+
+    }
+
+    /**
+     * Gets the hashes of the complete leaves before the given offset.
+     * @param offset an offset in the archive.
+     * @param leafSize the size of each leaf.
+     * @return an unmodifiable List of leaf hashes.
+     */
+    List<byte[]> getLeavesBefore(long offset, int leafSize) {
+
+        int count = (int) Math.min(leaves.size(), offset / leafSize);
+        return Collections.unmodifiableList(leaves.subList(0, count));
+
+    }
+}
@@ -0,0 +1,204 @@
+package uk.co.essarsoftware.backup.tar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Map of the data segments in a sparse file. Blocks that read back as all zeros are treated as holes and left out of the
+ * archive; the map records where the remaining data belongs so the file can be restored at its full size.
+ * @author <steve.roberts/>
+ */
+class SparseMap
+{
+
+    static final int BLOCK_SIZE = 4096;
+
+    private static final int _RECORD_SIZE = 512;
+    private static final int _SCAN_SIZE = 64 * BLOCK_SIZE;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private final long realSize;
+
+    private long dataSize;
+
+    private SparseMap(long realSize) {
+
+        this.realSize = realSize;
+
+    }
+
+    private static boolean isZero(ByteBuffer buf, int offset, int length) {
+
+        int i = offset;
+        int end = offset + length;
+
+        for (; i + 8 <= end; i += 8) {
+
+            if (buf.getLong(i) != 0) {
+
+                return false;
+
+            }
+        }
+        for (; i < end; i++) {
+
+            if (buf.get(i) != 0) {
+
+                return false;
+
+            }
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Scans a file for zero-filled blocks.
+     * @param channel an open channel on the file. The channel position is not changed.
+     * @return a SparseMap describing the data segments of the file.
+     * @throws IOException if the file cannot be read.
+     */
+    static SparseMap scan(FileChannel channel) throws IOException {
+
+        SparseMap map = new SparseMap(channel.size());
+        ByteBuffer buf = ByteBuffer.allocateDirect(_SCAN_SIZE);
+
+        long position = 0;
+        long segmentStart = -1;
+
+        while (position < map.realSize) {
+
+            buf.clear();
+            int len = channel.read(buf, position);
+            if (len <= 0) {
+
+                break;
+
+            }
+
+            for (int off = 0; off < len; off += BLOCK_SIZE) {
+
+                int blockLength = Math.min(BLOCK_SIZE, len - off);
+                long blockStart = position + off;
+
+                if (isZero(buf, off, blockLength)) {
+
+                    if (segmentStart >= 0) {
+
+                        map.addSegment(segmentStart, blockStart - segmentStart);
+                        segmentStart = -1;
+
+                    }
+
+                } else if (segmentStart < 0) {
+
+                    segmentStart = blockStart;
+
+                }
+            }
+
+            position += len;
+
+        }
+
+        if (segmentStart >= 0) {
+
+            map.addSegment(segmentStart, position - segmentStart);
+
+        }
+
+        // A file ending in a hole is marked with an empty segment at its end, as GNU tar does
+        if (map.dataSize < map.realSize && (map.segments.isEmpty() || map.getLastSegmentEnd() < map.realSize)) {
+
+            map.addSegment(map.realSize, 0);
+
+        }
+
+        return map;
+
+    }
+
+    private void addSegment(long offset, long length) {
+
+        segments.add(new Segment(offset, length));
+        dataSize += length;
+
+    }
+
+    private long getLastSegmentEnd() {
+
+        Segment last = segments.get(segments.size() - 1);
+        return last.offset + last.length;
+
+    }
+
+    /**
+     * Gets the number of bytes of data the file holds outside its holes.
+     * @return the total length of all data segments.
+     */
+    long getDataSize() {
+
+        return dataSize;
+
+    }
+
+    long getRealSize() {
+
+        return realSize;
+
+    }
+
+    List<Segment> getSegments() {
+
+        return Collections.unmodifiableList(segments);
+
+    }
+
+    /**
+     * Checks whether archiving the file as sparse would save space.
+     * @return true if at least one whole block of the file is a hole.
+     */
+    boolean hasHoles() {
+
+        return realSize - dataSize >= BLOCK_SIZE;
+
+    }
+
+    /**
+     * Renders the map in the PAX format 1.0 layout that precedes the data of a sparse entry: the number of segments
+     * followed by the offset and length of each, one decimal number per line, padded to a whole tar record.
+     * @return a byte array containing the encoded map.
+     */
+    byte[] toMapBlock() {
+
+        StringBuilder map = new StringBuilder();
+        map.append(segments.size()).append('\n');
+        segments.forEach(s -> map.append(s.offset).append('\n').append(s.length).append('\n'));
+
+        byte[] text = map.toString().getBytes(StandardCharsets.US_ASCII);
+        byte[] block = new byte[((text.length + _RECORD_SIZE - 1) / _RECORD_SIZE) * _RECORD_SIZE];
+        System.arraycopy(text, 0, block, 0, text.length);
+
+        return block;
+
+    }
+
+    static class Segment
+    {
+
+        final long offset, length;
+
+        Segment(long offset, long length) {
+
+            this.offset = offset;
+            this.length = length;
+
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package uk.co.essarsoftware.backup.tar;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads back the entries written by a {@link StreamingIndexWriter}, in the order they were added, one block at a time.
+ * @author <steve.roberts/>
+ */
+class StreamingIndexReader implements Closeable
+{
+
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    private byte[] block = new byte[0], compressed = new byte[0];
+    private byte[] lastName = new byte[0];
+    private int position, blockEntries;
+    private long entryCount = -1;
+
+    StreamingIndexReader(Path file) throws IOException {
+
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.toFile()), StreamingIndexWriter.BLOCK_SIZE));
+
+        try {
+
+            if (in.readInt() != StreamingIndexWriter.MAGIC) {
+
+                throw new IOException("Not a streaming tarball index: " + file);
+
+            }
+            if (in.readInt() != StreamingIndexWriter.VERSION) {
+
+                throw new IOException("Unsupported streaming tarball index version: " + file);
+
+            }
+
+        } catch (IOException ioe) {
+
+            close();
+            throw ioe;
+
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        inflater.end();
+        in.close();
+
+    }
+
+    /**
+     * Gets the number of entries in the index. Only known once every entry has been read.
+     * @return the number of entries, or -1 if the end has not been reached.
+     */
+    long getEntryCount() {
+
+        return entryCount;
+
+    }
+
+    /**
+     * Reads the next entry.
+     * @return the entry, or null at the end of the index.
+     * @throws IOException if the index cannot be read, or ends without its end marker.
+     */
+    TarballEntry next() throws IOException {
+
+        if (blockEntries == 0 && !readBlock()) {
+
+            return null;
+
+        }
+
+        int shared = (int) readVarLong();
+        int suffix = (int) readVarLong();
+
+        byte[] name = Arrays.copyOf(lastName, shared + suffix);
+        System.arraycopy(block, position, name, shared, suffix);
+        position += suffix;
+
+        int volume = (int) readVarLong();
+        long headerOffset = readVarLong();
+        long dataOffset = headerOffset + readVarLong();
+        long size = readVarLong();
+        long storedSize = readVarLong();
+        long zigzag = readVarLong();
+        long modTime = (zigzag >>> 1) ^ -(zigzag & 1);
+        int mode = (int) readVarLong();
+
+        lastName = name;
+        blockEntries--;
+
+        return new TarballEntry(new String(name, StandardCharsets.UTF_8), volume, headerOffset, dataOffset, size, storedSize, modTime, mode);
+
+    }
+
+    private boolean readBlock() throws IOException {
+
+        if (entryCount >= 0) {
+
+            return false;
+
+        }
+
+        int length;
+        try {
+
+            length = in.readInt();
+
+        } catch (EOFException eofe) {
+
+            throw new IOException("Streaming tarball index is incomplete", eofe);
+
+        }
+
+        if (length == 0) {
+
+            entryCount = in.readLong();
+            return false;
+
+        }
+
+        int compressedLength = in.readInt();
+        blockEntries = in.readInt();
+
+        if (compressed.length < compressedLength) {
+
+            compressed = new byte[compressedLength];
+
+        }
+        in.readFully(compressed, 0, compressedLength);
+
+        if (block.length < length) {
+
+            block = new byte[length];
+
+        }
+
+        try {
+
+            inflater.reset();
+            inflater.setInput(compressed, 0, compressedLength);
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+
+                int len = inflater.inflate(block, inflated, length - inflated);
+                if (len == 0 && inflater.needsInput()) {
+
+                    break;
+
+                }
+                inflated += len;
+
+            }
+
+            if (inflated != length) {
+
+                throw new IOException("Streaming tarball index block is truncated");
+
+            }
+
+        } catch (DataFormatException dfe) {
+
+            throw new IOException("Streaming tarball index block is corrupt", dfe);
+
+        }
+
+        position = 0;
+        lastName = new byte[0];
+
+        return blockEntries > 0 || readBlock();
+
+    }
+
+    private long readVarLong() throws IOException {
+
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+
+            byte b = block[position++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+
+                return value;
+
+            }
+        }
+
+        throw new IOException("Invalid number in streaming tarball index");
+
+    }
+}
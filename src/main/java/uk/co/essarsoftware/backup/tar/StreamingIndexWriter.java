@@ -0,0 +1,160 @@
+package uk.co.essarsoftware.backup.tar;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+
+/**
+ * Writes tarball entries to a file as they are added to the archive, so the index never needs every entry in memory.
+ * Entries are collected into blocks of about {@value #BLOCK_SIZE} bytes and each block is deflated. Within a block
+ * names are front coded: each name is stored as the length of the prefix it shares with the previous name followed by
+ * the rest of the name. Entries from one directory share long prefixes, so most of each name is not stored at all.
+ * Memory use is one block whatever the number of entries. Read back with {@link StreamingIndexReader}.
+ * @author <steve.roberts/>
+ */
+public class StreamingIndexWriter implements Closeable
+{
+
+    static final int MAGIC = 0x47544953;
+    static final int VERSION = 1;
+    static final int BLOCK_SIZE = 65536;
+
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 4096);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] deflated = new byte[BLOCK_SIZE];
+    private byte[] lastName = new byte[0];
+    private int blockEntries;
+    private long entryCount;
+    private boolean closed;
+
+    public StreamingIndexWriter(Path file) throws IOException {
+
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile()), BLOCK_SIZE));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+
+        while ((value & ~0x7fL) != 0) {
+
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+
+        }
+        out.write((int) value);
+
+    }
+
+    /**
+     * Adds an entry, writing out the current block once it is full.
+     * @param entry the entry.
+     * @throws IOException if the block cannot be written.
+     */
+    public void add(TarballEntry entry) throws IOException {
+
+        byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+
+        int shared = 0;
+        int length = Math.min(name.length, lastName.length);
+        while (shared < length && name[shared] == lastName[shared]) {
+
+            shared++;
+
+        }
+
+        writeVarLong(block, shared);
+        writeVarLong(block, name.length - shared);
+        block.write(name, shared, name.length - shared);
+        writeVarLong(block, entry.getVolume());
+        writeVarLong(block, entry.getHeaderOffset());
+        writeVarLong(block, entry.getDataOffset() - entry.getHeaderOffset());
+        writeVarLong(block, entry.getSize());
+        writeVarLong(block, entry.getStoredSize());
+
+        // Zigzag encoded, as times before 1970 are negative
+        writeVarLong(block, (entry.getModTime() << 1) ^ (entry.getModTime() >> 63));
+        writeVarLong(block, entry.getMode() & 0xffffffffL);
+
+        lastName = name;
+        blockEntries++;
+        entryCount++;
+
+        if (block.size() >= BLOCK_SIZE) {
+
+            flushBlock();
+
+        }
+    }
+
+    /**
+     * Writes the last block and the end marker.
+     * @throws IOException if the file cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+
+        if (closed) {
+
+            return;
+
+        }
+        closed = true;
+
+        try {
+
+            flushBlock();
+
+            out.writeInt(0);
+            out.writeLong(entryCount);
+
+        } finally {
+
+            out.close();
+            deflater.end();
+
+        }
+    }
+
+    private void flushBlock() throws IOException {
+
+        if (blockEntries == 0) {
+
+            return;
+
+        }
+
+        byte[] bytes = block.toByteArray();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2);
+
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        while (!deflater.finished()) {
+
+            int len = deflater.deflate(deflated);
+            compressed.write(deflated, 0, len);
+
+        }
+
+        out.writeInt(bytes.length);
+        out.writeInt(compressed.size());
+        out.writeInt(blockEntries);
+        compressed.writeTo(out);
+
+        // Each block is decoded on its own, so front coding starts again
+        block.reset();
+        blockEntries = 0;
+        lastName = new byte[0];
+
+    }
+
+    public long getEntryCount() {
+
+        return entryCount;
+
+    }
+}
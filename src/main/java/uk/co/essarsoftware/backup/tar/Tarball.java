@@ -1,24 +1,35 @@
 package uk.co.essarsoftware.backup.tar;
 
-import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.utils.CountingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import uk.co.essarsoftware.backup.HashUtils;
+import uk.co.essarsoftware.backup.TuningProfile;
+import uk.co.essarsoftware.backup.io.LeafHashOutputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
- * A collection of files compressed into a tarball archive.
+ * A collection of files compressed into a tarball archive. The archive may optionally be split into a sequence of
+ * size-bounded volumes, each of which is a complete tar file in its own right. Sparse files may optionally be stored
+ * as PAX format 1.0 sparse entries, omitting their holes.
+ * <p>
+ * Single-file tarballs keep a sidecar cache of the archive's end offset and 1MB leaf hashes, so entries can be appended
+ * in place and the tree hash recalculated at the cost of the new data only.
  * @author <steve.roberts/>
  */
 public class Tarball
@@ -26,7 +37,31 @@ public class Tarball
 
     private static final Logger _LOG = LoggerFactory.getLogger(Tarball.class);
 
+    private static final int _1MB = 1048576;
+    private static final int _RECORD_SIZE = 512;
+
+    // Extended headers larger than this are taken to be corrupt
+    private static final int _MAX_HEADER_SIZE = 65536;
+
     private final File tarFile;
+    private final List<File> volumes = new ArrayList<>();
+    private final Map<File, List<TarballEntry>> entries = new LinkedHashMap<>();
+    private final long volumeSize;
+    private final boolean sparse;
+    private final Consumer<File> volumeHandler;
+    private final StreamingIndexWriter indexWriter;
+
+    // Shared by every file, so small files cost no allocation
+    private final byte[] buf;
+    private final int outputBufferSize;
+
+    private CountingOutputStream volumeOut;
+    private LeafHashOutputStream leafOut;
+    private List<byte[]> leafHashes;
+    private List<TarballEntry> volumeEntries;
+    private long volumeBase, bytesAdded, elapsedNanos;
+    private int entriesCount, filesAdded;
+    private TarArchiveOutputStream out;
 
     public Tarball(File tarFile, Path root, List<Path> paths) throws IOException {
 
@@ -36,25 +71,138 @@ public class Tarball
 
     public Tarball(File tarFile, boolean append, Path root, List<Path> paths) throws IOException {
 
-        this.tarFile = tarFile;
+        this(tarFile, append, 0, false, root, paths, null);
+
+    }
+
+    /**
+     * Create a tarball split into volumes. A new volume is started whenever adding the next entry would take the
+     * current volume past {@code volumeSize}; entries are never split across volumes, so a single file larger than the
+     * volume size occupies a volume of its own.
+     * @param tarFile the base file name for the archive. Volumes are named by appending a sequence number to it.
+     * @param volumeSize the target maximum size of each volume in bytes.
+     * @param root the directory that entry names are relative to.
+     * @param paths the files and directories to add.
+     * @param volumeHandler called with each volume as soon as it is complete, while the next volume is written. May be
+     *                      null.
+     * @throws IOException if a volume cannot be created.
+     */
+    public Tarball(File tarFile, long volumeSize, Path root, List<Path> paths, Consumer<File> volumeHandler) throws IOException {
+
+        this(tarFile, false, requireVolumeSize(volumeSize), false, root, paths, volumeHandler);
 
-        try (TarArchiveOutputStream out = new TarArchiveOutputStream(new FileOutputStream(tarFile, append))) {
+    }
 
-            out.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+    /**
+     * Create a tarball with all options.
+     * @param tarFile the archive file, or the base file name for volumes.
+     * @param append if true, add entries to an existing archive in place of its end-of-archive marker. Not supported
+     *               with volumes.
+     * @param volumeSize the target maximum size of each volume in bytes, or zero to write a single archive.
+     * @param sparse if true, scan files for zero-filled blocks and store files with holes as sparse entries. Each file is
+     *               read twice when enabled.
+     * @param root the directory that entry names are relative to.
+     * @param paths the files and directories to add.
+     * @param volumeHandler called with each volume as soon as it is complete. May be null.
+     * @throws IOException if the archive cannot be created.
+     */
+    public Tarball(File tarFile, boolean append, long volumeSize, boolean sparse, Path root, List<Path> paths, Consumer<File> volumeHandler) throws IOException {
+
+        this(tarFile, append, volumeSize, sparse, root, paths, volumeHandler, null);
 
-            for(Path p : paths) {
+    }
 
-                if (Files.isDirectory(p)) {
+    /**
+     * Create a tarball with all options, writing its entries to a streaming index as they are added rather than
+     * keeping them. {@link #getEntries()} is then empty, and memory use does not grow with the number of entries.
+     * When appending, the entries already in the archive are written to the index first.
+     * @param tarFile the archive file, or the base file name for volumes.
+     * @param append if true, add entries to an existing archive in place of its end-of-archive marker. Not supported
+     *               with volumes.
+     * @param volumeSize the target maximum size of each volume in bytes, or zero to write a single archive.
+     * @param sparse if true, scan files for zero-filled blocks and store files with holes as sparse entries.
+     * @param root the directory that entry names are relative to.
+     * @param paths the files and directories to add.
+     * @param volumeHandler called with each volume as soon as it is complete. May be null.
+     * @param indexWriter the index to write entries to, or null to keep them for {@link #getEntries()}. Not closed by
+     *                    the tarball.
+     * @throws IOException if the archive cannot be created.
+     */
+    public Tarball(File tarFile, boolean append, long volumeSize, boolean sparse, Path root, List<Path> paths, Consumer<File> volumeHandler,
+                   StreamingIndexWriter indexWriter) throws IOException {
+
+        this(tarFile, append, volumeSize, sparse, Collections.singletonMap(root, paths).entrySet(), volumeHandler, indexWriter, TuningProfile.getDefault());
 
-                    Files.list(p).forEach(f -> addFile(out, f, root));
+    }
 
-                } else {
+    /**
+     * Create a tarball of paths from several directories, with all options. Paths are added a batch at a time, in the
+     * order given, so batches may be produced while the tarball is written.
+     * @param tarFile the archive file, or the base file name for volumes.
+     * @param append if true, add entries to an existing archive in place of its end-of-archive marker. Not supported
+     *               with volumes.
+     * @param volumeSize the target maximum size of each volume in bytes, or zero to write a single archive.
+     * @param sparse if true, scan files for zero-filled blocks and store files with holes as sparse entries.
+     * @param paths batches of files and directories to add, each keyed by the directory that their entry names are
+     *              relative to.
+     * @param volumeHandler called with each volume as soon as it is complete. May be null.
+     * @param indexWriter the index to write entries to, or null to keep them for {@link #getEntries()}. Not closed by
+     *                    the tarball.
+     * @param tuning the profile giving the sizes of the buffers files are copied through and the archive is written
+     *               through.
+     * @throws IOException if the archive cannot be created.
+     */
+    public Tarball(File tarFile, boolean append, long volumeSize, boolean sparse, Iterable<Map.Entry<Path, List<Path>>> paths, Consumer<File> volumeHandler,
+                   StreamingIndexWriter indexWriter, TuningProfile tuning) throws IOException {
+
+        if (append && volumeSize > 0) {
+
+            throw new IllegalArgumentException("Cannot append to a multi-volume tarball");
 
-                    addFile(out, p, root);
+        }
+
+        this.tarFile = tarFile;
+        this.volumeSize = volumeSize;
+        this.sparse = sparse;
+        this.volumeHandler = volumeHandler;
+        this.indexWriter = indexWriter;
+        this.buf = new byte[tuning.getTarBufferSize()];
+        this.outputBufferSize = tuning.getTarOutputBufferSize();
+
+        long startNanos = System.nanoTime();
+
+        try {
+
+            openVolume(volumeSize > 0 ? getVolumeFile(1) : tarFile, append);
+
+            boolean complete = false;
+            try {
+
+                for (Map.Entry<Path, List<Path>> rootPaths : paths) {
+
+                    addPaths(rootPaths.getKey(), rootPaths.getValue());
 
                 }
+                complete = true;
+
+            } finally {
+
+                // A volume left incomplete by a failure is not passed on to be uploaded
+                closeVolume(complete);
+
             }
+
+        } catch (UncheckedIOException uioe) {
+
+            // The index could not be written
+            throw uioe.getCause();
+
         }
+
+        elapsedNanos = System.nanoTime() - startNanos;
+        _LOG.info("Added {} files ({} bytes) in {}ms; {} files/s", filesAdded, bytesAdded, elapsedNanos / 1000000,
+                String.format("%,.0f", getFilesPerSecond()));
+
     }
 
     public Tarball(File tarFile, Path root, Path... paths) throws IOException {
@@ -75,7 +223,256 @@ public class Tarball
 
     }
 
-    private void addFile(TarArchiveOutputStream out, Path path, Path root) {
+    private static long requireVolumeSize(long volumeSize) {
+
+        if (volumeSize <= 0) {
+
+            throw new IllegalArgumentException("Volume size must be greater than zero");
+
+        }
+
+        return volumeSize;
+
+    }
+
+    /**
+     * Builds the name used in the ustar header of a sparse entry. Readers that understand PAX sparse headers restore the
+     * real name; others extract the stored data under this name. Kept within the ustar name field so no long name entry
+     * is written between the PAX header and the entry it applies to.
+     * @param name the real entry name.
+     * @return the header name.
+     */
+    private static String getSparseHeaderName(String name) {
+
+        int sep = name.lastIndexOf('/');
+        String headerName = (sep < 0 ? "" : name.substring(0, sep + 1)) + "GNUSparseFile.0/" + name.substring(sep + 1);
+
+        if (headerName.length() > TarConstants.NAMELEN) {
+
+            headerName = ("GNUSparseFile.0/" + name.substring(sep + 1));
+            headerName = headerName.substring(0, Math.min(headerName.length(), TarConstants.NAMELEN));
+
+        }
+
+        return headerName;
+
+    }
+
+    /**
+     * Encodes a PAX extended header record. Each record is prefixed with its own length in bytes, including the length
+     * digits themselves.
+     * @param key the header keyword.
+     * @param value the header value.
+     * @return a String containing the record.
+     */
+    private static String getPaxRecord(String key, String value) {
+
+        int len = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int recordLength = len + Integer.toString(len).length();
+
+        // Adding the digits may itself add a digit
+        if (Integer.toString(recordLength).length() != Integer.toString(len).length()) {
+
+            recordLength = len + Integer.toString(recordLength).length();
+
+        }
+
+        return String.format("%d %s=%s\n", recordLength, key, value);
+
+    }
+
+    /**
+     * Estimates the number of bytes a file will occupy in an archive: its header, a GNU long name entry if its name does
+     * not fit the header, and its data rounded up to whole records. A sparse file may occupy less.
+     * @param name the entry name.
+     * @param size the size of the file.
+     * @return the number of bytes.
+     */
+    public static long getEntrySize(String name, long size) {
+
+        long entrySize = getRecordedSize(size);
+        int nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+        if (nameLength >= TarConstants.NAMELEN) {
+
+            entrySize += getRecordedSize(nameLength + 1);
+
+        }
+
+        return entrySize;
+
+    }
+
+    /**
+     * Gets the number of bytes of the end-of-archive marker that closes each archive or volume.
+     * @return the number of bytes.
+     */
+    public static long getEndMarkerSize() {
+
+        return 2 * _RECORD_SIZE;
+
+    }
+
+    /**
+     * Finds the volume files of a tarball already on disk, such as those left by an earlier backup.
+     * @param tarFile the tarball file that volume names are based on.
+     * @return the volume files, in name order.
+     * @throws IOException if the directory cannot be listed.
+     */
+    public static List<File> findVolumeFiles(File tarFile) throws IOException {
+
+        File dir = tarFile.getAbsoluteFile().getParentFile();
+        String prefix = tarFile.getName() + ".";
+        List<File> volumes = new ArrayList<>();
+
+        if (dir.isDirectory()) {
+
+            try (Stream<Path> files = Files.list(dir.toPath())) {
+
+                files.map(Path::toFile)
+                        .filter(f -> f.getName().startsWith(prefix) && f.getName().substring(prefix.length()).matches("\\d{3,}"))
+                        .sorted()
+                        .forEach(volumes::add);
+
+            }
+        }
+
+        return volumes;
+
+    }
+
+    /**
+     * Deletes the volume files of a tarball already on disk, with their leaf hash caches, so a new set of volumes is
+     * not mixed with volumes of an earlier backup.
+     * @param tarFile the tarball file that volume names are based on.
+     * @return the number of volumes deleted.
+     * @throws IOException if a volume cannot be deleted.
+     */
+    public static int deleteVolumeFiles(File tarFile) throws IOException {
+
+        List<File> volumes = findVolumeFiles(tarFile);
+        for (File volume : volumes) {
+
+            Files.delete(volume.toPath());
+            Files.deleteIfExists(LeafHashCache.getCacheFile(volume).toPath());
+
+        }
+
+        return volumes.size();
+
+    }
+
+    /**
+     * Calculates the number of bytes an entry of the given size will occupy in the archive, including its header.
+     * @param size the size of the entry data.
+     * @return the size rounded up to whole tar records, plus one header record.
+     */
+    private static long getRecordedSize(long size) {
+
+        return _RECORD_SIZE + ((size + _RECORD_SIZE - 1) / _RECORD_SIZE) * _RECORD_SIZE;
+
+    }
+
+    private void addPaths(Path root, List<Path> paths) throws IOException {
+
+        for(Path p : paths) {
+
+            BasicFileAttributes attrs = readAttributes(p);
+            if (attrs == null) {
+
+                continue;
+
+            }
+
+            if (attrs.isDirectory()) {
+
+                addDirectory(p, root);
+
+            } else {
+
+                addFile(p, attrs, root);
+
+            }
+        }
+    }
+
+    /**
+     * Adds the files directly inside a directory. The attributes of every entry are read in one pass over the open
+     * directory before any file is archived, relative to the directory handle where the platform supports it, and are
+     * then used to build the entries without touching the files again.
+     * @param dir the directory to add.
+     * @param root the directory that entry names are relative to.
+     * @throws IOException if the directory cannot be listed.
+     */
+    private void addDirectory(Path dir, Path root) throws IOException {
+
+        List<Path> files = new ArrayList<>();
+        List<BasicFileAttributes> fileAttrs = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+
+            SecureDirectoryStream<Path> secureStream = (stream instanceof SecureDirectoryStream) ? (SecureDirectoryStream<Path>) stream : null;
+
+            for (Path p : stream) {
+
+                BasicFileAttributes attrs;
+                if (secureStream != null) {
+
+                    try {
+
+                        attrs = secureStream.getFileAttributeView(p.getFileName(), BasicFileAttributeView.class).readAttributes();
+
+                    } catch (IOException ioe) {
+
+                        _LOG.warn("Unable to add {} to tarball: {}", p.getFileName(), ioe.getMessage());
+                        continue;
+
+                    }
+
+                    // Follow links as a regular file would be
+                    if (attrs.isSymbolicLink()) {
+
+                        attrs = readAttributes(p);
+
+                    }
+
+                } else {
+
+                    attrs = readAttributes(p);
+
+                }
+
+                if (attrs != null && attrs.isRegularFile()) {
+
+                    files.add(p);
+                    fileAttrs.add(attrs);
+
+                }
+            }
+        }
+
+        for (int i = 0; i < files.size(); i++) {
+
+            addFile(files.get(i), fileAttrs.get(i), root);
+
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) {
+
+        try {
+
+            return Files.readAttributes(path, BasicFileAttributes.class);
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to add {} to tarball: {}", path.getFileName(), ioe.getMessage());
+            _LOG.debug(ioe.getClass().getName(), ioe);
+            return null;
+
+        }
+    }
+
+    private void addFile(Path path, BasicFileAttributes attrs, Path root) {
 
         _LOG.debug("Adding {}", path);
 
@@ -83,28 +480,58 @@ public class Tarball
 
             String name = getEntryName(path, root);
             _LOG.debug("entryName: {}", name);
-            File f = path.toFile();
 
-            if (f.getAbsoluteFile().equals(tarFile.getAbsoluteFile())) {
+            if (isArchiveFile(path)) {
 
                 _LOG.debug("Not adding self to tar, skipping");
 
-            } else {
+            } else if (attrs.isRegularFile()) {
+
+                TarballEntry added = null;
+                if (sparse && attrs.size() >= SparseMap.BLOCK_SIZE) {
+
+                    added = addSparseFile(path, attrs, name);
+
+                }
+
+                if (added != null) {
+
+                    _LOG.debug("Added {} as sparse entry", name);
+
+                } else {
+
+                    TarArchiveEntry entry = new TarArchiveEntry(name);
+                    entry.setSize(attrs.size());
+                    entry.setModTime(attrs.lastModifiedTime().toMillis());
 
-                if (f.isFile()) {
+                    if (isVolumeFull(entry.getSize())) {
 
-                    ArchiveEntry entry = out.createArchiveEntry(f, name);
+                        nextVolume();
+
+                    }
+
+                    long headerOffset = getVolumeOffset();
                     out.putArchiveEntry(entry);
+                    added = new TarballEntry(name, volumes.size() - 1, headerOffset, getVolumeOffset(), entry.getSize(),
+                            entry.getSize(), attrs.lastModifiedTime().toMillis(), entry.getMode());
+
+                    try (InputStream in = Files.newInputStream(path)) {
 
-                    try (FileInputStream in = new FileInputStream(f)) {
+                        long remaining = entry.getSize();
+                        while (remaining > 0) {
 
-                        byte[] buf = new byte[4096];
-                        int len = in.read(buf);
+                            int len = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                            if (len < 0) {
 
-                        while (len > 0) {
+                                // Keep the archive consistent if the file shrank after its size was read
+                                _LOG.warn("{} shrank while being archived, padding with zeros", path.getFileName());
+                                Arrays.fill(buf, (byte) 0);
+                                len = (int) Math.min(buf.length, remaining);
+
+                            }
 
                             out.write(buf, 0, len);
-                            len = in.read(buf);
+                            remaining -= len;
 
                         }
 
@@ -115,35 +542,364 @@ public class Tarball
                     out.closeArchiveEntry();
 
                 }
+
+                addEntry(added);
+                filesAdded++;
+                bytesAdded += attrs.size();
+
             }
 
         } catch (IOException ioe) {
 
-            _LOG.warn("Unable to add {} to tarball", path.getFileName(), ioe.getMessage());
+            _LOG.warn("Unable to add {} to tarball: {}", path.getFileName(), ioe.getMessage());
             _LOG.debug(ioe.getClass().getName(), ioe);
 
         }
     }
 
-    private int getEntriesCount() {
+    /**
+     * Adds a file as a PAX format 1.0 sparse entry, if it contains holes. Only the data segments are read and stored.
+     * @param path the file to add.
+     * @param attrs the file's attributes.
+     * @param name the entry name.
+     * @return the entry added, or null if the file has no holes and should be added normally.
+     * @throws IOException if the file cannot be read or the entry cannot be written.
+     */
+    private TarballEntry addSparseFile(Path path, BasicFileAttributes attrs, String name) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
 
-        int entryCount = 0;
-        try (TarArchiveInputStream in = new TarArchiveInputStream(new FileInputStream(tarFile))) {
+            SparseMap map = SparseMap.scan(channel);
 
-            while (in.getNextTarEntry() != null) {
+            if (!map.hasHoles()) {
 
-                entryCount ++;
+                return null;
 
             }
 
-            return entryCount;
+            byte[] mapBlock = map.toMapBlock();
+            String headerName = getSparseHeaderName(name);
 
-        } catch (IOException ioe) {
+            if (isVolumeFull(_RECORD_SIZE * 2 + mapBlock.length + map.getDataSize())) {
+
+                nextVolume();
+
+            }
+
+            // Extended header carrying the real name and size
+            byte[] pax = (getPaxRecord("GNU.sparse.major", "1")
+                    + getPaxRecord("GNU.sparse.minor", "0")
+                    + getPaxRecord("GNU.sparse.name", name)
+                    + getPaxRecord("GNU.sparse.realsize", Long.toString(map.getRealSize()))).getBytes(StandardCharsets.UTF_8);
+
+            long headerOffset = getVolumeOffset();
+            String paxName = "./PaxHeaders.X/" + headerName;
+            TarArchiveEntry paxEntry = new TarArchiveEntry(paxName.substring(0, Math.min(paxName.length(), TarConstants.NAMELEN)),
+                    TarConstants.LF_PAX_EXTENDED_HEADER_LC);
+            paxEntry.setSize(pax.length);
+            out.putArchiveEntry(paxEntry);
+            out.write(pax);
+            out.closeArchiveEntry();
+
+            // Sparse entry: the map followed by each data segment
+            TarArchiveEntry entry = new TarArchiveEntry(headerName);
+            entry.setSize(mapBlock.length + map.getDataSize());
+            entry.setModTime(attrs.lastModifiedTime().toMillis());
+            out.putArchiveEntry(entry);
+            long dataOffset = getVolumeOffset();
+            out.write(mapBlock);
+
+            ByteBuffer bytes = ByteBuffer.wrap(buf);
+            for (SparseMap.Segment segment : map.getSegments()) {
+
+                long position = segment.offset;
+                long end = segment.offset + segment.length;
+
+                while (position < end) {
+
+                    bytes.clear();
+                    bytes.limit((int) Math.min(bytes.capacity(), end - position));
+
+                    int len = channel.read(bytes, position);
+                    if (len < 0) {
+
+                        throw new IOException("File truncated while archiving");
+
+                    }
+
+                    out.write(buf, 0, len);
+                    position += len;
+
+                }
+            }
+
+            out.closeArchiveEntry();
+            _LOG.debug("entrySize: {} of {} bytes", map.getDataSize(), map.getRealSize());
+
+            return new TarballEntry(name, volumes.size() - 1, headerOffset, dataOffset, map.getRealSize(), entry.getSize(),
+                    attrs.lastModifiedTime().toMillis(), entry.getMode());
+
+        }
+    }
+
+    private boolean isArchiveFile(Path path) {
+
+        // Every file this tarball writes is named after it, so most files are ruled out without resolving their path
+        if (!path.getFileName().toString().startsWith(tarFile.getName())) {
+
+            return false;
+
+        }
+
+        File absoluteFile = path.toFile().getAbsoluteFile();
+        if (absoluteFile.equals(tarFile.getAbsoluteFile())
+                || absoluteFile.equals(LeafHashCache.getCacheFile(tarFile).getAbsoluteFile())) {
+
+            return true;
+
+        }
+
+        for (File volume : volumes) {
+
+            if (absoluteFile.equals(volume.getAbsoluteFile())) {
+
+                return true;
+
+            }
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Checks whether an entry of the given size should be written to a new volume. An empty volume is never full.
+     * @param entrySize the size of the entry data to be added.
+     * @return true if volumes are enabled and the entry would take the current volume past the volume size.
+     */
+    private boolean isVolumeFull(long entrySize) {
 
-            _LOG.warn("Error getting entries count: {}", ioe.getMessage());
-            return 0;
+        if (volumeSize <= 0) {
 
+            return false;
+
+        }
+
+        long written = volumeOut.getBytesWritten();
+        return written > 0 && (written + getRecordedSize(entrySize)) > volumeSize;
+
+    }
+
+    private static boolean isZero(byte[] buf, int length) {
+
+        for (int i = 0; i < length; i++) {
+
+            if (buf[i] != 0) {
+
+                return false;
+
+            }
         }
+
+        return true;
+
+    }
+
+    /**
+     * Checks the archive is all zeros from an offset to the end of the file, reading from the tail.
+     * @param raf the archive.
+     * @param offset the offset to check from.
+     * @return true if every byte from the offset to the end is zero.
+     * @throws IOException if the archive cannot be read.
+     */
+    private static boolean isZeroFrom(RandomAccessFile raf, long offset) throws IOException {
+
+        if (offset < 0 || offset > raf.length()) {
+
+            return false;
+
+        }
+
+        byte[] buf = new byte[8192];
+        long end = raf.length();
+
+        while (end > offset) {
+
+            int len = (int) Math.min(buf.length, end - offset);
+            raf.seek(end - len);
+            raf.readFully(buf, 0, len);
+
+            if (!isZero(buf, len)) {
+
+                return false;
+
+            }
+
+            end -= len;
+
+        }
+
+        return true;
+
+    }
+
+    private void openVolume(File volumeFile, boolean append) throws IOException {
+
+        volumeBase = 0;
+        volumeEntries = new ArrayList<>();
+        leafOut = null;
+
+        HashUtils hash = HashUtils.createSHA256Instance();
+        OutputStream fileOut;
+
+        if (append && volumeFile.length() > 0) {
+
+            volumeBase = readEntries(volumeFile, volumes.size(), this::addEntry);
+
+            // Leaf hashes are only reused if the cache agrees on where the entries end
+            LeafHashCache cache = LeafHashCache.load(volumeFile);
+            if (cache != null && cache.getArchiveEnd() != volumeBase) {
+
+                _LOG.warn("Ignoring leaf hash cache for {}: end of archive does not match", volumeFile.getName());
+                cache = null;
+
+            }
+
+            _LOG.debug("Appending to {} at offset {}; {} existing entries", volumeFile, volumeBase, entriesCount);
+
+            // Read back the partial leaf before the end-of-archive marker, then drop the marker
+            long leafStart = (volumeBase / _1MB) * _1MB;
+            byte[] partialLeaf = new byte[(int) (volumeBase - leafStart)];
+
+            try (FileChannel channel = FileChannel.open(volumeFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+                ByteBuffer buf = ByteBuffer.wrap(partialLeaf);
+                while (buf.hasRemaining()) {
+
+                    if (channel.read(buf, leafStart + buf.position()) < 0) {
+
+                        throw new EOFException("Unexpected end of archive");
+
+                    }
+                }
+
+                channel.truncate(volumeBase);
+
+            }
+
+            fileOut = new BufferedOutputStream(new FileOutputStream(volumeFile, true), outputBufferSize);
+            if (cache != null) {
+
+                leafOut = new LeafHashOutputStream(fileOut, hash, _1MB, cache.getLeavesBefore(volumeBase, _1MB), partialLeaf);
+                fileOut = leafOut;
+
+            } else {
+
+                _LOG.info("No leaf hash cache for {}; tree hash will not be available", volumeFile.getName());
+
+            }
+
+        } else {
+
+            fileOut = new BufferedOutputStream(new FileOutputStream(volumeFile, append), outputBufferSize);
+            if (!isMultiVolume()) {
+
+                leafOut = new LeafHashOutputStream(fileOut, hash, _1MB);
+                fileOut = leafOut;
+
+            }
+        }
+
+        // Write a record at a time so the byte count always reflects complete entries; the buffer below coalesces
+        // records, and runs of small files, into large sequential writes
+        volumeOut = new CountingOutputStream(fileOut);
+        out = new TarArchiveOutputStream(volumeOut, _RECORD_SIZE);
+        out.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+
+        volumes.add(volumeFile);
+        entries.put(volumeFile, volumeEntries);
+        _LOG.debug("Opened volume {}", volumeFile);
+
+    }
+
+    private void closeVolume(boolean complete) throws IOException {
+
+        long archiveEnd = volumeBase + volumeOut.getBytesWritten();
+        out.close();
+
+        File volumeFile = volumes.get(volumes.size() - 1);
+        _LOG.debug("Closed volume {}; {} bytes", volumeFile, volumeFile.length());
+
+        if (leafOut != null) {
+
+            leafHashes = leafOut.getLeaves();
+            new LeafHashCache(archiveEnd, volumeFile.length(), leafHashes).save(volumeFile);
+
+        } else if (!isMultiVolume()) {
+
+            // Any previous cache no longer matches the archive
+            Files.deleteIfExists(LeafHashCache.getCacheFile(volumeFile).toPath());
+
+        }
+
+        if (volumeHandler != null && complete) {
+
+            volumeHandler.accept(volumeFile);
+
+        }
+    }
+
+    private void nextVolume() throws IOException {
+
+        closeVolume(true);
+        openVolume(getVolumeFile(volumes.size() + 1), false);
+
+    }
+
+    /**
+     * Records an added entry, in the streaming index if there is one.
+     * @param entry the entry.
+     * @throws UncheckedIOException if the index cannot be written, so the failure is not mistaken for a file that
+     * could not be added.
+     */
+    private void addEntry(TarballEntry entry) {
+
+        if (indexWriter != null) {
+
+            try {
+
+                indexWriter.add(entry);
+
+            } catch (IOException ioe) {
+
+                throw new UncheckedIOException("Unable to write tarball index", ioe);
+
+            }
+
+        } else {
+
+            volumeEntries.add(entry);
+
+        }
+
+        entriesCount++;
+
+    }
+
+    private int getEntriesCount() {
+
+        return entriesCount;
+
+    }
+
+    /**
+     * Gets the offset in the current volume of the next byte to be written.
+     * @return the offset in bytes.
+     */
+    private long getVolumeOffset() {
+
+        return volumeBase + volumeOut.getBytesWritten();
+
     }
 
     private File getTarFile() {
@@ -152,37 +908,251 @@ public class Tarball
 
     }
 
-    public List<String> getEntries() {
+    /**
+     * Gets the file name used for the given volume.
+     * @param volume the volume number, starting at 1.
+     * @return a File named after the tarball with the volume number appended.
+     */
+    private File getVolumeFile(int volume) {
+
+        return new File(tarFile.getPath() + String.format(".%03d", volume));
+
+    }
+
+    public List<TarballEntry> getEntries() {
 
-        ArrayList<String> entryNames = new ArrayList<>();
+        ArrayList<TarballEntry> all = new ArrayList<>();
+        entries.values().forEach(all::addAll);
 
-        try (TarArchiveInputStream in = new TarArchiveInputStream(new FileInputStream(tarFile))) {
+        return all;
 
-            TarArchiveEntry entry = in.getNextTarEntry();
-            while (entry != null) {
+    }
 
-                if(entry.isFile()) {
+    /**
+     * Lists the file entries held in a single volume of this tarball.
+     * @param volume a volume file, as returned by {@link #getVolumes()}.
+     * @return a List of entries.
+     */
+    public List<TarballEntry> getEntries(File volume) {
+
+        return entries.containsKey(volume) ? new ArrayList<>(entries.get(volume)) : Collections.emptyList();
+
+    }
 
-                    entryNames.add(entry.getName());
+    /**
+     * Lists the file entries already in a tarball by walking its headers, seeking over entry data. Long names and PAX
+     * headers are applied to the entry that follows them.
+     * @param tarFile the tarball to read.
+     * @param volume the volume index to record against the entries.
+     * @param entries called with each entry found.
+     * @return the offset of the end-of-archive marker.
+     * @throws IOException if the archive cannot be read, is not a valid tar file, or has data after its end marker.
+     */
+    private static long readEntries(File tarFile, int volume, Consumer<TarballEntry> entries) throws IOException {
+
+        try (RandomAccessFile raf = new RandomAccessFile(tarFile, "r")) {
+
+            byte[] header = new byte[_RECORD_SIZE];
+            long position = 0, entryStart = -1;
+            String longName = null;
+            Map<String, String> paxHeaders = Collections.emptyMap();
+
+            while (position + _RECORD_SIZE <= raf.length()) {
+
+                raf.seek(position);
+                raf.readFully(header);
+
+                if (isZero(header, header.length)) {
+
+                    break;
 
                 }
-                entry = in.getNextTarEntry();
+
+                TarArchiveEntry entry;
+                try {
+
+                    entry = new TarArchiveEntry(header);
+
+                } catch (IllegalArgumentException iae) {
+
+                    throw new IOException(String.format("Invalid tar header at offset %d", position), iae);
+
+                }
+
+                long dataOffset = position + _RECORD_SIZE;
+                entryStart = entryStart < 0 ? position : entryStart;
+
+                if (entry.isGNULongNameEntry()) {
+
+                    longName = new String(readData(raf, dataOffset, entry.getSize()), StandardCharsets.UTF_8).replace("\0", "");
+
+                } else if (entry.isPaxHeader()) {
+
+                    paxHeaders = parsePaxHeaders(readData(raf, dataOffset, entry.getSize()));
+
+                } else if (entry.isGlobalPaxHeader()) {
+
+                    entryStart = -1;
+
+                } else {
+
+                    String name = paxHeaders.containsKey("GNU.sparse.name") ? paxHeaders.get("GNU.sparse.name")
+                            : paxHeaders.containsKey("path") ? paxHeaders.get("path")
+                            : longName != null ? longName : entry.getName();
+                    long size = paxHeaders.containsKey("GNU.sparse.realsize") ? Long.parseLong(paxHeaders.get("GNU.sparse.realsize"))
+                            : entry.getSize();
+
+                    if (entry.isFile()) {
+
+                        entries.accept(new TarballEntry(name, volume, entryStart, dataOffset, size, entry.getSize(),
+                                entry.getModTime().getTime(), entry.getMode()));
+
+                    }
+
+                    entryStart = -1;
+                    longName = null;
+                    paxHeaders = Collections.emptyMap();
+
+                }
+
+                position += getRecordedSize(entry.getSize());
 
             }
 
-        } catch (IOException ioe) {
+            // Nothing but the end-of-archive marker may follow the last entry
+            if (!isZeroFrom(raf, position)) {
+
+                throw new IOException("Unable to locate end of archive");
 
-            _LOG.error("Unable to read {}", tarFile, ioe);
+            }
+
+            return position;
 
         }
+    }
+
+    private static byte[] readData(RandomAccessFile raf, long offset, long size) throws IOException {
 
-        return entryNames;
+        if (size > _MAX_HEADER_SIZE) {
+
+            throw new IOException(String.format("Extended header at offset %d is too large", offset));
+
+        }
+
+        byte[] data = new byte[(int) size];
+        raf.seek(offset);
+        raf.readFully(data);
+
+        return data;
+
+    }
+
+    private static Map<String, String> parsePaxHeaders(byte[] data) throws IOException {
+
+        Map<String, String> headers = new HashMap<>();
+        int position = 0;
+
+        while (position < data.length && data[position] != 0) {
+
+            // Each record is "<length> <key>=<value>\n", the length including itself
+            int space = position;
+            while (space < data.length && data[space] != ' ') {
+
+                space++;
+
+            }
+
+            try {
+
+                int length = Integer.parseInt(new String(data, position, space - position, StandardCharsets.US_ASCII));
+                String record = new String(data, space + 1, length - (space - position) - 2, StandardCharsets.UTF_8);
+                int equals = record.indexOf('=');
+
+                headers.put(record.substring(0, equals), record.substring(equals + 1));
+                position += length;
+
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+
+                throw new IOException("Invalid PAX header record", e);
+
+            }
+        }
+
+        return headers;
+
+    }
+
+    /**
+     * Gets the total size of the files added. Sparse files count their full size, holes included.
+     * @return the number of bytes.
+     */
+    public long getBytesAdded() {
+
+        return bytesAdded;
+
+    }
+
+    /**
+     * Gets the number of files added.
+     * @return the number of files.
+     */
+    public int getFilesAdded() {
+
+        return filesAdded;
+
+    }
+
+    /**
+     * Gets the rate files were added while the tarball was written.
+     * @return the number of files added per second.
+     */
+    public double getFilesPerSecond() {
+
+        return elapsedNanos == 0 ? 0 : filesAdded / (elapsedNanos / 1e9);
+
+    }
+
+    /**
+     * Gets the SHA-256 tree hash of a single-file tarball, calculated from leaf hashes recorded as it was written.
+     * @return a hex String containing the tree hash, or null if it is not available.
+     */
+    public String getTreeHash() {
+
+        if (leafHashes == null) {
+
+            return null;
+
+        }
+
+        return Hex.encodeHexString(HashUtils.createSHA256Instance().calculateTreeHashFromHashes(leafHashes));
+
+    }
+
+    /**
+     * Gets the files making up this tarball. Without volumes this is just the tar file itself.
+     * @return an unmodifiable List of volume files in sequence.
+     */
+    public List<File> getVolumes() {
+
+        return Collections.unmodifiableList(volumes);
+
+    }
+
+    public boolean isMultiVolume() {
+
+        return volumeSize > 0;
 
     }
 
     @Override
     public String toString() {
 
+        if (isMultiVolume()) {
+
+            return String.format("%s (%d entries in %d volumes)", getTarFile().getName(), getEntriesCount(), volumes.size());
+
+        }
+
         return String.format("%s (%d entries)", getTarFile().getName(), getEntriesCount());
 
     }
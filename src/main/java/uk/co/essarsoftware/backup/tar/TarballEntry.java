@@ -0,0 +1,120 @@
+package uk.co.essarsoftware.backup.tar;
+
+/**
+ * Location and metadata of a file entry within a tarball, as recorded in the index.
+ * @author <steve.roberts/>
+ */
+public class TarballEntry
+{
+
+    private static final int _1MB = 1048576;
+
+    private final String name;
+    private final int volume, mode;
+    private final long headerOffset, dataOffset, size, storedSize, modTime;
+
+    /**
+     * Describes an entry.
+     * @param name the entry name.
+     * @param volume the index of the volume holding the entry, starting at zero.
+     * @param headerOffset the offset of the first header record for the entry, including any long name or PAX headers.
+     * @param dataOffset the offset of the entry data.
+     * @param size the size of the file.
+     * @param storedSize the number of bytes of entry data in the archive. Less than the size for sparse entries.
+     * @param modTime the modification time of the file in milliseconds.
+     * @param mode the file mode.
+     */
+    public TarballEntry(String name, int volume, long headerOffset, long dataOffset, long size, long storedSize, long modTime, int mode) {
+
+        this.name = name;
+        this.volume = volume;
+        this.headerOffset = headerOffset;
+        this.dataOffset = dataOffset;
+        this.size = size;
+        this.storedSize = storedSize;
+        this.modTime = modTime;
+        this.mode = mode;
+
+    }
+
+    public long getDataOffset() {
+
+        return dataOffset;
+
+    }
+
+    public long getHeaderOffset() {
+
+        return headerOffset;
+
+    }
+
+    public int getMode() {
+
+        return mode;
+
+    }
+
+    public long getModTime() {
+
+        return modTime;
+
+    }
+
+    public String getName() {
+
+        return name;
+
+    }
+
+    /**
+     * Gets the first byte of the range to retrieve to restore this entry. Glacier range retrievals must be aligned to
+     * whole 1MB tree hash leaves, so this is the start of the leaf holding the first header record.
+     * @return the offset of the range start.
+     */
+    public long getRangeStart() {
+
+        return (headerOffset / _1MB) * _1MB;
+
+    }
+
+    /**
+     * Gets the last byte of the range to retrieve to restore this entry: the end of the leaf holding the last data
+     * record, or the end of the archive.
+     * @param archiveLength the length of the archive holding the entry.
+     * @return the offset of the last byte in the range, inclusive.
+     */
+    public long getRangeEnd(long archiveLength) {
+
+        long dataEnd = dataOffset + storedSize;
+        long rangeEnd = ((dataEnd + _1MB - 1) / _1MB) * _1MB;
+
+        return Math.min(rangeEnd, archiveLength) - 1;
+
+    }
+
+    public long getSize() {
+
+        return size;
+
+    }
+
+    public long getStoredSize() {
+
+        return storedSize;
+
+    }
+
+    public int getVolume() {
+
+        return volume;
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("%s (%d bytes at %d in volume %d)", name, size, dataOffset, volume);
+
+    }
+}
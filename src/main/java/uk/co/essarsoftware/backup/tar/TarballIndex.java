@@ -1,19 +1,35 @@
 package uk.co.essarsoftware.backup.tar;
 
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.PriorityQueue;
 
+/**
+ * Index of a tarball's entries and the archives it was uploaded as. Entries are read from the streaming index written
+ * while the tarball was created, so neither index format needs every entry in memory at once.
+ * @author <steve.roberts/>
+ */
 public class TarballIndex
 {
 
-    private List<String> tarEntries = new ArrayList<>();
+    static final int BINARY_MAGIC = 0x47544958;
+    static final int BINARY_VERSION = 1;
+    static final int RECORD_SIZE = 80;
+
+    // Entries sorted in memory at once when writing the binary index; larger indexes are sorted in runs and merged
+    private static final int _RUN_ENTRIES = 131072;
+
+    private List<Volume> volumes = new ArrayList<>();
     private String archiveId, checksum;
+    private long archiveLength;
+    private Path entriesFilePath;
 
     private final Path indexFilePath;
 
@@ -23,29 +39,98 @@ public class TarballIndex
 
     }
 
+    /**
+     * Compares two UTF-8 encoded names byte by byte, treating bytes as unsigned. This is the order of the binary index,
+     * and matches the code point order of the names.
+     * @param a the first name.
+     * @param b the second name.
+     * @return a negative number, zero or a positive number as the first name sorts before, equal to or after the second.
+     */
+    static int compareNames(byte[] a, byte[] b) {
+
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+
+                return cmp;
+
+            }
+        }
+
+        return a.length - b.length;
+
+    }
+
+    /**
+     * Records a volume of a multi-volume tarball. Volumes must be added in sequence.
+     * @param volumeName the file name of the volume.
+     * @param archiveId the archive ID the volume was uploaded as, or null if it was not uploaded.
+     * @param checksum the checksum returned from the upload, or null if it was not uploaded.
+     * @param length the length of the volume in bytes.
+     */
+    public void addVolume(String volumeName, String archiveId, String checksum, long length) {
+
+        volumes.add(new Volume(volumeName, archiveId, checksum, length));
+
+    }
+
     public void setArchiveId(String archiveId) {
 
         this.archiveId = archiveId;
 
     }
 
+    public void setArchiveLength(long archiveLength) {
+
+        this.archiveLength = archiveLength;
+
+    }
+
     public void setChecksum(String checksum) {
 
         this.checksum = checksum;
 
     }
 
-    public void setTarEntries(List<String> tarEntries) {
+    /**
+     * Sets the entries of the tarball.
+     * @param entriesFilePath the streaming index written by {@link StreamingIndexWriter} as the tarball was created.
+     */
+    public void setEntries(Path entriesFilePath) {
 
-        this.tarEntries.clear();
-        this.tarEntries.addAll(tarEntries);
+        this.entriesFilePath = entriesFilePath;
 
     }
 
+    private List<Volume> getAllVolumes() {
+
+        return volumes.isEmpty() ? Collections.singletonList(new Volume("", archiveId, checksum, archiveLength)) : volumes;
+
+    }
+
+    private static void printVolume(PrintWriter out, Volume volume) {
+
+        out.println("---");
+        out.println(String.format("Volume: %s", volume.name));
+        if(volume.archiveId != null) {
+
+            out.println(String.format("ArchiveId: %s", volume.archiveId));
+
+        }
+        if(volume.checksum != null) {
+
+            out.println(String.format("Checksum: %s", volume.checksum));
+
+        }
+    }
+
     public void writeIndex() throws IOException {
 
         // Open upload output
-        try (PrintWriter out = new PrintWriter(new FileOutputStream(indexFilePath.toFile()))) {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(indexFilePath.toFile())));
+             StreamingIndexReader entries = (entriesFilePath == null ? null : new StreamingIndexReader(entriesFilePath))) {
 
             out.println(LocalDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME));
             if(archiveId != null) {
@@ -59,12 +144,333 @@ public class TarballIndex
 
             }
 
-            if (tarEntries.size() > 0) {
+            TarballEntry e = (entries == null ? null : entries.next());
+
+            if (volumes.isEmpty() && e != null) {
 
                 out.println("---");
-                tarEntries.forEach(out::println);
 
             }
+
+            // Each volume gets its own section, so a restore need only retrieve the volumes holding the entries it
+            // needs. Entries arrive in archive order, so each volume's entries follow its section heading.
+            int volume = -1;
+            for (; e != null; e = entries.next()) {
+
+                while (volume < e.getVolume() && !volumes.isEmpty()) {
+
+                    if (++volume >= volumes.size()) {
+
+                        throw new IOException(String.format("Entry %s is in unknown volume %d", e.getName(), e.getVolume()));
+
+                    }
+                    printVolume(out, volumes.get(volume));
+
+                }
+
+                out.println(e.getName());
+
+            }
+
+            while (++volume < volumes.size()) {
+
+                printVolume(out, volumes.get(volume));
+
+            }
+        }
+    }
+
+    /**
+     * Writes the index in binary form, for use with {@link TarballIndexReader}. The file holds a header listing each
+     * volume, then a table of fixed-size entry records sorted by name, then the entry names. Records can be binary
+     * searched in place from a memory-mapped file without loading the index.
+     * <p>
+     * Entries are sorted {@value #_RUN_ENTRIES} at a time. When there are more, each sorted run is written to a
+     * temporary file beside the index and the runs merged, so memory use does not depend on the number of entries.
+     * @param binaryFilePath the file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    public void writeBinaryIndex(Path binaryFilePath) throws IOException {
+
+        List<Volume> allVolumes = getAllVolumes();
+        List<Path> runFiles = new ArrayList<>();
+        Path namesFilePath = binaryFilePath.resolveSibling(binaryFilePath.getFileName() + ".names");
+        long entryCount = 0;
+
+        try {
+
+            // Sort entries into runs, spilling each full run to disk
+            List<SortedEntry> run = new ArrayList<>();
+            if (entriesFilePath != null) {
+
+                try (StreamingIndexReader entries = new StreamingIndexReader(entriesFilePath)) {
+
+                    for (TarballEntry e = entries.next(); e != null; e = entries.next()) {
+
+                        if (e.getVolume() >= allVolumes.size()) {
+
+                            throw new IOException(String.format("Entry %s is in unknown volume %d", e.getName(), e.getVolume()));
+
+                        }
+
+                        run.add(new SortedEntry(e));
+                        entryCount++;
+
+                        if (run.size() == _RUN_ENTRIES) {
+
+                            runFiles.add(writeRun(binaryFilePath, runFiles.size(), run));
+                            run.clear();
+
+                        }
+                    }
+                }
+            }
+
+            if (entryCount > Integer.MAX_VALUE) {
+
+                throw new IOException("Too many entries for a binary index");
+
+            }
+
+            run.sort((a, b) -> compareNames(a.name, b.name));
+            if (!runFiles.isEmpty() && !run.isEmpty()) {
+
+                runFiles.add(writeRun(binaryFilePath, runFiles.size(), run));
+                run.clear();
+
+            }
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(header)) {
+
+                out.writeInt(allVolumes.size());
+                for (Volume volume : allVolumes) {
+
+                    out.writeUTF(volume.name);
+                    out.writeUTF(volume.archiveId == null ? "" : volume.archiveId);
+                    out.writeUTF(volume.checksum == null ? "" : volume.checksum);
+                    out.writeLong(volume.length);
+
+                }
+            }
+
+            // Magic, version, entry count and two offsets precede the volume table
+            long recordsOffset = 4 + 4 + 4 + 8 + 8 + header.size();
+            long namesOffset = recordsOffset + entryCount * RECORD_SIZE;
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binaryFilePath.toFile()), 65536))) {
+
+                out.writeInt(BINARY_MAGIC);
+                out.writeInt(BINARY_VERSION);
+                out.writeInt((int) entryCount);
+                out.writeLong(recordsOffset);
+                out.writeLong(namesOffset);
+                header.writeTo(out);
+
+                // Names are written beside the records, then appended once every record is written
+                try (OutputStream names = new BufferedOutputStream(new FileOutputStream(namesFilePath.toFile()), 65536)) {
+
+                    long nameOffset = 0;
+                    if (runFiles.isEmpty()) {
+
+                        for (SortedEntry s : run) {
+
+                            nameOffset = writeRecord(out, names, s, allVolumes, nameOffset);
+
+                        }
+
+                    } else {
+
+                        PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> compareNames(a.current.name, b.current.name));
+                        try {
+
+                            for (Path runFile : runFiles) {
+
+                                RunReader reader = new RunReader(runFile);
+                                if (reader.next()) {
+
+                                    queue.add(reader);
+
+                                } else {
+
+                                    reader.close();
+
+                                }
+                            }
+
+                            while (!queue.isEmpty()) {
+
+                                RunReader reader = queue.poll();
+                                nameOffset = writeRecord(out, names, reader.current, allVolumes, nameOffset);
+
+                                if (reader.next()) {
+
+                                    queue.add(reader);
+
+                                } else {
+
+                                    reader.close();
+
+                                }
+                            }
+
+                        } finally {
+
+                            for (RunReader reader : queue) {
+
+                                reader.close();
+
+                            }
+                        }
+                    }
+                }
+
+                Files.copy(namesFilePath, out);
+
+            }
+
+        } finally {
+
+            for (Path runFile : runFiles) {
+
+                Files.deleteIfExists(runFile);
+
+            }
+            Files.deleteIfExists(namesFilePath);
+
+        }
+    }
+
+    private static long writeRecord(DataOutputStream out, OutputStream names, SortedEntry s, List<Volume> volumes, long nameOffset) throws IOException {
+
+        TarballEntry e = s.entry;
+
+        out.writeLong(nameOffset);
+        out.writeInt(s.name.length);
+        out.writeInt(e.getVolume());
+        out.writeLong(e.getHeaderOffset());
+        out.writeLong(e.getDataOffset());
+        out.writeLong(e.getSize());
+        out.writeLong(e.getStoredSize());
+        out.writeLong(e.getModTime());
+        out.writeInt(e.getMode());
+        out.writeInt(0);
+        out.writeLong(e.getRangeStart());
+        out.writeLong(e.getRangeEnd(volumes.get(e.getVolume()).length));
+
+        names.write(s.name);
+
+        return nameOffset + s.name.length;
+
+    }
+
+    private static Path writeRun(Path binaryFilePath, int number, List<SortedEntry> run) throws IOException {
+
+        run.sort((a, b) -> compareNames(a.name, b.name));
+
+        Path runFile = binaryFilePath.resolveSibling(String.format("%s.run%d", binaryFilePath.getFileName(), number));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile.toFile()), 65536))) {
+
+            for (SortedEntry s : run) {
+
+                TarballEntry e = s.entry;
+
+                out.writeInt(s.name.length);
+                out.write(s.name);
+                out.writeInt(e.getVolume());
+                out.writeLong(e.getHeaderOffset());
+                out.writeLong(e.getDataOffset());
+                out.writeLong(e.getSize());
+                out.writeLong(e.getStoredSize());
+                out.writeLong(e.getModTime());
+                out.writeInt(e.getMode());
+
+            }
+        }
+
+        return runFile;
+
+    }
+
+    /**
+     * Reads back a sorted run written during an external sort.
+     */
+    private static class RunReader implements Closeable
+    {
+
+        private final DataInputStream in;
+        private SortedEntry current;
+
+        RunReader(Path runFile) throws IOException {
+
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile.toFile()), 65536));
+
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            in.close();
+
+        }
+
+        boolean next() throws IOException {
+
+            int nameLength;
+            try {
+
+                nameLength = in.readInt();
+
+            } catch (EOFException eofe) {
+
+                current = null;
+                return false;
+
+            }
+
+            byte[] name = new byte[nameLength];
+            in.readFully(name);
+
+            current = new SortedEntry(name, new TarballEntry(new String(name, StandardCharsets.UTF_8), in.readInt(),
+                    in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readInt()));
+            return true;
+
+        }
+    }
+
+    private static class SortedEntry
+    {
+
+        private final byte[] name;
+        private final TarballEntry entry;
+
+        SortedEntry(TarballEntry entry) {
+
+            this(entry.getName().getBytes(StandardCharsets.UTF_8), entry);
+
+        }
+
+        SortedEntry(byte[] name, TarballEntry entry) {
+
+            this.name = name;
+            this.entry = entry;
+
+        }
+    }
+
+    private static class Volume
+    {
+
+        private final String name, archiveId, checksum;
+        private final long length;
+
+        Volume(String name, String archiveId, String checksum, long length) {
+
+            this.name = name;
+            this.archiveId = archiveId;
+            this.checksum = checksum;
+            this.length = length;
+
         }
     }
 }
@@ -0,0 +1,280 @@
+package uk.co.essarsoftware.backup.tar;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Looks up entries in a binary tarball index written by {@link TarballIndex#writeBinaryIndex(Path)}. The entry records
+ * and names are memory-mapped and binary searched in place, so a lookup touches only the pages it needs.
+ * @author <steve.roberts/>
+ */
+public class TarballIndexReader implements Closeable
+{
+
+    private final FileChannel channel;
+    private final MappedByteBuffer records, names;
+    private final int entryCount;
+    private final List<String> volumeNames = new ArrayList<>();
+    private final List<String> archiveIds = new ArrayList<>();
+    private final List<String> checksums = new ArrayList<>();
+    private final List<Long> lengths = new ArrayList<>();
+
+    public TarballIndexReader(Path binaryFilePath) throws IOException {
+
+        channel = FileChannel.open(binaryFilePath, StandardOpenOption.READ);
+
+        try {
+
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+
+            if (in.readInt() != TarballIndex.BINARY_MAGIC) {
+
+                throw new IOException("Not a binary tarball index");
+
+            }
+            if (in.readInt() != TarballIndex.BINARY_VERSION) {
+
+                throw new IOException("Unsupported binary tarball index version");
+
+            }
+
+            entryCount = in.readInt();
+            long recordsOffset = in.readLong();
+            long namesOffset = in.readLong();
+
+            int volumeCount = in.readInt();
+            for (int i = 0; i < volumeCount; i++) {
+
+                volumeNames.add(in.readUTF());
+                archiveIds.add(emptyToNull(in.readUTF()));
+                checksums.add(emptyToNull(in.readUTF()));
+                lengths.add(in.readLong());
+
+            }
+
+            long recordsLength = namesOffset - recordsOffset;
+            long namesLength = channel.size() - namesOffset;
+
+            if (recordsLength > Integer.MAX_VALUE || namesLength > Integer.MAX_VALUE) {
+
+                throw new IOException("Binary tarball index is too large to map");
+
+            }
+
+            records = channel.map(FileChannel.MapMode.READ_ONLY, recordsOffset, recordsLength);
+            names = channel.map(FileChannel.MapMode.READ_ONLY, namesOffset, namesLength);
+
+        } catch (IOException ioe) {
+
+            channel.close();
+            throw ioe;
+
+        }
+    }
+
+    private static String emptyToNull(String s) {
+
+        return s.isEmpty() ? null : s;
+
+    }
+
+    private int compareName(int record, byte[] name) {
+
+        int base = record * TarballIndex.RECORD_SIZE;
+        int nameOffset = (int) records.getLong(base);
+        int nameLength = records.getInt(base + 8);
+
+        int length = Math.min(nameLength, name.length);
+        for (int i = 0; i < length; i++) {
+
+            int cmp = (names.get(nameOffset + i) & 0xff) - (name[i] & 0xff);
+            if (cmp != 0) {
+
+                return cmp;
+
+            }
+        }
+
+        return nameLength - name.length;
+
+    }
+
+    private boolean hasPrefix(int record, byte[] prefix) {
+
+        int base = record * TarballIndex.RECORD_SIZE;
+        int nameOffset = (int) records.getLong(base);
+        int nameLength = records.getInt(base + 8);
+
+        if (nameLength < prefix.length) {
+
+            return false;
+
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+
+            if (names.get(nameOffset + i) != prefix[i]) {
+
+                return false;
+
+            }
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Finds the first record whose name sorts at or after the given name.
+     * @param name the encoded name to search for.
+     * @return the record number, or the entry count if every name sorts before it.
+     */
+    private int lowerBound(byte[] name) {
+
+        int low = 0, high = entryCount;
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+            if (compareName(mid, name) < 0) {
+
+                low = mid + 1;
+
+            } else {
+
+                high = mid;
+
+            }
+        }
+
+        return low;
+
+    }
+
+    /**
+     * Reads an entry by its position in the index. Entries are in name order.
+     * @param record the record number, from zero to the entry count.
+     * @return the entry.
+     */
+    public TarballEntry getEntry(int record) {
+
+        ByteBuffer r = records.duplicate();
+        r.position(record * TarballIndex.RECORD_SIZE);
+
+        long nameOffset = r.getLong();
+        int nameLength = r.getInt();
+
+        byte[] name = new byte[nameLength];
+        ByteBuffer n = names.duplicate();
+        n.position((int) nameOffset);
+        n.get(name);
+
+        int volume = r.getInt();
+        long headerOffset = r.getLong();
+        long dataOffset = r.getLong();
+        long size = r.getLong();
+        long storedSize = r.getLong();
+        long modTime = r.getLong();
+        int mode = r.getInt();
+
+        return new TarballEntry(new String(name, StandardCharsets.UTF_8), volume, headerOffset, dataOffset, size, storedSize, modTime, mode);
+
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        channel.close();
+
+    }
+
+    /**
+     * Finds an entry by name.
+     * @param name the entry name.
+     * @return the entry, or null if the index has no entry of that name.
+     */
+    public TarballEntry find(String name) {
+
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int record = lowerBound(key);
+
+        return (record < entryCount && compareName(record, key) == 0) ? getEntry(record) : null;
+
+    }
+
+    /**
+     * Finds every entry whose name starts with a prefix, such as all the files under a directory.
+     * @param prefix the name prefix.
+     * @return a List of entries in name order.
+     */
+    public List<TarballEntry> findPrefix(String prefix) {
+
+        byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        List<TarballEntry> found = new ArrayList<>();
+
+        for (int record = lowerBound(key); record < entryCount && hasPrefix(record, key); record++) {
+
+            found.add(getEntry(record));
+
+        }
+
+        return found;
+
+    }
+
+    public String getArchiveId(int volume) {
+
+        return archiveIds.get(volume);
+
+    }
+
+    public long getArchiveLength(int volume) {
+
+        return lengths.get(volume);
+
+    }
+
+    public String getChecksum(int volume) {
+
+        return checksums.get(volume);
+
+    }
+
+    public int getEntryCount() {
+
+        return entryCount;
+
+    }
+
+    /**
+     * Gets the range of the archive to retrieve to restore an entry, aligned to whole tree hash leaves.
+     * @param entry an entry found in this index.
+     * @return a String in the form {@code start-end}, as used for Glacier range retrievals.
+     */
+    public String getRetrievalRange(TarballEntry entry) {
+
+        return String.format("%d-%d", entry.getRangeStart(), entry.getRangeEnd(getArchiveLength(entry.getVolume())));
+
+    }
+
+    public String getVolumeName(int volume) {
+
+        return volumeNames.get(volume);
+
+    }
+
+    public int getVolumeCount() {
+
+        return volumeNames.size();
+
+    }
+}
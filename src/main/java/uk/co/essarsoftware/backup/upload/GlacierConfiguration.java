@@ -1,12 +1,23 @@
 package uk.co.essarsoftware.backup.upload;
 
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.ProfileCredentialsProvider;
+import software.amazon.awssdk.services.glacier.GlacierClient;
+import software.amazon.awssdk.services.glacier.model.DescribeVaultRequest;
 
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Properties;
 
-class GlacierConfiguration
+public class GlacierConfiguration
 {
 
     private static final Logger _LOG = LoggerFactory.getLogger(GlacierConfiguration.class);
@@ -17,7 +28,16 @@ class GlacierConfiguration
         try {
 
             // Load from file
-            props.load(GlacierConfiguration.class.getResourceAsStream("/glacier.properties"));
+            InputStream in = GlacierConfiguration.class.getResourceAsStream("/glacier.properties");
+            if (in == null) {
+
+                _LOG.warn("Unable to find glacier.properties");
+
+            } else {
+
+                props.load(in);
+
+            }
 
         } catch (IOException ioe) {
 
@@ -30,7 +50,99 @@ class GlacierConfiguration
 
     }
 
-    static final String awsProfile = props.getProperty("aws.profile");
-    static final String vaultName = props.getProperty("glacier.vault.name");
+    public static final String awsProfile = props.getProperty("aws.profile");
+    public static final String vaultName = props.getProperty("glacier.vault.name");
+
+    // Tuning profile, see TuningProfile
+    public static final String memoryBudgetMB = props.getProperty("tuning.memory.mb");
+    public static final String cpuShare = props.getProperty("tuning.cpu.share");
+
+    // Client-side encryption, see getEncryptionKey
+    public static final String encryptionKeyFile = props.getProperty("encryption.key.file");
+
+    private static GlacierClient client;
+    private static SecretKey encryptionKey;
+
+    /**
+     * Gets the Glacier client shared by every upload in this JVM. The first call resolves the credentials and loads
+     * the SDK, so uploads after it start without that cost. The client is thread safe and is never closed.
+     * @return the shared client.
+     */
+    public static synchronized GlacierClient getClient() {
+
+        if (client == null) {
+
+            client = GlacierClient.builder()
+                    .credentialsProvider(ProfileCredentialsProvider.builder()
+                            .profileName(awsProfile)
+                            .build())
+                    .build();
+
+            _LOG.debug("Initialised Glacier client: {}", client);
+
+        }
+
+        return client;
+
+    }
+
+    /**
+     * Gets the key archives are encrypted with before they are uploaded, read from the file named by
+     * {@code encryption.key.file}. The file holds a 256-bit AES key, as 32 bytes or as 64 hex digits, and should be
+     * readable only by the user running backups. The key is read once and kept for the life of the JVM.
+     * @return the key, or null if archives are uploaded unencrypted.
+     * @throws IllegalArgumentException if the file cannot be read or does not hold a key.
+     */
+    public static synchronized SecretKey getEncryptionKey() {
+
+        if (encryptionKey == null && encryptionKeyFile != null) {
+
+            byte[] key;
+            try {
+
+                key = Files.readAllBytes(Paths.get(encryptionKeyFile.trim()));
+                if (key.length != 32) {
+
+                    key = Hex.decodeHex(new String(key, StandardCharsets.US_ASCII).trim().toCharArray());
+
+                }
+
+            } catch (IOException | DecoderException e) {
+
+                throw new IllegalArgumentException("Unable to read encryption key: " + e.getMessage());
+
+            }
+
+            if (key.length != 32) {
+
+                throw new IllegalArgumentException("Encryption key must be 256 bits");
+
+            }
+
+            encryptionKey = new SecretKeySpec(key, "AES");
+
+        }
+
+        return encryptionKey;
+
+    }
+
+    /**
+     * Creates the shared client and sends a request to the vault, so the credentials are resolved and a connection to
+     * Glacier is open before the first upload needs one. Failures are ignored, as uploads report them.
+     */
+    public static void warmUp() {
+
+        try {
+
+            getClient().describeVault(DescribeVaultRequest.builder().vaultName(vaultName).build());
+            _LOG.debug("Connected to vault {}", vaultName);
+
+        } catch (RuntimeException re) {
+
+            _LOG.debug("Unable to connect to vault {}: {}", vaultName, re.getMessage());
+
+        }
+    }
 
 }
@@ -20,7 +20,7 @@ class MultipartObject
 
     private byte[] treeHash;
     private int length;
-    private long endTimestamp, processStartTimestamp, uploadStartTimestamp;
+    private long endTimestamp, processStartTimestamp, rangeStart, uploadStartTimestamp;
     private String uploadRange;
 
 
@@ -28,7 +28,7 @@ class MultipartObject
      * Calculates the duration of the upload based on start and end timestamps.
      * @return a long containing the duration in milliseconds.
      */
-    private long getUploadDuration() {
+    long getUploadDuration() {
 
         return (uploadStartTimestamp == 0 || endTimestamp == 0) ? 0 : (endTimestamp - uploadStartTimestamp);
 
@@ -73,15 +73,12 @@ class MultipartObject
 
         processStartTimestamp = System.currentTimeMillis();
 
-        int rangeStart = in.getPosition();
-        _LOG.debug("Input stream at {}", rangeStart);
+        long start = in.getPosition();
+        _LOG.debug("Input stream at {}", start);
 
         // Get part from stream
         byte[] bytes = in.readChunk();
-        length = bytes.length;
-
-        int rangeEnd = rangeStart + bytes.length - 1;
-        uploadRange = String.format("bytes %d-%d/*", rangeStart, rangeEnd);
+        setRange(start, bytes.length);
         _LOG.debug("Read {} bytes", bytes.length);
 
 
@@ -121,6 +118,16 @@ class MultipartObject
 
     }
 
+    /**
+     * Returns the offset of the part in the archive.
+     * @return the offset of the first byte.
+     */
+    long getRangeStart() {
+
+        return rangeStart;
+
+    }
+
     /**
      * Returns the upload range string used to indicate the sequence of this part in the overall archive.
      * @return a String indicating the start and end bytes of this part.
@@ -131,6 +138,19 @@ class MultipartObject
 
     }
 
+    /**
+     * Sets where the part is in the archive, such as when the bytes uploaded differ from those read.
+     * @param rangeStart the offset of the first byte.
+     * @param length the number of bytes in the part.
+     */
+    void setRange(long rangeStart, int length) {
+
+        this.rangeStart = rangeStart;
+        this.length = length;
+        uploadRange = String.format("bytes %d-%d/*", rangeStart, rangeStart + length - 1);
+
+    }
+
     /**
      * Sets the time the upload completed.
      * @param endTimestamp the end time in milliseconds.
@@ -184,9 +204,9 @@ class MultipartObject
         /**
          * Extracts the starting byte number from a range string.
          * @param rangeString the multipart range string.
-         * @return the starting byte as an integer.
+         * @return the starting byte.
          */
-        private static int extractStartByte(String rangeString) {
+        private static long extractStartByte(String rangeString) {
 
             Matcher m = Pattern.compile("(\\d+)-\\d+/\\*").matcher(rangeString);
 
@@ -194,7 +214,7 @@ class MultipartObject
 
                 try {
 
-                    return Integer.parseInt(m.group(1));
+                    return Long.parseLong(m.group(1));
 
                 } catch (IndexOutOfBoundsException | NumberFormatException e) {
 
@@ -210,7 +230,7 @@ class MultipartObject
         @Override
         public int compare(MultipartObject mo1, MultipartObject mo2) {
 
-            return (extractStartByte(mo1.getUploadRange()) - extractStartByte(mo2.getUploadRange()));
+            return Long.compare(extractStartByte(mo1.getUploadRange()), extractStartByte(mo2.getUploadRange()));
 
         }
     }
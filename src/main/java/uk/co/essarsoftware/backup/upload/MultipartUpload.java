@@ -3,7 +3,6 @@ package uk.co.essarsoftware.backup.upload;
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import software.amazon.awssdk.auth.credentials.ProfileCredentialsProvider;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.glacier.GlacierClient;
 import software.amazon.awssdk.services.glacier.model.*;
@@ -12,10 +11,15 @@ import uk.co.essarsoftware.backup.io.ChunkedInputStream;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MultipartUpload implements UploadResult
 {
@@ -24,41 +28,62 @@ public class MultipartUpload implements UploadResult
 
     private static final int _1MB = 1048576;
 
+    // Glacier accepts at most this many parts in an archive
+    private static final int _MAX_PARTS = 10000;
+
     private final GlacierClient glacier;
+    private final SegmentCipher cipher;
     private final ExecutorService service;
     private final PartTree parts = new PartTree();
+    private final AtomicLong partBytes = new AtomicLong(), partMillis = new AtomicLong(), hashNanos = new AtomicLong();
+    private final AtomicInteger retries = new AtomicInteger();
 
-    private int chunkSize, uploadThreads;
+    private int chunkSize, readSize, uploadThreads;
+    private volatile boolean aborted, partLimitExceeded;
+    private boolean finalPartRead;
     private Path path;
     private String archiveId, checksum, uploadId;
+    private UploadHistory history;
 
     private HashUtils hash = HashUtils.createSHA256Instance();
 
+    /**
+     * Creates an upload, encrypted if {@link GlacierConfiguration#getEncryptionKey()} gives a key.
+     * @param path the archive to upload.
+     * @param chunkSize the size of the parts to send, a power of two number of MB.
+     * @param uploadThreads the number of parts to read, encrypt, hash and send at once.
+     * @throws IllegalArgumentException if the encryption key cannot be read.
+     */
     public MultipartUpload(Path path, int chunkSize, int uploadThreads) {
 
         this.path = path;
         this.chunkSize = chunkSize;
         this.uploadThreads = uploadThreads;
 
-        _LOG.info("Uploading {}; {} bytes in {}MB chunks using {} workers", path.toAbsolutePath(), getFileSize(path), (chunkSize / _1MB), uploadThreads);
+        // The file may not be complete yet, so its size is logged when the upload starts
+        _LOG.info("Uploading {} in {}MB chunks using {} workers", path.toAbsolutePath(), (chunkSize / _1MB), uploadThreads);
 
-        glacier = GlacierClient.builder()
-                .credentialsProvider(ProfileCredentialsProvider.builder()
-                        .profileName(GlacierConfiguration.awsProfile)
-                        .build())
-                .build();
+        cipher = SegmentCipher.fromConfiguration();
 
-        _LOG.debug("Initialised Glacier client: {}", glacier);
+        // An encrypted part holds less of the archive, as each segment has a nonce and a tag
+        readSize = (cipher == null ? chunkSize : SegmentCipher.getPlainSize(chunkSize));
+        if (cipher != null) {
+
+            _LOG.info("Encrypting {} with key {}", path.getFileName(), cipher.getKeyId());
+
+        }
+
+        glacier = GlacierConfiguration.getClient();
 
         service = Executors.newFixedThreadPool(uploadThreads);
 
     }
 
-    private static int getFileSize(Path path) {
+    private static long getFileSize(Path path) {
 
         try {
 
-            return (int) Files.size(path);
+            return Files.size(path);
 
         } catch (IOException ioe) {
 
@@ -70,7 +95,9 @@ public class MultipartUpload implements UploadResult
 
     public void abort() {
 
-        if (uploadId != null) {
+        if (uploadId != null && !aborted) {
+
+            aborted = true;
 
             AbortMultipartUploadRequest abReq = AbortMultipartUploadRequest.builder()
                     .uploadId(uploadId)
@@ -86,20 +113,27 @@ public class MultipartUpload implements UploadResult
 
     public void complete() {
 
+        if (aborted) {
+
+            _LOG.warn("Not completing aborted upload: {}", uploadId);
+            return;
+
+        }
+
         try {
 
             _LOG.debug("Calculating archive has from {} parts", parts.size());
 
             byte[] archiveHash = hash.calculateTreeHash(parts);
             String archiveHashStr = Hex.encodeHexString(archiveHash);
-            int archiveSize = getFileSize(path);
+            long archiveSize = (cipher == null ? getFileSize(path) : SegmentCipher.getEncryptedSize(getFileSize(path)));
 
             _LOG.debug("archiveHash: {}", archiveHashStr);
 
             CompleteMultipartUploadRequest cpReq = CompleteMultipartUploadRequest.builder()
                     .uploadId(uploadId)
                     .vaultName(GlacierConfiguration.vaultName)
-                    .archiveSize(Integer.toString(archiveSize))
+                    .archiveSize(Long.toString(archiveSize))
                     .checksum(archiveHashStr)
                     .build();
 
@@ -107,8 +141,21 @@ public class MultipartUpload implements UploadResult
             archiveId = cpRsp.archiveId();
             checksum = cpRsp.checksum();
 
+            // Checked against the hash of the parts as sent, which are encrypted if the archive is
+            if (checksum != null && !checksum.equals(archiveHashStr)) {
+
+                _LOG.warn("Returned archive checksum does not match locally calculated hash, received:{}; expected:{}", checksum, archiveHashStr);
+
+            }
+
             _LOG.info("Completed upload: {}", uploadId);
 
+            if (history != null) {
+
+                history.record(partBytes.get(), partMillis.get(), uploadThreads);
+
+            }
+
         }
         catch (Exception e) {
 
@@ -124,7 +171,7 @@ public class MultipartUpload implements UploadResult
 
         InitiateMultipartUploadRequest initReq = InitiateMultipartUploadRequest.builder()
                 .vaultName(GlacierConfiguration.vaultName)
-                .archiveDescription(path.toString())
+                .archiveDescription(cipher == null ? path.toString() : cipher.describe(path.toString()))
                 .partSize(Integer.toString(chunkSize))
                 .build();
 
@@ -138,7 +185,28 @@ public class MultipartUpload implements UploadResult
 
     public void upload() {
 
-        try (ChunkedInputStream in = new ChunkedInputStream(new FileInputStream(path.toFile()), chunkSize)) {
+        _LOG.info("Uploading {} bytes", getFileSize(path));
+
+        try {
+
+            upload(new FileInputStream(path.toFile()));
+
+        } catch (IOException ioe) {
+
+            _LOG.error("Upload failed", ioe);
+            abort();
+
+        }
+    }
+
+    /**
+     * Uploads the archive from a stream rather than from the file, such as one following the file as it is written.
+     * The archive size sent on completion is read from the file, so the file must be complete by then.
+     * @param source the archive data. Closed once read.
+     */
+    public void upload(InputStream source) {
+
+        try (ChunkedInputStream in = new ChunkedInputStream(source, readSize)) {
 
             // Create a task for each thread
             synchronized (service) {
@@ -180,6 +248,92 @@ public class MultipartUpload implements UploadResult
         }
     }
 
+    /**
+     * Gets the number of bytes sent in parts that were uploaded.
+     * @return the number of bytes.
+     */
+    public long getBytesUploaded() {
+
+        return partBytes.get();
+
+    }
+
+    /**
+     * Gets the time spent encrypting parts and calculating their tree hashes, summed across the workers.
+     * @return the time in milliseconds.
+     */
+    public long getHashMillis() {
+
+        return hashNanos.get() / 1000000;
+
+    }
+
+    /**
+     * Gets how long each uploaded part took to send, from the start of its tree hash until Glacier accepted it.
+     * @return the time of each part in milliseconds, in the order of the parts.
+     */
+    public long[] getPartMillis() {
+
+        synchronized (parts) {
+
+            return parts.stream().mapToLong(MultipartObject::getUploadDuration).toArray();
+
+        }
+    }
+
+    /**
+     * Gets the size of the parts the archive is sent in, fixed when the upload is initialised.
+     * @return the part size in bytes.
+     */
+    public int getPartSize() {
+
+        return chunkSize;
+
+    }
+
+    /**
+     * Gets the number of parts an archive is sent in, which is more than its size over the part size if encrypted.
+     * @param size the size of the archive.
+     * @return the number of parts.
+     */
+    public long getPartCount(long size) {
+
+        long archiveSize = (cipher == null ? size : SegmentCipher.getEncryptedSize(size));
+        return (archiveSize + chunkSize - 1) / chunkSize;
+
+    }
+
+    /**
+     * Gets whether the upload was stopped because the archive needs more parts than Glacier accepts, which can only
+     * happen when the archive is read from a stream while it is written.
+     * @return true if the upload was stopped.
+     */
+    public boolean isPartLimitExceeded() {
+
+        return partLimitExceeded;
+
+    }
+
+    /**
+     * Gets the number of times a part was sent again after failing.
+     * @return the number of retries.
+     */
+    public int getRetries() {
+
+        return retries.get();
+
+    }
+
+    /**
+     * Sets where the throughput of the upload is recorded once it completes.
+     * @param history the upload history, or null not to record it.
+     */
+    public void setHistory(UploadHistory history) {
+
+        this.history = history;
+
+    }
+
     @Override
     public String getArchiveId() {
 
@@ -194,6 +348,24 @@ public class MultipartUpload implements UploadResult
 
     }
 
+    /**
+     * Stops the workers and aborts the upload, so it does not wait for parts that will never come.
+     */
+    private void stop() {
+
+        synchronized (service) {
+
+            if (!service.isShutdown()) {
+
+                service.shutdown();
+                abort();
+
+            }
+            service.notifyAll();
+
+        }
+    }
+
     class MultipartUploadTask implements Runnable {
 
         private final ChunkedInputStream in;
@@ -210,6 +382,7 @@ public class MultipartUpload implements UploadResult
         public void run() {
 
             byte[] part;
+            boolean last = false;
             final MultipartObject obj = new MultipartObject();
 
             try {
@@ -220,6 +393,14 @@ public class MultipartUpload implements UploadResult
 
                     part = obj.initializeAndReadBytes(in);
 
+                    // The first short read ends the archive, so carries the final segment even if it read nothing
+                    if (cipher != null && obj.getLength() < readSize && !finalPartRead) {
+
+                        finalPartRead = true;
+                        last = true;
+
+                    }
+
                     _LOG.debug("Leaving MUT sync block");
 
                 }
@@ -228,25 +409,56 @@ public class MultipartUpload implements UploadResult
 
                 // Can't read input, probably not going to recover from this
                 _LOG.error("Unable to read input stream", ioe);
+                stop();
+                return;
+
+            }
+
+            // Glacier rejects an archive of too many parts only once it is complete, so stop at the first part over
+            if ((obj.getLength() > 0 || last) && obj.getRangeStart() / readSize >= _MAX_PARTS) {
+
+                _LOG.error("Archive needs more than {} parts of {}MB", _MAX_PARTS, chunkSize / _1MB);
+                partLimitExceeded = true;
+                stop();
                 return;
 
             }
 
+            byte[] partHash = null;
             int retryCount = 3;
 
             while (retryCount > 0) {
 
                 try {
 
-                    if (obj.getLength() > 0) {
+                    if (obj.getLength() > 0 || last) {
 
                         obj.setUploadStartTimestamp(System.currentTimeMillis());
 
-                        _LOG.debug("Uploading {}; {} bytes", obj.getUploadRange(), obj.getLength());
+                        // Hashed once, as a retry sends the same bytes
+                        if (partHash == null) {
+
+                            long hashStart = System.nanoTime();
+                            if (cipher == null) {
 
-                        byte[] partHash = hash.calculateTreeHash(new ChunkedInputStream(part, _1MB));
+                                partHash = hash.calculateTreeHash(new ChunkedInputStream(part, _1MB));
+
+                            } else {
+
+                                // Each encrypted segment is a leaf of the tree hash, hashed as it is encrypted
+                                List<byte[]> leaves = new ArrayList<>();
+                                part = cipher.encrypt(part, obj.getRangeStart(), last, hash, leaves);
+                                obj.setRange(SegmentCipher.getSegmentOffset(obj.getRangeStart()), part.length);
+                                partHash = hash.calculateTreeHashFromHashes(leaves);
+
+                            }
+                            hashNanos.addAndGet(System.nanoTime() - hashStart);
+                            obj.setTreeHash(partHash);
+
+                        }
                         String partHashStr = Hex.encodeHexString(partHash);
-                        obj.setTreeHash(partHash);
+
+                        _LOG.debug("Uploading {}; {} bytes", obj.getUploadRange(), obj.getLength());
 
                         _LOG.debug("partHash: {}", partHashStr);
 
@@ -272,7 +484,13 @@ public class MultipartUpload implements UploadResult
                         obj.setEndTimestamp(System.currentTimeMillis());
                         _LOG.info("Part upload complete: uploaded {}", obj);
 
-                        parts.add(obj);
+                        partBytes.addAndGet(obj.getLength());
+                        partMillis.addAndGet(obj.getUploadDuration());
+                        synchronized (parts) {
+
+                            parts.add(obj);
+
+                        }
 
                     }
 
@@ -326,6 +544,7 @@ public class MultipartUpload implements UploadResult
                     }
 
                     _LOG.info("Retrying...");
+                    retries.incrementAndGet();
 
                     // Wait a little bit then retry
                     try {
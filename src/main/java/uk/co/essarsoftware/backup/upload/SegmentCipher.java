@@ -0,0 +1,321 @@
+package uk.co.essarsoftware.backup.upload;
+
+import org.apache.commons.codec.binary.Hex;
+import uk.co.essarsoftware.backup.HashUtils;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encrypts archives with AES-GCM in independent segments, so the upload workers encrypt their parts in parallel and
+ * any segment can be decrypted without the others. Each segment is exactly 1 MB: a 12-byte nonce, then the ciphertext
+ * of up to 1 MB less 28 bytes of the archive, then a 16-byte authentication tag. A segment is therefore one leaf of the
+ * Glacier tree hash, and every full part holds a whole number of segments.
+ * <p>
+ * The nonce is eight random bytes chosen for the archive followed by the index of the segment, so no nonce is used
+ * twice with a key, a segment moved to another place in the archive fails to decrypt, and a segment from another
+ * archive is found by its first eight bytes. An archive always ends with a final segment shorter than 1 MB, empty if
+ * the archive fills its last segment, and only the final segment is encrypted with the final flag as its associated
+ * data. A segment cut short, or an archive cut short at a segment boundary, therefore fails to decrypt; the number of
+ * segments is not known until the archive has been streamed, so the final flag stands in for it.
+ * <p>
+ * Offsets of the archive map to segments by {@link #getSegmentOffset(long)}, so a restore can retrieve just the
+ * segments holding the entries it needs and decrypt them.
+ * @author <steve.roberts/>
+ */
+public class SegmentCipher
+{
+
+    public static final int SEGMENT_SIZE = 1048576;
+
+    private static final int _NONCE_SIZE = 12;
+    private static final int _TAG_SIZE = 16;
+    private static final int _PLAIN_SIZE = SEGMENT_SIZE - _NONCE_SIZE - _TAG_SIZE;
+    private static final int _ARCHIVE_NONCE_SIZE = 8;
+
+    private static final byte[] _MORE = {0};
+    private static final byte[] _FINAL = {1};
+
+    private static final SecureRandom random = new SecureRandom();
+
+    // Each worker keeps its cipher, which the JVM runs on the AES instructions of the processor where it has them
+    private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+
+        try {
+
+            return Cipher.getInstance("AES/GCM/NoPadding");
+
+        } catch (GeneralSecurityException gse) {
+
+            throw new IllegalStateException("AES-GCM is not available: " + gse.getMessage());
+
+        }
+    });
+
+    private final SecretKey key;
+    private final String keyId;
+    private final byte[] archiveNonce = new byte[_ARCHIVE_NONCE_SIZE];
+
+    /**
+     * Creates a cipher for one archive.
+     * @param key the 256-bit AES key.
+     */
+    SegmentCipher(SecretKey key) {
+
+        this.key = key;
+
+        // Identifies the key in the archive description without revealing it
+        byte[] encoded = key.getEncoded();
+        keyId = Hex.encodeHexString(Arrays.copyOf(HashUtils.createSHA256Instance().calculateHashBytes(encoded, 0, encoded.length), 8));
+
+        random.nextBytes(archiveNonce);
+
+    }
+
+    /**
+     * Creates a cipher for one archive with the key in {@link GlacierConfiguration}.
+     * @return the cipher, or null if archives are not encrypted.
+     * @throws IllegalArgumentException if the key cannot be read.
+     */
+    public static SegmentCipher fromConfiguration() {
+
+        SecretKey key = GlacierConfiguration.getEncryptionKey();
+        return (key == null ? null : new SegmentCipher(key));
+
+    }
+
+    /**
+     * Gets the description of an encrypted archive, naming the key it is encrypted with.
+     * @param name the name of the archive.
+     * @return the description.
+     */
+    String describe(String name) {
+
+        return String.format("%s (AES-GCM key %s)", name, keyId);
+
+    }
+
+    /**
+     * Gets the identifier of the key: the first 8 bytes of its SHA-256 hash.
+     * @return the hex-encoded identifier.
+     */
+    String getKeyId() {
+
+        return keyId;
+
+    }
+
+    /**
+     * Gets how much of an archive is encrypted into a part.
+     * @param partSize the size of the part, a whole number of MB.
+     * @return the number of bytes of the archive.
+     */
+    static int getPlainSize(int partSize) {
+
+        return partSize / SEGMENT_SIZE * _PLAIN_SIZE;
+
+    }
+
+    /**
+     * Gets the size of an archive once encrypted, including its final segment.
+     * @param plainSize the size of the archive.
+     * @return the encrypted size.
+     */
+    public static long getEncryptedSize(long plainSize) {
+
+        return plainSize / _PLAIN_SIZE * SEGMENT_SIZE + plainSize % _PLAIN_SIZE + _NONCE_SIZE + _TAG_SIZE;
+
+    }
+
+    /**
+     * Gets the offset in the encrypted archive of the segment holding a byte of the archive.
+     * @param plainOffset the offset of the byte in the archive.
+     * @return the offset of the segment.
+     */
+    public static long getSegmentOffset(long plainOffset) {
+
+        return plainOffset / _PLAIN_SIZE * SEGMENT_SIZE;
+
+    }
+
+    /**
+     * Gets the offset in the archive of the first byte held by a segment.
+     * @param segmentOffset the offset of the segment in the encrypted archive.
+     * @return the offset of the byte.
+     */
+    public static long getPlainOffset(long segmentOffset) {
+
+        return segmentOffset / SEGMENT_SIZE * _PLAIN_SIZE;
+
+    }
+
+    /**
+     * Gets the random bytes that begin the nonce of every segment of an archive.
+     * @param segments segments of the archive.
+     * @return the bytes from the nonce of the first segment.
+     */
+    public static byte[] getArchiveNonce(byte[] segments) {
+
+        return Arrays.copyOf(segments, _ARCHIVE_NONCE_SIZE);
+
+    }
+
+    /**
+     * Encrypts part of an archive, hashing each segment as soon as it is encrypted, while it is still in the cache.
+     * @param plain the part of the archive, starting at a segment boundary; a whole number of segments unless last.
+     * @param plainOffset the offset of the part in the archive.
+     * @param last true if the part ends the archive, so is followed by the final segment.
+     * @param hash the hash to calculate the segment hashes with.
+     * @param leaves receives the hash of each segment, the leaves of the tree hash of the encrypted part.
+     * @return the encrypted part.
+     * @throws GeneralSecurityException if the part cannot be encrypted.
+     */
+    byte[] encrypt(byte[] plain, long plainOffset, boolean last, HashUtils hash, List<byte[]> leaves) throws GeneralSecurityException {
+
+        byte[] out = new byte[(int) (last ? getEncryptedSize(plain.length) : getSegmentOffset(plain.length))];
+        long segment = plainOffset / _PLAIN_SIZE;
+
+        int in = 0, pos = 0;
+        while (in < plain.length || (last && pos < out.length)) {
+
+            int len = Math.min(_PLAIN_SIZE, plain.length - in);
+            int written = seal(plain, in, len, segment++, len < _PLAIN_SIZE, out, pos);
+
+            leaves.add(hash.calculateHashBytes(out, pos, written));
+            in += len;
+            pos += written;
+
+        }
+
+        return out;
+
+    }
+
+    /**
+     * Encrypts a whole archive from a stream, one segment at a time, so only a segment of it is held in memory.
+     * @param in the archive.
+     * @param out receives the encrypted archive.
+     * @param hash the hash to calculate the segment hashes with.
+     * @param leaves receives the hash of each segment, the leaves of the tree hash of the encrypted archive.
+     * @return the size of the encrypted archive.
+     * @throws IOException if the archive cannot be read or written.
+     * @throws GeneralSecurityException if the archive cannot be encrypted.
+     */
+    long encrypt(InputStream in, OutputStream out, HashUtils hash, List<byte[]> leaves) throws IOException, GeneralSecurityException {
+
+        byte[] plain = new byte[_PLAIN_SIZE];
+        byte[] segment = new byte[SEGMENT_SIZE];
+        long size = 0;
+
+        for (long index = 0; ; index++) {
+
+            // Fill the segment, as a stream may return less than asked before it ends
+            int len = 0, read;
+            while (len < _PLAIN_SIZE && (read = in.read(plain, len, _PLAIN_SIZE - len)) >= 0) {
+
+                len += read;
+
+            }
+
+            int written = seal(plain, 0, len, index, len < _PLAIN_SIZE, segment, 0);
+            leaves.add(hash.calculateHashBytes(segment, 0, written));
+            out.write(segment, 0, written);
+            size += written;
+
+            if (len < _PLAIN_SIZE) {
+
+                return size;
+
+            }
+        }
+    }
+
+    /**
+     * Encrypts one segment, writing its nonce, ciphertext and tag.
+     * @return the size of the segment.
+     */
+    private int seal(byte[] plain, int off, int len, long segment, boolean last, byte[] out, int pos) throws GeneralSecurityException {
+
+        Cipher cipher = ciphers.get();
+        byte[] nonce = ByteBuffer.allocate(_NONCE_SIZE).put(archiveNonce).putInt((int) segment).array();
+        System.arraycopy(nonce, 0, out, pos, _NONCE_SIZE);
+
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(_TAG_SIZE * 8, nonce));
+        cipher.updateAAD(last ? _FINAL : _MORE);
+        return _NONCE_SIZE + cipher.doFinal(plain, off, len, out, pos + _NONCE_SIZE);
+
+    }
+
+    /**
+     * Decrypts whole segments of an archive, checking each was encrypted for the archive and the place it is found.
+     * @param segments the segments, the last of which may be the final segment of the archive.
+     * @param segmentOffset the offset of the first segment in the encrypted archive.
+     * @param toEnd true if the segments run to the end of the archive, so must end with its final segment.
+     * @param archiveNonce the bytes that begin the nonce of every segment of the archive.
+     * @return the data held by the segments, starting at {@link #getPlainOffset(long)} in the archive.
+     * @throws GeneralSecurityException if a segment has been altered, moved, taken from another archive or lost from
+     * the end, or was encrypted with another key.
+     */
+    public byte[] decrypt(byte[] segments, long segmentOffset, boolean toEnd, byte[] archiveNonce) throws GeneralSecurityException {
+
+        Cipher cipher = ciphers.get();
+        int count = (segments.length + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        long segment = segmentOffset / SEGMENT_SIZE;
+        boolean last = false;
+
+        int tail = segments.length % SEGMENT_SIZE;
+        if (tail > 0 && tail < _NONCE_SIZE + _TAG_SIZE) {
+
+            throw new AEADBadTagException(String.format("Segment %d is truncated", segment + count - 1));
+
+        }
+        byte[] out = new byte[segments.length - count * (_NONCE_SIZE + _TAG_SIZE)];
+
+        int in = 0, pos = 0;
+        while (in < segments.length) {
+
+            int len = Math.min(SEGMENT_SIZE, segments.length - in);
+            byte[] nonce = Arrays.copyOfRange(segments, in, in + _NONCE_SIZE);
+            if (!Arrays.equals(Arrays.copyOf(nonce, _ARCHIVE_NONCE_SIZE), archiveNonce)) {
+
+                throw new AEADBadTagException(String.format("Segment %d is from another archive", segment));
+
+            }
+            if (ByteBuffer.wrap(nonce, _ARCHIVE_NONCE_SIZE, 4).getInt() != (int) segment) {
+
+                throw new AEADBadTagException(String.format("Segment %d found in place of segment %d",
+                        ByteBuffer.wrap(nonce, _ARCHIVE_NONCE_SIZE, 4).getInt(), segment));
+
+            }
+
+            // Only the final segment is short, and it must be decrypted as the final segment
+            last = len < SEGMENT_SIZE;
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(_TAG_SIZE * 8, nonce));
+            cipher.updateAAD(last ? _FINAL : _MORE);
+            pos += cipher.doFinal(segments, in + _NONCE_SIZE, len - _NONCE_SIZE, out, pos);
+
+            in += len;
+            segment++;
+
+        }
+
+        if (toEnd && !last) {
+
+            throw new AEADBadTagException(String.format("Archive ends at segment %d without its final segment", segment));
+
+        }
+
+        return out;
+
+    }
+}
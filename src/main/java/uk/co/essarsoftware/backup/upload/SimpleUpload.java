@@ -3,18 +3,21 @@ package uk.co.essarsoftware.backup.upload;
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import software.amazon.awssdk.auth.credentials.ProfileCredentialsProvider;
 import software.amazon.awssdk.services.glacier.GlacierClient;
 import software.amazon.awssdk.services.glacier.model.UploadArchiveRequest;
 import software.amazon.awssdk.services.glacier.model.UploadArchiveResponse;
 import uk.co.essarsoftware.backup.HashUtils;
+import uk.co.essarsoftware.backup.io.ChunkedInputStream;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class SimpleUpload implements UploadResult
 {
@@ -24,31 +27,33 @@ public class SimpleUpload implements UploadResult
     private static final int _1MB = 1048576;
 
     private final GlacierClient glacier;
+    private final SegmentCipher cipher;
     private Path path;
     private String archiveId, checksum;
 
     private HashUtils hash = HashUtils.createSHA256Instance();
 
+    /**
+     * Creates an upload, encrypted if {@link GlacierConfiguration#getEncryptionKey()} gives a key.
+     * @param path the archive to upload.
+     * @throws IllegalArgumentException if the encryption key cannot be read.
+     */
     public SimpleUpload(Path path) {
 
         this.path = path;
         _LOG.info("Uploading {}", path.toAbsolutePath());
 
-        glacier = GlacierClient.builder()
-                .credentialsProvider(ProfileCredentialsProvider.builder()
-                        .profileName(GlacierConfiguration.awsProfile)
-                        .build())
-                .build();
+        cipher = SegmentCipher.fromConfiguration();
 
-        _LOG.debug("Initialised Glacier client: {}", glacier);
+        glacier = GlacierConfiguration.getClient();
 
     }
 
-    private static int getFileSize(Path path) {
+    private static long getFileSize(Path path) {
 
         try {
 
-            return (int) Files.size(path);
+            return Files.size(path);
 
         } catch (IOException ioe) {
 
@@ -58,33 +63,12 @@ public class SimpleUpload implements UploadResult
         }
     }
 
-    private static byte[] readPath(Path path) throws IOException {
-
-        ByteBuffer bytes = ByteBuffer.allocate(getFileSize(path));
-
-        byte[] buf = new byte[4096];
-
-        try (FileInputStream in = new FileInputStream(path.toFile())) {
-
-            int len = in.read(buf);
-            while (len > 0) {
-
-                bytes.put(buf, 0, len);
-                len = in.read(buf);
-
-            }
-        }
-
-        return bytes.array();
-
-    }
-
     private String calculateTreeHash(Path path) {
 
-        try {
+        // The tree hash is of 1MB leaves, so the file is read a leaf at a time rather than all at once
+        try (ChunkedInputStream in = new ChunkedInputStream(new FileInputStream(path.toFile()), _1MB)) {
 
-            byte[] bytes = readPath(path);
-            return Hex.encodeHexString(hash.calculateTreeHash(Arrays.asList(bytes)));
+            return Hex.encodeHexString(hash.calculateTreeHash(in));
 
         } catch(IOException ioe) {
 
@@ -103,6 +87,13 @@ public class SimpleUpload implements UploadResult
 
         }
 
+        if (cipher != null) {
+
+            uploadEncrypted();
+            return;
+
+        }
+
         String fileHash = calculateTreeHash(path);
         _LOG.debug("fileHash: {}", fileHash);
 
@@ -121,6 +112,73 @@ public class SimpleUpload implements UploadResult
 
     }
 
+    /**
+     * Encrypts the file a segment at a time into a temporary file beside it, hashing each segment as it is written,
+     * and uploads the encrypted file, so no more than a segment of the archive is held in memory.
+     * @throws IllegalStateException if the file cannot be read or encrypted, as nothing is uploaded.
+     */
+    private void uploadEncrypted() {
+
+        Path encrypted = null;
+        try {
+
+            encrypted = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".enc");
+
+            List<byte[]> leaves = new ArrayList<>();
+            try (InputStream in = Files.newInputStream(path); OutputStream out = Files.newOutputStream(encrypted)) {
+
+                cipher.encrypt(in, out, hash, leaves);
+
+            } catch (IOException | GeneralSecurityException e) {
+
+                throw new IllegalStateException("Unable to encrypt " + path, e);
+
+            }
+
+            String fileHash = Hex.encodeHexString(hash.calculateTreeHashFromHashes(leaves));
+            _LOG.debug("fileHash: {}", fileHash);
+
+            UploadArchiveRequest req = UploadArchiveRequest.builder()
+                    .vaultName(GlacierConfiguration.vaultName)
+                    .archiveDescription(cipher.describe(path.toString()))
+                    .checksum(fileHash)
+                    .build();
+
+            UploadArchiveResponse rsp = glacier.uploadArchive(req, encrypted);
+            archiveId = rsp.archiveId();
+            checksum = rsp.checksum();
+
+            _LOG.info("Completed encrypted upload");
+            _LOG.info("Created archive: {}; checksum: {}", archiveId, checksum);
+
+        } catch (IOException ioe) {
+
+            throw new IllegalStateException("Unable to create encrypted copy of " + path, ioe);
+
+        } finally {
+
+            deleteQuietly(encrypted);
+
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+
+        try {
+
+            if (file != null) {
+
+                Files.deleteIfExists(file);
+
+            }
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to delete {}: {}", file, ioe.getMessage());
+
+        }
+    }
+
     @Override
     public String getArchiveId() {
 
@@ -0,0 +1,100 @@
+package uk.co.essarsoftware.backup.upload;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Throughput of previous uploads, used to estimate how long an upload will take. Each completed upload appends a line
+ * holding the time it completed, the bytes sent, the total time spent sending its parts and the number of workers.
+ * Parts are sent by several workers at once, so throughput is measured per worker.
+ * @author <steve.roberts/>
+ */
+public class UploadHistory
+{
+
+    private static final Logger _LOG = LoggerFactory.getLogger(UploadHistory.class);
+
+    // Only recent uploads are used, as the connection may have changed since older ones
+    private static final int _RECENT_UPLOADS = 20;
+
+    private final Path historyFile;
+
+    public UploadHistory(Path historyFile) {
+
+        this.historyFile = historyFile;
+
+    }
+
+    /**
+     * Gets the average throughput of one worker over the most recent uploads.
+     * @return the throughput in bytes per second, or -1 if no upload has been recorded.
+     */
+    public double getBytesPerSecondPerWorker() {
+
+        List<String> lines;
+        try {
+
+            lines = (Files.exists(historyFile) ? Files.readAllLines(historyFile, StandardCharsets.UTF_8) : Collections.emptyList());
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to read upload history: {}", ioe.getMessage());
+            return -1;
+
+        }
+
+        long bytes = 0, millis = 0;
+        for (String line : lines.subList(Math.max(0, lines.size() - _RECENT_UPLOADS), lines.size())) {
+
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 4) {
+
+                continue;
+
+            }
+
+            try {
+
+                bytes += Long.parseLong(fields[1]);
+                millis += Long.parseLong(fields[2]);
+
+            } catch (NumberFormatException nfe) {
+
+                _LOG.debug("Ignoring upload history: {}", line);
+
+            }
+        }
+
+        return (millis == 0 ? -1 : bytes * 1000.0 / millis);
+
+    }
+
+    /**
+     * Records a completed upload.
+     * @param bytes the number of bytes sent.
+     * @param partMillis the total time spent sending parts, across every worker.
+     * @param workers the number of workers.
+     */
+    synchronized void record(long bytes, long partMillis, int workers) {
+
+        String line = String.format("%d %d %d %d%n", System.currentTimeMillis(), bytes, partMillis, workers);
+
+        try {
+
+            Files.write(historyFile, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        } catch (IOException ioe) {
+
+            _LOG.warn("Unable to record upload history: {}", ioe.getMessage());
+
+        }
+    }
+}